@@ -10,6 +10,7 @@ import com.xmly.media.camera.preview.listener.onCameraRecorderListener;
 import com.xmly.media.camera.preview.listener.onCameraRendererListener;
 import com.xmly.media.camera.preview.listener.onCameraSetupCallback;
 import com.xmly.media.camera.preview.render.CameraRender;
+import com.xmly.media.gles.filter.GPUImageFilterPreparer;
 import com.xmly.media.gles.utils.XMFilterType;
 
 /**
@@ -255,6 +256,16 @@ public class CameraPreview {
         }
     }
 
+    /**
+     * 新滤镜生效后在渲染线程回调
+     * @param l 可为null
+     */
+    public void setOnFilterChangedListener(GPUImageFilterPreparer.OnFilterPreparedListener l) {
+        if (mCameraRender != null) {
+            mCameraRender.setOnFilterChangedListener(l);
+        }
+    }
+
     /**
      * 设置应用的上下文环境
      * @param context
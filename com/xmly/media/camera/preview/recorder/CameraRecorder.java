@@ -4,6 +4,7 @@ import android.opengl.EGLContext;
 
 import com.xmly.media.camera.preview.listener.onCameraRecorderListener;
 import com.xmly.media.camera.view.recorder.XMMediaRecorderParams;
+import com.xmly.media.gles.TextureTripleBuffer;
 
 /**
  * 相机预览录制编码器
@@ -30,6 +31,16 @@ public class CameraRecorder {
         }
     }
 
+    /**
+     * 设置与renderer交换帧的三缓冲,替代绘制锁
+     * @param handoff
+     */
+    public void setFrameHandoff(TextureTripleBuffer handoff) {
+        if (mRecordThread != null) {
+            mRecordThread.setFrameHandoff(handoff);
+        }
+    }
+
     /**
      * 配置EGL共享上下文
      * @param sharedContext
@@ -108,6 +119,8 @@ public class CameraRecorder {
         private EGLContext mSharedEGLContext = null;
         //渲染操作锁
         private Object mDrawLock = null;
+        //与渲染线程交换帧的三缓冲
+        private TextureTripleBuffer mFrameHandoff = null;
 
         public Builder() {
             mEncoderParams = new XMMediaRecorderParams();
@@ -174,12 +187,20 @@ public class CameraRecorder {
             return this;
         }
 
+        //设置与预览交换帧的三缓冲,设置后不再使用绘制锁
+        public Builder setFrameHandoff(TextureTripleBuffer handoff) {
+            mFrameHandoff = handoff;
+            return this;
+        }
+
         //创建CameraRecorder
         public CameraRecorder build() {
             CameraRecorder recorder =  new CameraRecorder(mDrawLock);
             recorder.setEGLContext(mSharedEGLContext);
             recorder.setEncoderParams(mEncoderParams);
+            recorder.setFrameHandoff(mFrameHandoff);
             mDrawLock = null;
+            mFrameHandoff = null;
             mSharedEGLContext = null;
             mEncoderParams = null;
             return recorder;
@@ -8,18 +8,22 @@ import android.os.Looper;
 import android.util.Log;
 
 import com.xmly.media.camera.preview.listener.onCameraRecorderListener;
+import com.xmly.media.camera.view.recorder.EncoderBackpressureController;
 import com.xmly.media.camera.view.recorder.IXMCameraRecorderListener;
+import com.xmly.media.camera.view.recorder.OnFramesDroppedListener;
 import com.xmly.media.camera.view.recorder.XMMediaRecorder;
 import com.xmly.media.camera.view.recorder.XMMediaRecorderParams;
 import com.xmly.media.gles.EglCore;
+import com.xmly.media.gles.FrameBufferPool;
+import com.xmly.media.gles.QuadVertexBuffer;
 import com.xmly.media.gles.OffscreenSurface;
+import com.xmly.media.gles.TextureTripleBuffer;
 import com.xmly.media.gles.filter.GPUImagePixelCopierFilter;
 import com.xmly.media.gles.filter.GPUImageYUY2PixelCopierFilter;
+import com.xmly.media.gles.utils.OpenGlUtils;
+import com.xmly.media.gles.utils.ProgramCache;
 import com.xmly.media.gles.utils.Rotation;
-import com.xmly.media.gles.utils.TextureRotationUtil;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.util.HashMap;
 
@@ -43,8 +47,10 @@ public class CameraRecorderThread extends Thread {
     private final Object mSynOperation = new Object();
     //mReady锁
     private final Object mReadyFence = new Object();
-    //录制渲染同步锁,与预览渲染同步
+    //录制渲染同步锁,与预览渲染同步,设置了mFrameHandoff时不再使用
     private Object mDrawLock = null;
+    //从渲染线程取最新一帧的三缓冲纹理
+    private TextureTripleBuffer mFrameHandoff = null;
     //线程运行状态
     private volatile boolean mReady = false;
     //录制状态
@@ -61,23 +67,25 @@ public class CameraRecorderThread extends Thread {
     private GPUImagePixelCopierFilter mFilter = null;
     //Native编码器
     private XMMediaRecorder mEncoder = null;
+    //编码队列积压时的丢帧策略
+    private EncoderBackpressureController mBackpressure = null;
 
     private void initBuffer() {
-        mGLCubeBuffer = ByteBuffer.allocateDirect(TextureRotationUtil.CUBE.length * 4)
-                .order(ByteOrder.nativeOrder())
-                .asFloatBuffer();
-        mGLCubeBuffer.put(TextureRotationUtil.CUBE).position(0);
-
-        mGLTextureBuffer = ByteBuffer.allocateDirect(TextureRotationUtil.TEXTURE_NO_ROTATION.length * 4)
-                .order(ByteOrder.nativeOrder())
-                .asFloatBuffer();
-        mGLTextureBuffer.put(TextureRotationUtil.getRotation(Rotation.NORMAL, false, true)).position(0);
+        mGLCubeBuffer = QuadVertexBuffer.getCubeBuffer();
+        mGLTextureBuffer = QuadVertexBuffer.getTextureBuffer(Rotation.NORMAL, false, true);
     }
 
     public CameraRecorderThread(Object drawLock) {
         mDrawLock = drawLock;
         mEncoder = new XMMediaRecorder(true, false, true);
         mEncoder.setListener(onEncoderListener);
+        mEncoder.setOnFramesDroppedListener(new OnFramesDroppedListener() {
+            @Override
+            public void onFramesDropped(int droppedFrames, int totalFrames) {
+                Log.w(TAG, "onFramesDropped " + droppedFrames + "/" + totalFrames);
+            }
+        });
+        mBackpressure = new EncoderBackpressureController(mEncoder);
         initBuffer();
     }
 
@@ -91,6 +99,16 @@ public class CameraRecorderThread extends Thread {
         }
     }
 
+    /**
+     * 设置与renderer交换帧的三缓冲,设置后录制线程不再持有绘制锁
+     * @param handoff
+     */
+    public void setFrameHandoff(TextureTripleBuffer handoff) {
+        synchronized (mSynOperation) {
+            mFrameHandoff = handoff;
+        }
+    }
+
     /**
      * 配置EGL参数
      * @param sharedContext
@@ -238,10 +256,14 @@ public class CameraRecorderThread extends Thread {
      * 释放GLES资源
      */
     private void releaseGLES() {
+        detachFrameHandoff();
         if (mFilter != null) {
             mFilter.destroy();
             mFilter= null;
         }
+        FrameBufferPool.getInstance().clear();
+        ProgramCache.getInstance().clear();
+        QuadVertexBuffer.getInstance().clear();
         if (mWindowSurface != null) {
             mWindowSurface.release();
             mWindowSurface = null;
@@ -304,6 +326,19 @@ public class CameraRecorderThread extends Thread {
         //启动Egl上下文到此线程
         mWindowSurface.makeCurrent();
         initFilter();
+        if (mFrameHandoff != null) {
+            mFrameHandoff.resetCounters();
+            mFrameHandoff.setConsumerAttached(true);
+        }
+    }
+
+    private void detachFrameHandoff() {
+        if (mFrameHandoff != null && mFrameHandoff.isConsumerAttached()) {
+            mFrameHandoff.setConsumerAttached(false);
+            Log.i(TAG, "frame handoff published " + mFrameHandoff.getPublishedCount()
+                    + " consumed " + mFrameHandoff.getConsumedCount()
+                    + " overwritten " + mFrameHandoff.getOverwrittenCount());
+        }
     }
 
     /**
@@ -319,6 +354,11 @@ public class CameraRecorderThread extends Thread {
      * 由Handler回调,线程内读取一帧有效数据
      */
     public void handleFrameAvailable(int texId) {
+        if (mFrameHandoff != null) {
+            drawHandoffFrame();
+            return;
+        }
+
         if (mDrawLock != null) {
             synchronized (mDrawLock) {
                 if (mWindowSurface != null) {
@@ -336,6 +376,27 @@ public class CameraRecorderThread extends Thread {
         }
     }
 
+    /**
+     * 取三缓冲中最新的一帧编码,渲染线程同时继续绘制下一帧
+     */
+    private void drawHandoffFrame() {
+        if (mWindowSurface == null)
+            return;
+
+        mWindowSurface.makeCurrent();
+        int texId = mFrameHandoff.acquire();
+        if (texId == OpenGlUtils.NO_TEXTURE)
+            return;
+
+        GLES20.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+        if (mFilter != null && isEncoding) {
+            mFilter.onDrawToTexture(texId, mGLCubeBuffer, mGLTextureBuffer);
+        }
+        mFrameHandoff.releaseFront();
+        mWindowSurface.swapBuffers();
+    }
+
     /**
      * 由Handler回调, 停止线程
      */
@@ -392,6 +453,7 @@ public class CameraRecorderThread extends Thread {
         if(mFilter != null)
             mFilter.destroy();
         mFilter = new GPUImageYUY2PixelCopierFilter(mEncoder);
+        mFilter.setBackpressureController(mBackpressure);
         mFilter.init();
         GLES20.glUseProgram(mFilter.getProgram());
         if (mEncoderParams != null) {
@@ -408,6 +470,13 @@ public class CameraRecorderThread extends Thread {
         }
     }
 
+    /**
+     * 调整编码队列积压时的丢帧策略
+     */
+    public EncoderBackpressureController getBackpressureController() {
+        return mBackpressure;
+    }
+
     private IXMCameraRecorderListener onEncoderListener = new IXMCameraRecorderListener() {
         @Override
         public void onImageReaderPrepared() {
@@ -426,6 +495,15 @@ public class CameraRecorderThread extends Thread {
             Log.i(TAG, "onRecorderStarted");
             synchronized (mSynOperation) {
                 isEncoding = true;
+                if (mHandler != null) {
+                    //丢帧策略只在录制线程中使用
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mBackpressure.reset();
+                        }
+                    });
+                }
             }
             if (mCameraRecorderListener != null) {mCameraRecorderListener.onRecorderStarted();}
         }
@@ -0,0 +1,291 @@
+package com.xmly.media.camera.preview.recorder;
+
+import android.util.Log;
+
+import com.xmly.media.camera.view.recorder.EncoderBackpressureController;
+import com.xmly.media.camera.view.recorder.IXMCameraRecorderListener;
+import com.xmly.media.camera.view.recorder.OnFramesDroppedListener;
+import com.xmly.media.camera.view.recorder.XMMediaRecorder;
+import com.xmly.media.camera.view.recorder.XMMediaRecorderParams;
+import com.xmly.media.gles.QuadVertexBuffer;
+import com.xmly.media.gles.filter.GPUImageFilter;
+import com.xmly.media.gles.filter.GPUImageYUY2PixelCopierFilter;
+import com.xmly.media.gles.utils.Rotation;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Records the filtered frame at additional, smaller resolutions next to the main recording.
+ * The filters run once, each rendition downscales the texture of the next larger one with a
+ * bilinear pass, so 1080p -> 540p -> 270p halves the size per step, and reads it back into
+ * its own {@link XMMediaRecorder}. Renditions should keep the aspect ratio of the source.
+ * Everything except {@link #start} and {@link #stop} is called on the GL thread.
+ */
+public class MultiRenditionRecorder {
+    private static final String TAG = "MultiRenditionRecorder";
+    //按面积从大到小排列,每一路从上一路缩放
+    private final List<Rendition> mRenditions = new ArrayList<Rendition>();
+    private int mSourceWidth = 0;
+    private int mSourceHeight = 0;
+    private boolean mInitialized = false;
+
+    public static class Rendition {
+        private final int mWidth;
+        private final int mHeight;
+        private final String mOutputPath;
+        private final XMMediaRecorder mRecorder;
+        private GPUImageFilter mScaler = null;
+        private GPUImageYUY2PixelCopierFilter mCopier = null;
+        private boolean mNeedsScale = false;
+        private volatile boolean isEncoding = false;
+
+        Rendition(int width, int height, String outputPath) {
+            mWidth = width;
+            mHeight = height;
+            mOutputPath = outputPath;
+            mRecorder = new XMMediaRecorder(true, false, true);
+            mRecorder.setListener(onEncoderListener);
+            mRecorder.setOnFramesDroppedListener(new OnFramesDroppedListener() {
+                @Override
+                public void onFramesDropped(int droppedFrames, int totalFrames) {
+                    Log.w(TAG, "rendition " + mWidth + "x" + mHeight + " dropped " + droppedFrames + "/" + totalFrames);
+                }
+            });
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        public String getOutputPath() {
+            return mOutputPath;
+        }
+
+        public boolean isEncoding() {
+            return isEncoding;
+        }
+
+        private void init() {
+            mScaler = new GPUImageFilter();
+            mScaler.init();
+            mCopier = new GPUImageYUY2PixelCopierFilter(mRecorder);
+            mCopier.setBackpressureController(new EncoderBackpressureController(mRecorder));
+            mCopier.init();
+            mScaler.onOutputSizeChanged(mWidth, mHeight);
+            mCopier.onOutputSizeChanged(mWidth, mHeight);
+        }
+
+        private void destroy() {
+            if (mScaler != null) {
+                mScaler.destroy();
+                mScaler = null;
+            }
+            if (mCopier != null) {
+                mCopier.destroy();
+                mCopier = null;
+            }
+        }
+
+        private void start(int fps) {
+            if (isEncoding) {
+                Log.w(TAG, "rendition " + mWidth + "x" + mHeight + " is running");
+                return;
+            }
+
+            XMMediaRecorderParams params = new XMMediaRecorderParams()
+                    .setSize(mWidth, mHeight)
+                    .setFps(fps)
+                    .setOutputPath(mOutputPath)
+                    .setCFR(XMMediaRecorderParams.FALSE)
+                    .setBitrate(XMMediaRecorderParams.getScaledBitrate(mWidth, mHeight))
+                    .setGopsize(0.5f)
+                    .setMaxBFrames(0);
+            HashMap<String, String> config = new HashMap<String, String>();
+            config.put("width", String.valueOf(params.width));
+            config.put("height", String.valueOf(params.height));
+            config.put("bit_rate", String.valueOf(params.bitrate));
+            config.put("fps", String.valueOf(params.fps));
+            config.put("gop_size", String.valueOf((int) (params.gop_size * params.fps)));
+            config.put("crf", String.valueOf(params.crf));
+            config.put("multiple", String.valueOf(params.multiple));
+            config.put("max_b_frames", String.valueOf(params.max_b_frames));
+            config.put("CFR", String.valueOf(params.CFR));
+            config.put("output_filename", params.output_path);
+            config.put("preset", params.preset);
+            config.put("tune", params.tune);
+            if (!mRecorder.setConfigParams(config)) {
+                Log.e(TAG, "setConfigParams failed for " + mWidth + "x" + mHeight);
+                return;
+            }
+            mRecorder.prepareAsync();
+        }
+
+        private void stop() {
+            mRecorder.stop();
+        }
+
+        private IXMCameraRecorderListener onEncoderListener = new IXMCameraRecorderListener() {
+            @Override
+            public void onImageReaderPrepared() {
+            }
+
+            @Override
+            public void onRecorderPrepared() {
+                mRecorder.start();
+            }
+
+            @Override
+            public void onRecorderStarted() {
+                Log.i(TAG, "rendition " + mWidth + "x" + mHeight + " started");
+                isEncoding = true;
+            }
+
+            @Override
+            public void onRecorderStopped() {
+                Log.i(TAG, "rendition " + mWidth + "x" + mHeight + " stopped");
+                isEncoding = false;
+            }
+
+            @Override
+            public void onRecorderError() {
+                Log.e(TAG, "rendition " + mWidth + "x" + mHeight + " failed");
+                isEncoding = false;
+                mRecorder.stop();
+            }
+
+            @Override
+            public void onPreviewStarted() {
+            }
+
+            @Override
+            public void onPreviewStopped() {
+            }
+
+            @Override
+            public void onPreviewError() {
+            }
+        };
+    }
+
+    /**
+     * Adds a rendition, it is recorded from the next {@link #start} on.
+     */
+    public synchronized Rendition addRendition(int width, int height, String outputPath) {
+        Rendition rendition = new Rendition(width, height, outputPath);
+        int i = 0;
+        while (i < mRenditions.size()
+                && mRenditions.get(i).mWidth * mRenditions.get(i).mHeight >= width * height) {
+            i++;
+        }
+        mRenditions.add(i, rendition);
+        if (mInitialized) {
+            rendition.init();
+            updateScaleChain();
+        }
+        return rendition;
+    }
+
+    /**
+     * Stops and releases every rendition.
+     */
+    public synchronized void clear() {
+        for (Rendition rendition : mRenditions) {
+            rendition.stop();
+            rendition.destroy();
+            rendition.mRecorder.release();
+        }
+        mRenditions.clear();
+    }
+
+    public synchronized List<Rendition> getRenditions() {
+        return new ArrayList<Rendition>(mRenditions);
+    }
+
+    public synchronized void init() {
+        for (Rendition rendition : mRenditions) {
+            rendition.init();
+        }
+        mInitialized = true;
+        updateScaleChain();
+    }
+
+    public synchronized void destroy() {
+        for (Rendition rendition : mRenditions) {
+            rendition.destroy();
+        }
+        mInitialized = false;
+    }
+
+    /**
+     * @param width width of the texture passed to {@link #draw}
+     */
+    public synchronized void setSourceSize(int width, int height) {
+        mSourceWidth = width;
+        mSourceHeight = height;
+        updateScaleChain();
+    }
+
+    private void updateScaleChain() {
+        int width = mSourceWidth;
+        int height = mSourceHeight;
+        for (Rendition rendition : mRenditions) {
+            //与上一级大小相同时直接读取上一级的纹理
+            rendition.mNeedsScale = rendition.mWidth != width || rendition.mHeight != height;
+            width = rendition.mWidth;
+            height = rendition.mHeight;
+        }
+    }
+
+    public synchronized void start(int fps) {
+        for (Rendition rendition : mRenditions) {
+            rendition.start(fps);
+        }
+    }
+
+    public synchronized void stop() {
+        for (Rendition rendition : mRenditions) {
+            rendition.stop();
+        }
+    }
+
+    private boolean isEncoding() {
+        for (int i = 0; i < mRenditions.size(); i++) {
+            if (mRenditions.get(i).isEncoding)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param textureBuffer texture coordinates for the readback, as for the main copier
+     */
+    public synchronized void draw(int textureId, FloatBuffer cubeBuffer, FloatBuffer textureBuffer) {
+        if (!mInitialized || mRenditions.isEmpty() || !isEncoding())
+            return;
+
+        //FBO之间绘制会上下翻转,缩放时翻回来,各路方向和主录制一致
+        FloatBuffer scaleBuffer = QuadVertexBuffer.getTextureBuffer(Rotation.NORMAL, false, true);
+        int texture = textureId;
+        for (int i = 0; i < mRenditions.size(); i++) {
+            Rendition rendition = mRenditions.get(i);
+            if (rendition.mNeedsScale) {
+                texture = rendition.mScaler.onDrawToTexture(texture, cubeBuffer, scaleBuffer);
+            }
+            if (rendition.isEncoding) {
+                rendition.mCopier.onDrawToTexture(texture, cubeBuffer, textureBuffer);
+            }
+        }
+    }
+
+    public synchronized void release() {
+        clear();
+        mInitialized = false;
+    }
+}
@@ -13,17 +13,19 @@ import android.util.SparseArray;
 import android.view.SurfaceHolder;
 
 import com.xmly.media.gles.EglCore;
+import com.xmly.media.gles.FrameBufferPool;
+import com.xmly.media.gles.QuadVertexBuffer;
+import com.xmly.media.gles.RenderCommandQueue;
 import com.xmly.media.gles.WindowSurface;
 import com.xmly.media.gles.filter.GPUImageFilter;
 import com.xmly.media.gles.utils.OpenGlUtils;
+import com.xmly.media.gles.utils.ProgramCache;
 import com.xmly.media.gles.utils.Rotation;
 import com.xmly.media.gles.utils.TextureRotationUtil;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-import java.util.LinkedList;
-import java.util.Queue;
 
 /**
  * 渲染线程的基类
@@ -54,7 +56,12 @@ public class BaseRenderThread extends HandlerThread {
     protected FloatBuffer mDefaultGLTextureBuffer;
 
     //需要在egl上下文环境中运行的事件队列
-    protected final Queue<Runnable> mRunOnDraw;
+    protected final RenderCommandQueue mRunOnDraw;
+    //合并连续调用的事件key
+    protected static final String CMD_SET_FILTER = "setFilter";
+    //每帧执行事件的时间预算,超出的留到下一帧
+    protected volatile long mCommandBudgetNs = DEFAULT_COMMAND_BUDGET_NS;
+    public static final long DEFAULT_COMMAND_BUDGET_NS = 4000000L;
     //SurfaceView显示区域宽高
     protected int mOutputWidth;
     protected int mOutputHeight;
@@ -81,15 +88,8 @@ public class BaseRenderThread extends HandlerThread {
                 .asFloatBuffer();
         mGLTextureBuffer.put(TextureRotationUtil.TEXTURE_NO_ROTATION).position(0);
 
-        mDefaultGLCubeBuffer = ByteBuffer.allocateDirect(CUBE.length * 4)
-                .order(ByteOrder.nativeOrder())
-                .asFloatBuffer();
-        mDefaultGLCubeBuffer.put(CUBE).position(0);
-
-        mDefaultGLTextureBuffer = ByteBuffer.allocateDirect(TextureRotationUtil.TEXTURE_NO_ROTATION.length * 4)
-                .order(ByteOrder.nativeOrder())
-                .asFloatBuffer();
-        mDefaultGLTextureBuffer.put(TextureRotationUtil.getRotation(Rotation.ROTATION_180, true, false)).position(0);
+        mDefaultGLCubeBuffer = QuadVertexBuffer.getCubeBuffer();
+        mDefaultGLTextureBuffer = QuadVertexBuffer.getTextureBuffer(Rotation.ROTATION_180, true, false);
     }
 
     /**
@@ -111,7 +111,7 @@ public class BaseRenderThread extends HandlerThread {
             throw new IllegalStateException("OpenGL ES 2.0 is not supported on this phone.");
         }
 
-        mRunOnDraw = new LinkedList<Runnable>();
+        mRunOnDraw = new RenderCommandQueue();
         initBuffer();
     }
 
@@ -122,6 +122,9 @@ public class BaseRenderThread extends HandlerThread {
     public void onSurfaceCreated(SurfaceHolder holder) {
         synchronized (mDrawLock) {
             //释放之前的Egl
+            FrameBufferPool.getInstance().clear();
+            ProgramCache.getInstance().clear();
+            QuadVertexBuffer.getInstance().clear();
             if (mWindowSurface != null) {
                 mWindowSurface.release();
                 mWindowSurface = null;
@@ -170,6 +173,9 @@ public class BaseRenderThread extends HandlerThread {
      */
     public void onSurfaceDestroyed() {
         synchronized (mDrawLock) {
+            FrameBufferPool.getInstance().clear();
+            ProgramCache.getInstance().clear();
+            QuadVertexBuffer.getInstance().clear();
             if (mWindowSurface != null) {
                 mWindowSurface.release();
                 mWindowSurface = null;
@@ -211,6 +217,9 @@ public class BaseRenderThread extends HandlerThread {
         releaseFilters();
 
         synchronized (mDrawLock) {
+            FrameBufferPool.getInstance().clear();
+            ProgramCache.getInstance().clear();
+            QuadVertexBuffer.getInstance().clear();
             if (mTextureId != OpenGlUtils.NO_TEXTURE) {
                 GLES20.glDeleteTextures(1, new int[]{mTextureId}, 0);
                 mTextureId = OpenGlUtils.NO_TEXTURE;
@@ -339,23 +348,18 @@ public class BaseRenderThread extends HandlerThread {
      * 清除Runnable队列
      * @param queue
      */
-    protected void cleanAll(Queue<Runnable> queue) {
-        synchronized (queue) {
-            while (!queue.isEmpty()) {
-                queue.poll();
-            }
-        }
+    protected void cleanAll(RenderCommandQueue queue) {
+        queue.clear();
     }
 
     /**
      * 运行Runnable队列中的事件
      * @param queue
      */
-    protected void runAll(Queue<Runnable> queue) {
-        synchronized (queue) {
-            while (!queue.isEmpty()) {
-                queue.poll().run();
-            }
+    protected void runAll(RenderCommandQueue queue) {
+        if (queue.drain(mCommandBudgetNs)) {
+            //预算用完,剩余事件在下一帧执行
+            requestRender();
         }
     }
 
@@ -364,10 +368,26 @@ public class BaseRenderThread extends HandlerThread {
      * @param queue
      * @param runnable
      */
-    protected void runOnDraw(Queue<Runnable> queue, final Runnable runnable) {
-        synchronized (queue) {
-            queue.add(runnable);
-        }
+    protected void runOnDraw(RenderCommandQueue queue, final Runnable runnable) {
+        queue.post(runnable);
+    }
+
+    /**
+     * 添加事件到Runnable队列,只执行同一key最后添加的事件
+     * @param queue
+     * @param key
+     * @param runnable
+     */
+    protected void runOnDraw(RenderCommandQueue queue, Object key, final Runnable runnable) {
+        queue.post(key, runnable);
+    }
+
+    /**
+     * 设置每帧执行事件的时间预算
+     * @param budgetNs RenderCommandQueue.NO_BUDGET为不限制
+     */
+    public void setCommandBudget(long budgetNs) {
+        mCommandBudgetNs = budgetNs;
     }
 
     /**
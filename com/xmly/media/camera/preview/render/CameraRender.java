@@ -10,6 +10,8 @@ import android.view.SurfaceView;
 import com.xmly.media.camera.preview.CameraParam;
 import com.xmly.media.camera.preview.listener.onCameraRecorderListener;
 import com.xmly.media.camera.preview.listener.onCameraRendererListener;
+import com.xmly.media.gles.TextureTripleBuffer;
+import com.xmly.media.gles.filter.GPUImageFilterPreparer;
 import com.xmly.media.gles.utils.XMFilterType;
 
 import java.lang.ref.WeakReference;
@@ -148,6 +150,15 @@ public class CameraRender {
         }
     }
 
+    /**
+     * 新滤镜生效后在渲染线程回调
+     */
+    public void setOnFilterChangedListener(GPUImageFilterPreparer.OnFilterPreparedListener l) {
+        if (mRenderThread != null) {
+            mRenderThread.setOnFilterChangedListener(l);
+        }
+    }
+
     /**
      * 根据相机参数计算渲染参数
      */
@@ -188,6 +199,17 @@ public class CameraRender {
         return null;
     }
 
+    /**
+     * 得到与录制线程交换帧的三缓冲
+     * @return
+     */
+    public TextureTripleBuffer getFrameHandoff() {
+        if (mRenderThread != null) {
+            return mRenderThread.getFrameHandoff();
+        }
+        return null;
+    }
+
     /**
      * 得到onDrawFrame synchronized lock
      * @return
@@ -2,6 +2,7 @@ package com.xmly.media.camera.preview.render;
 
 import android.annotation.TargetApi;
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.SurfaceTexture;
 import android.opengl.GLES20;
 import android.os.Build;
@@ -11,12 +12,22 @@ import android.view.SurfaceHolder;
 import com.xmly.media.camera.preview.CameraParam;
 import com.xmly.media.camera.preview.listener.onCameraRecorderListener;
 import com.xmly.media.camera.preview.listener.onCameraRendererListener;
+import com.xmly.media.camera.preview.recorder.MultiRenditionRecorder;
+import com.xmly.media.camera.view.recorder.AdaptiveBitrateController;
+import com.xmly.media.camera.view.recorder.EncoderBackpressureController;
 import com.xmly.media.camera.view.recorder.IXMCameraRecorderListener;
+import com.xmly.media.camera.view.recorder.OnFramesDroppedListener;
 import com.xmly.media.camera.view.recorder.XMMediaRecorder;
 import com.xmly.media.camera.view.recorder.XMMediaRecorderParams;
+import com.xmly.media.gles.ComplexityProbe;
+import com.xmly.media.gles.QuadVertexBuffer;
+import com.xmly.media.gles.RenderCommandQueue;
+import com.xmly.media.gles.SnapshotReader;
+import com.xmly.media.gles.TextureTripleBuffer;
 import com.xmly.media.gles.filter.GPUImageCameraInputFilter;
 import com.xmly.media.gles.filter.GPUImageFilter;
 import com.xmly.media.gles.filter.GPUImageFilterFactory;
+import com.xmly.media.gles.filter.GPUImageFilterPreparer;
 import com.xmly.media.gles.filter.GPUImageYUY2PixelCopierFilter;
 import com.xmly.media.gles.utils.OpenGlUtils;
 import com.xmly.media.gles.utils.Rotation;
@@ -28,8 +39,7 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.concurrent.Future;
 
 /**
  * 渲染线程
@@ -59,14 +69,29 @@ public class CameraRenderThread extends BaseRenderThread {
     private boolean mFlipVertical = false;
     //渲染器状态监听
     private onCameraRendererListener mListener = null;
+    private volatile GPUImageFilterPreparer.OnFilterPreparedListener mFilterChangedListener = null;
     //相机事件队列
-    private final Queue<Runnable> mCameraRunOnDraw;
+    private final RenderCommandQueue mCameraRunOnDraw;
     //第一次渲染
     private boolean mFirstFrame = true;
     //编码器
     private XMMediaRecorder mEncoder = null;
     //编码器参数
     private XMMediaRecorderParams mEncoderParams = null;
+    //编码队列积压时的丢帧策略
+    private EncoderBackpressureController mBackpressure = null;
+    //按画面复杂度调整码率
+    private ComplexityProbe mComplexityProbe = null;
+    private volatile boolean mAdaptiveBitrate = false;
+    //额外的低分辨率录制
+    private final MultiRenditionRecorder mRenditions = new MultiRenditionRecorder();
+    //异步截图
+    private final SnapshotReader mSnapshotReader = new SnapshotReader();
+    //与录制线程交换帧的三缓冲纹理
+    private final TextureTripleBuffer mFrameHandoff = new TextureTripleBuffer();
+    //滤镜链输出大小
+    private int mFrameWidth = 0;
+    private int mFrameHeight = 0;
     //编码器监听回调
     private onCameraRecorderListener mEncoderListener = null;
     //录制状态
@@ -75,6 +100,8 @@ public class CameraRenderThread extends BaseRenderThread {
     private boolean isEncoding = false;
     //录制视频输出路径
     private String mOutputPath = null;
+    //异步准备滤镜的共享上下文线程
+    private GPUImageFilterPreparer mFilterPreparer = null;
 
     /**
      * 初始化相机纹理坐标
@@ -93,15 +120,25 @@ public class CameraRenderThread extends BaseRenderThread {
         mFilterArrays.put(RenderIndex.RotateIndex, GPUImageFilterFactory.CreateFilter(XMFilterType.NONE));
         mFilterArrays.put(RenderIndex.FilterIndex, GPUImageFilterFactory.CreateFilter(mFilterType));
         mFilterArrays.put(RenderIndex.DisplayIndex, GPUImageFilterFactory.CreateFilter(XMFilterType.NONE));
-        mFilterArrays.put(RenderIndex.DownloadIndex, new GPUImageYUY2PixelCopierFilter(mEncoder));
+        GPUImageYUY2PixelCopierFilter copier = new GPUImageYUY2PixelCopierFilter(mEncoder);
+        copier.setBackpressureController(mBackpressure);
+        mFilterArrays.put(RenderIndex.DownloadIndex, copier);
     }
 
     public CameraRenderThread(Context context, String name) {
         super(context, name);
         initBuffer();
-        mCameraRunOnDraw = new LinkedList<Runnable>();
+        mCameraRunOnDraw = new RenderCommandQueue();
         mEncoder = new XMMediaRecorder(true, false, true);
         mEncoder.setListener(onEncoderListener);
+        mEncoder.setOnFramesDroppedListener(new OnFramesDroppedListener() {
+            @Override
+            public void onFramesDropped(int droppedFrames, int totalFrames) {
+                Log.w(TAG, "onFramesDropped " + droppedFrames + "/" + totalFrames);
+            }
+        });
+        mBackpressure = new EncoderBackpressureController(mEncoder);
+        mComplexityProbe = new ComplexityProbe(new AdaptiveBitrateController(mEncoder, new XMMediaRecorderParams()));
     }
 
     /**
@@ -176,6 +213,14 @@ public class CameraRenderThread extends BaseRenderThread {
         }
     }
 
+    /**
+     * 新滤镜生效后在渲染线程回调
+     * @param l 可为null
+     */
+    public void setOnFilterChangedListener(GPUImageFilterPreparer.OnFilterPreparedListener l) {
+        mFilterChangedListener = l;
+    }
+
     /**
      * 设置相机预览状态
      * @param preview
@@ -206,6 +251,16 @@ public class CameraRenderThread extends BaseRenderThread {
 
         createFilters();
         initFilters();
+        mRenditions.init();
+        mComplexityProbe.init();
+        releaseFilterPreparer();
+        mFilterPreparer = new GPUImageFilterPreparer(getEGLContext());
+        mFilterPreparer.setListener(new GPUImageFilterPreparer.OnFilterPreparedListener() {
+            @Override
+            public void onFilterPrepared(XMFilterType type) {
+                requestRender();
+            }
+        });
         if (mListener != null) {
             mListener.onSurfaceCreated();
         }
@@ -238,6 +293,12 @@ public class CameraRenderThread extends BaseRenderThread {
     @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
     @Override
     public void onSurfaceDestroyed() {
+        releaseFilterPreparer();
+        //需要当前的EGL上下文,在父类释放上下文之前销毁
+        mRenditions.destroy();
+        mSnapshotReader.destroy();
+        mComplexityProbe.destroy();
+        mFrameHandoff.destroy();
         super.onSurfaceDestroyed();
 
         releaseFilters();
@@ -261,14 +322,18 @@ public class CameraRenderThread extends BaseRenderThread {
      * 释放
      */
     public void release() {
+        releaseFilterPreparer();
         super.release();
         if (mCameraRunOnDraw != null) {
             cleanAll(mCameraRunOnDraw);
         }
 
+        mRenditions.release();
+        mSnapshotReader.release();
         mRenderHandler = null;
         mCameraParam = null;
         mListener = null;
+        mFilterChangedListener = null;
     }
 
     /**
@@ -285,6 +350,7 @@ public class CameraRenderThread extends BaseRenderThread {
             super.onDrawFrame();
             runAll(mCameraRunOnDraw);
             runAll(mRunOnDraw);
+            swapPreparedFilter();
             //把SurfaceTexture中的帧全部刷新出
             synchronized (mSyncFrameNum) {
                 if (mSurfaceTexture != null) {
@@ -304,16 +370,27 @@ public class CameraRenderThread extends BaseRenderThread {
                 ((GPUImageCameraInputFilter) mFilterArrays.get(RenderIndex.CameraIndex)).setTextureTransformMatrix(mtx);
                 cameraTex = mFilterArrays.get(RenderIndex.CameraIndex).onDrawToTexture(mTextureId, mDefaultGLCubeBuffer, mGLCameraTextureBuffer);
             }
+            //相机输出是水平镜像的,由滤镜阶段翻转回来
+            mSnapshotReader.onStage(SnapshotReader.Stage.PRE_FILTER, cameraTex, mFrameWidth, mFrameHeight,
+                    mDefaultGLCubeBuffer, QuadVertexBuffer.getTextureBuffer(Rotation.NORMAL, true, true));
 
-            mDefaultGLTextureBuffer.put(TextureRotationUtil.getRotation(Rotation.NORMAL, true, false)).position(0);
+            mDefaultGLTextureBuffer = QuadVertexBuffer.getTextureBuffer(Rotation.NORMAL, true, false);
             if (mFilterArrays.get(RenderIndex.FilterIndex) != null) {
                 cameraTex = mFilterArrays.get(RenderIndex.FilterIndex).onDrawToTexture(cameraTex, mDefaultGLCubeBuffer, mDefaultGLTextureBuffer);
             }
+            mSnapshotReader.onStage(SnapshotReader.Stage.POST_FILTER, cameraTex, mFrameWidth, mFrameHeight,
+                    mDefaultGLCubeBuffer, QuadVertexBuffer.getTextureBuffer(Rotation.NORMAL, false, true));
 
-            mDefaultGLTextureBuffer.put(TextureRotationUtil.getRotation(Rotation.NORMAL, false, false)).position(0);
+            mDefaultGLTextureBuffer = QuadVertexBuffer.getTextureBuffer(Rotation.NORMAL, false, false);
             if (mFilterArrays.get(RenderIndex.RotateIndex) != null) {
                 cameraTex = mFilterArrays.get(RenderIndex.RotateIndex).onDrawToTexture(cameraTex, mDefaultGLCubeBuffer, mDefaultGLTextureBuffer);
             }
+            mSnapshotReader.onStage(SnapshotReader.Stage.FINAL, cameraTex, mFrameWidth, mFrameHeight,
+                    mDefaultGLCubeBuffer, QuadVertexBuffer.getTextureBuffer(Rotation.NORMAL, false, true));
+            //录制线程从三缓冲取最新一帧,不再与渲染线程抢mDrawLock
+            if (mFrameHandoff.isConsumerAttached()) {
+                mFrameHandoff.publish(cameraTex, mDefaultGLCubeBuffer, mDefaultGLTextureBuffer);
+            }
 
             if (mFilterArrays.get(RenderIndex.DisplayIndex) != null) {
                 mFilterArrays.get(RenderIndex.DisplayIndex).onDraw(cameraTex, mDefaultGLCubeBuffer, mGLTextureBuffer);
@@ -322,8 +399,18 @@ public class CameraRenderThread extends BaseRenderThread {
             }
 
             if (mFilterArrays.get(RenderIndex.DownloadIndex) != null && isEncoding) {
-                mDefaultGLTextureBuffer.put(TextureRotationUtil.getRotation(Rotation.NORMAL, false, true)).position(0);
+                mDefaultGLTextureBuffer = QuadVertexBuffer.getTextureBuffer(Rotation.NORMAL, false, true);
                 mFilterArrays.get(RenderIndex.DownloadIndex).onDrawToTexture(cameraTex, mDefaultGLCubeBuffer, mDefaultGLTextureBuffer);
+                if (mAdaptiveBitrate) {
+                    mComplexityProbe.onDraw(cameraTex, mDefaultGLCubeBuffer, mDefaultGLTextureBuffer);
+                }
+            }
+            //各路低分辨率从滤镜输出逐级缩放后读取
+            mRenditions.draw(cameraTex, mDefaultGLCubeBuffer, QuadVertexBuffer.getTextureBuffer(Rotation.NORMAL, false, true));
+            //上一帧发出的截图读取完成后交给后台线程压缩
+            mSnapshotReader.poll();
+            if (mSnapshotReader.hasPendingSnapshots()) {
+                requestRender();
             }
         }
 
@@ -345,7 +432,15 @@ public class CameraRenderThread extends BaseRenderThread {
      * @param filtertype
      */
     public void setFilter(final XMFilterType filtertype) {
-        runOnDraw(mRunOnDraw, new Runnable() {
+        synchronized (mSynOperation) {
+            if (mFilterPreparer != null) {
+                //在共享上下文线程中编译,准备好后再替换,旧滤镜继续渲染
+                mFilterPreparer.prepare(filtertype);
+                mFilterType = filtertype;
+                return;
+            }
+        }
+        runOnDraw(mRunOnDraw, CMD_SET_FILTER, new Runnable() {
             @Override
             public void run() {
                 if (mFilterArrays.get(RenderIndex.FilterIndex) != null) {
@@ -365,6 +460,50 @@ public class CameraRenderThread extends BaseRenderThread {
         mFilterType = filtertype;
     }
 
+    /**
+     * 把异步准备好的滤镜替换到FilterIndex,framebuffer不能跨上下文共享,在渲染线程中设置大小
+     */
+    private void swapPreparedFilter() {
+        GPUImageFilterPreparer.PreparedFilter prepared;
+        synchronized (mSynOperation) {
+            if (mFilterPreparer == null) {
+                return;
+            }
+            prepared = mFilterPreparer.poll();
+        }
+        if (prepared == null) {
+            return;
+        }
+
+        GPUImageFilter filter = prepared.filter;
+
+        if (mCameraParam != null) {
+            filter.onOutputSizeChanged(mCameraParam.mRecordWidth, mCameraParam.mRecordHeight);
+            filter.onInputSizeChanged(mCameraParam.mRecordWidth, mCameraParam.mRecordHeight);
+        }
+        GPUImageFilter old = mFilterArrays.get(RenderIndex.FilterIndex);
+        mFilterArrays.put(RenderIndex.FilterIndex, filter);
+        if (old != null) {
+            old.destroy();
+        }
+        GPUImageFilterPreparer.OnFilterPreparedListener l = mFilterChangedListener;
+        if (l != null) {
+            l.onFilterPrepared(prepared.type);
+        }
+    }
+
+    private void releaseFilterPreparer() {
+        GPUImageFilterPreparer preparer;
+        synchronized (mSynOperation) {
+            preparer = mFilterPreparer;
+            mFilterPreparer = null;
+        }
+        //release等待工作线程结束,回调中的requestRender需要mSynOperation,不能持锁等待
+        if (preparer != null) {
+            preparer.release();
+        }
+    }
+
     /**
      * 请求刷新
      */
@@ -432,6 +571,11 @@ public class CameraRenderThread extends BaseRenderThread {
         if (mFilterArrays.get(RenderIndex.DownloadIndex) != null) {
             mFilterArrays.get(RenderIndex.DownloadIndex).onOutputSizeChanged(param.mRecordWidth, param.mRecordHeight);
         }
+        mRenditions.setSourceSize(param.mRecordWidth, param.mRecordHeight);
+        mFrameWidth = param.mRecordWidth;
+        mFrameHeight = param.mRecordHeight;
+        //录制线程可能正在采样三缓冲,由它确认停止后才重建
+        mFrameHandoff.resize(mFrameWidth, mFrameHeight);
     }
 
     /**
@@ -462,7 +606,7 @@ public class CameraRenderThread extends BaseRenderThread {
                         .setFps(param.mPreviewFps)
                         .setOutputPath(mOutputPath)
                         .setCFR(XMMediaRecorderParams.FALSE)
-                        .setBitrate(700000 * (param.mRecordWidth*param.mRecordHeight)/(960*540))
+                        .setBitrate(XMMediaRecorderParams.getScaledBitrate(param.mRecordWidth, param.mRecordHeight))
                         .setGopsize(0.5f)
                         .setMaxBFrames(0);
                 if (isRecording) {
@@ -548,8 +692,22 @@ public class CameraRenderThread extends BaseRenderThread {
             }
 
             config.clear();
+            final AdaptiveBitrateController controller = mComplexityProbe.getController();
+            final int bitrate = params.bitrate;
+            final int crf = params.crf;
+            controller.setBounds(bitrate / 2, bitrate * 2, crf - 4, crf + 4);
+            //探测器只在渲染线程使用,和控制器一起重新开始
+            runOnDraw(mCameraRunOnDraw, new Runnable() {
+                @Override
+                public void run() {
+                    controller.reset(bitrate, crf);
+                    mComplexityProbe.reset();
+                }
+            });
+            requestRender();
             mEncoder.prepareAsync();
             isEncoding = true;
+            mRenditions.start(params.fps);
         } else {
             if (mEncoderListener != null) {
                 mEncoderListener.onRecorderError();
@@ -565,6 +723,78 @@ public class CameraRenderThread extends BaseRenderThread {
         if (mEncoder != null) {
             mEncoder.stop();
         }
+        mRenditions.stop();
+    }
+
+    /**
+     * 添加一路额外分辨率的录制,从下一次开始录制时生效
+     * 滤镜只执行一次,各路从上一级较大的分辨率缩放
+     */
+    public void addRendition(final int width, final int height, final String outputPath) {
+        runOnDraw(mCameraRunOnDraw, new Runnable() {
+            @Override
+            public void run() {
+                mRenditions.addRendition(width, height, outputPath);
+            }
+        });
+        requestRender();
+    }
+
+    /**
+     * 停止并移除所有额外分辨率的录制
+     */
+    public void clearRenditions() {
+        runOnDraw(mCameraRunOnDraw, new Runnable() {
+            @Override
+            public void run() {
+                mRenditions.clear();
+            }
+        });
+        requestRender();
+    }
+
+    /**
+     * 异步截图,在渲染线程读取,在后台线程压缩,不阻塞渲染
+     * @param stage 截取滤镜前,滤镜后或最终输出的画面
+     * @param width 截图宽度,为0时使用录制分辨率
+     * @param format PNG或JPEG
+     * @param listener 在后台线程回调,可为null
+     * @return 压缩后的图片数据
+     */
+    public Future<byte[]> takeSnapshot(SnapshotReader.Stage stage, int width, int height,
+                                       Bitmap.CompressFormat format, int quality,
+                                       SnapshotReader.OnSnapshotListener listener) {
+        Future<byte[]> future = mSnapshotReader.requestSnapshot(stage, width, height, format, quality, listener);
+        requestRender();
+        return future;
+    }
+
+    /**
+     * 按画面的运动和细节调整码率,默认在录制码率的一半到两倍之间
+     */
+    public void setAdaptiveBitrateEnabled(boolean enable) {
+        mAdaptiveBitrate = enable;
+    }
+
+    /**
+     * 调整自适应码率的范围和响应速度,在开始录制后设置
+     */
+    public AdaptiveBitrateController getAdaptiveBitrateController() {
+        return mComplexityProbe.getController();
+    }
+
+    /**
+     * 得到与录制线程交换帧的三缓冲,交给CameraRecorder.Builder.setFrameHandoff
+     */
+    public TextureTripleBuffer getFrameHandoff() {
+        return mFrameHandoff;
+    }
+
+    /**
+     * 调整编码队列积压时的丢帧策略
+     */
+    public EncoderBackpressureController getBackpressureController() {
+        return mBackpressure;
     }
 
     private IXMCameraRecorderListener onEncoderListener = new IXMCameraRecorderListener() {
@@ -585,6 +815,13 @@ public class CameraRenderThread extends BaseRenderThread {
         @Override
         public void onRecorderStarted() {
             Log.i(TAG, "onRecorderStarted");
+            //丢帧策略只在渲染线程中使用
+            runOnDraw(mCameraRunOnDraw, new Runnable() {
+                @Override
+                public void run() {
+                    mBackpressure.reset();
+                }
+            });
             if (mEncoderListener != null) {mEncoderListener.onRecorderStarted();}
         }
 
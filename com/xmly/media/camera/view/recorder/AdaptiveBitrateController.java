@@ -0,0 +1,154 @@
+package com.xmly.media.camera.view.recorder;
+
+import java.util.HashMap;
+
+/**
+ * Retunes the encoder bitrate and CRF from the complexity of the content. Motion and detail from
+ * {@link FrameComplexityAnalyzer} are smoothed and mapped linearly between the configured bounds,
+ * a new target is only sent through {@link XMMediaRecorder#setConfigParams} when it differs
+ * enough from the current one and the last change is old enough. Static shots get the lower
+ * bound, fast motion and busy filters the upper one. Pass a null recorder to use the decision
+ * logic alone, as in a unit test.
+ */
+public class AdaptiveBitrateController {
+    public static final float DEFAULT_MOTION_WEIGHT = 0.6f;
+    public static final float DEFAULT_FULL_MOTION = 0.08f;//约20级亮度的平均帧差视为满负荷
+    public static final float DEFAULT_FULL_DETAIL = 0.12f;
+    public static final float DEFAULT_SMOOTHING = 0.1f;
+    public static final float DEFAULT_HYSTERESIS = 0.15f;
+    public static final int DEFAULT_MIN_INTERVAL = 30;//两次调整之间至少间隔的采样数
+
+    private final XMMediaRecorder mRecorder;
+    private int mMinBitrate;
+    private int mMaxBitrate;
+    private int mMinCrf;
+    private int mMaxCrf;
+    private float mMotionWeight = DEFAULT_MOTION_WEIGHT;
+    private float mFullMotion = DEFAULT_FULL_MOTION;
+    private float mFullDetail = DEFAULT_FULL_DETAIL;
+    private float mSmoothing = DEFAULT_SMOOTHING;
+    private float mHysteresis = DEFAULT_HYSTERESIS;
+    private int mMinInterval = DEFAULT_MIN_INTERVAL;
+
+    private float mComplexity = -1.0f;
+    private int mBitrate;
+    private int mCrf;
+    private int mSamplesSinceChange = 0;
+    private int mChangeCount = 0;
+
+    /**
+     * Bounds of half and twice the bitrate of params, CRF 4 around its value.
+     */
+    public AdaptiveBitrateController(XMMediaRecorder recorder, XMMediaRecorderParams params) {
+        this(recorder, params.bitrate / 2, params.bitrate * 2, params.crf - 4, params.crf + 4);
+        mBitrate = params.bitrate;
+        mCrf = params.crf;
+    }
+
+    /**
+     * @param minCrf best quality, used for the most complex content
+     * @param maxCrf worst quality, used for static content
+     */
+    public AdaptiveBitrateController(XMMediaRecorder recorder, int minBitrate, int maxBitrate, int minCrf, int maxCrf) {
+        mRecorder = recorder;
+        setBounds(minBitrate, maxBitrate, minCrf, maxCrf);
+        mBitrate = (mMinBitrate + mMaxBitrate) / 2;
+        mCrf = (mMinCrf + mMaxCrf) / 2;
+    }
+
+    public synchronized void setBounds(int minBitrate, int maxBitrate, int minCrf, int maxCrf) {
+        mMinBitrate = Math.max(minBitrate, 1);
+        mMaxBitrate = Math.max(maxBitrate, mMinBitrate);
+        mMinCrf = Math.max(minCrf, 0);
+        mMaxCrf = Math.max(maxCrf, mMinCrf);
+    }
+
+    /**
+     * @param motionWeight share of motion in the complexity, the rest is detail
+     * @param fullMotion motion that counts as the most complex content
+     * @param fullDetail detail that counts as the most complex content
+     */
+    public synchronized void setWeights(float motionWeight, float fullMotion, float fullDetail) {
+        mMotionWeight = Math.max(0.0f, Math.min(motionWeight, 1.0f));
+        mFullMotion = Math.max(fullMotion, 0.001f);
+        mFullDetail = Math.max(fullDetail, 0.001f);
+    }
+
+    /**
+     * @param smoothing weight of a new sample in the moving average, 1 for none
+     * @param hysteresis relative bitrate change below which the encoder is left alone
+     * @param minInterval samples between two changes
+     */
+    public synchronized void setResponse(float smoothing, float hysteresis, int minInterval) {
+        mSmoothing = Math.max(0.01f, Math.min(smoothing, 1.0f));
+        mHysteresis = Math.max(hysteresis, 0.0f);
+        mMinInterval = Math.max(minInterval, 0);
+    }
+
+    /**
+     * Starts over from the given bitrate and CRF, call when a recording starts.
+     */
+    public synchronized void reset(int bitrate, int crf) {
+        mComplexity = -1.0f;
+        mBitrate = bitrate;
+        mCrf = crf;
+        mSamplesSinceChange = 0;
+        mChangeCount = 0;
+    }
+
+    /**
+     * @return true when a new bitrate was chosen
+     */
+    public synchronized boolean onSample(float motion, float detail) {
+        float c = mMotionWeight * Math.min(motion / mFullMotion, 1.0f)
+                + (1.0f - mMotionWeight) * Math.min(detail / mFullDetail, 1.0f);
+        mComplexity = mComplexity < 0.0f ? c : mComplexity + mSmoothing * (c - mComplexity);
+        mSamplesSinceChange++;
+
+        int bitrate = mMinBitrate + Math.round((mMaxBitrate - mMinBitrate) * mComplexity);
+        int crf = mMaxCrf - Math.round((mMaxCrf - mMinCrf) * mComplexity);
+        if (mSamplesSinceChange < mMinInterval
+                || Math.abs(bitrate - mBitrate) <= mBitrate * mHysteresis)
+            return false;
+
+        if (mRecorder != null) {
+            HashMap<String, String> config = new HashMap<String, String>();
+            config.put("bit_rate", String.valueOf(bitrate));
+            config.put("crf", String.valueOf(crf));
+            if (!mRecorder.setConfigParams(config)) {
+                //编码器不接受,等一个间隔再试,不在每个采样上重复调用
+                mSamplesSinceChange = 0;
+                return false;
+            }
+        }
+
+        mBitrate = bitrate;
+        mCrf = crf;
+        mSamplesSinceChange = 0;
+        mChangeCount++;
+        return true;
+    }
+
+    public synchronized boolean onSample(FrameComplexityAnalyzer analyzer) {
+        return onSample(analyzer.getMotion(), analyzer.getDetail());
+    }
+
+    /**
+     * @return smoothed complexity in [0, 1], negative before the first sample
+     */
+    public synchronized float getComplexity() {
+        return mComplexity;
+    }
+
+    public synchronized int getBitrate() {
+        return mBitrate;
+    }
+
+    public synchronized int getCrf() {
+        return mCrf;
+    }
+
+    public synchronized int getChangeCount() {
+        return mChangeCount;
+    }
+}
@@ -0,0 +1,187 @@
+package com.xmly.media.camera.view.recorder;
+
+import android.util.Log;
+
+/**
+ * Decides per frame whether the render thread hands a frame to the encoder, from the depth
+ * of the {@link XMMediaRecorder} input queue. The queue counts as congested once it reaches
+ * the high watermark and until it drains to the low watermark. While congested the policy
+ * picks which frames are given up, the readback of a dropped frame is skipped altogether.
+ * Dropped frames are reported through {@link OnFramesDroppedListener}
+ * when a congestion ends. All methods are called on the render thread.
+ */
+public class EncoderBackpressureController {
+    private static final String TAG = "EncoderBackpressure";
+    public static final int DEFAULT_HIGH_WATERMARK = 3;
+    public static final int DEFAULT_LOW_WATERMARK = 1;
+    public static final int DEFAULT_DECIMATION = 2;
+    private static final int MAX_STEP_LEVEL = 3;
+    private static final int STEP_INTERVAL = 15;//每多少帧调整一次降级档位
+
+    public enum Policy {
+        /** Give up the frame being rendered, nothing is read back. */
+        DROP_NEWEST,
+        /** Read the new frame back and give up the oldest one not yet sent to the encoder. */
+        DROP_OLDEST,
+        /** Keep one of every {@link #setDecimation} frames. */
+        DECIMATE,
+        /** Lower the frame rate one level at a time while congested and raise it back once drained. */
+        STEP_DOWN
+    }
+
+    /** Frame is read back and sent to the encoder. */
+    public static final int ADMIT = 0;
+    /** Frame must not be read back. */
+    public static final int DROP_NEWEST = 1;
+    /** Frame is read back, the oldest pending frame must be discarded instead. */
+    public static final int DROP_OLDEST = 2;
+
+    private final XMMediaRecorder mRecorder;
+    private volatile Policy mPolicy;
+    private volatile int mHighWatermark = DEFAULT_HIGH_WATERMARK;
+    private volatile int mLowWatermark = DEFAULT_LOW_WATERMARK;
+    private volatile int mDecimation = DEFAULT_DECIMATION;
+    private boolean mCongested = false;
+    private int mStepLevel = 0;
+    private int mFramesAtLevel = 0;
+    private long mFrameIndex = 0;
+
+    private int mTotalFrames = 0;
+    private int mDroppedFrames = 0;
+    private int mCongestionDrops = 0;
+    private int mCongestionCount = 0;
+
+    public EncoderBackpressureController(XMMediaRecorder recorder, Policy policy) {
+        mRecorder = recorder;
+        mPolicy = policy == null ? Policy.DROP_NEWEST : policy;
+    }
+
+    public EncoderBackpressureController(XMMediaRecorder recorder) {
+        this(recorder, Policy.DROP_NEWEST);
+    }
+
+    public void setPolicy(Policy policy) {
+        mPolicy = policy == null ? Policy.DROP_NEWEST : policy;
+    }
+
+    public Policy getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * @param high queue depth at which frames start being dropped
+     * @param low queue depth at which dropping stops, not above high
+     */
+    public void setWatermarks(int high, int low) {
+        mHighWatermark = Math.max(high, 1);
+        mLowWatermark = Math.max(Math.min(low, mHighWatermark), 0);
+    }
+
+    public void setDecimation(int keepOneOf) {
+        mDecimation = Math.max(keepOneOf, 1);
+    }
+
+    /**
+     * Clears the state and the statistics, call when a recording starts.
+     */
+    public void reset() {
+        mCongested = false;
+        mStepLevel = 0;
+        mFramesAtLevel = 0;
+        mFrameIndex = 0;
+        mTotalFrames = 0;
+        mDroppedFrames = 0;
+        mCongestionDrops = 0;
+        mCongestionCount = 0;
+    }
+
+    /**
+     * @return {@link #ADMIT}, {@link #DROP_NEWEST} or {@link #DROP_OLDEST}
+     */
+    public int onFrame() {
+        mTotalFrames++;
+        mFrameIndex++;
+        int queued = mRecorder.queue_sizes();
+        if (!mCongested && queued >= mHighWatermark) {
+            mCongested = true;
+            mCongestionCount++;
+            mCongestionDrops = 0;
+        } else if (mCongested && queued <= mLowWatermark) {
+            mCongested = false;
+            if (mCongestionDrops > 0) {
+                Log.i(TAG, "congestion ended, " + mCongestionDrops + " frames dropped, "
+                        + mDroppedFrames + "/" + mTotalFrames + " in total");
+                mRecorder.notifyFramesDropped(mDroppedFrames, mTotalFrames);
+            }
+        }
+
+        int decision = decide();
+        if (decision == DROP_NEWEST) {
+            onFrameDropped();
+        }
+        return decision;
+    }
+
+    /**
+     * Counts a frame given up outside {@link #onFrame}, as for {@link #DROP_OLDEST}.
+     */
+    public void onFrameDropped() {
+        mDroppedFrames++;
+        mCongestionDrops++;
+    }
+
+    private int decide() {
+        Policy policy = mPolicy;
+        if (policy == Policy.STEP_DOWN) {
+            updateStepLevel();
+            return mFrameIndex % (mStepLevel + 1) == 0 ? ADMIT : DROP_NEWEST;
+        }
+
+        if (!mCongested)
+            return ADMIT;
+
+        switch (policy) {
+            case DROP_OLDEST:
+                return DROP_OLDEST;
+            case DECIMATE:
+                return mFrameIndex % mDecimation == 0 ? ADMIT : DROP_NEWEST;
+            default:
+                return DROP_NEWEST;
+        }
+    }
+
+    private void updateStepLevel() {
+        if (++mFramesAtLevel < STEP_INTERVAL)
+            return;
+
+        mFramesAtLevel = 0;
+        if (mCongested && mStepLevel < MAX_STEP_LEVEL) {
+            mStepLevel++;
+        } else if (!mCongested && mStepLevel > 0) {
+            mStepLevel--;
+        }
+    }
+
+    public boolean isCongested() {
+        return mCongested;
+    }
+
+    /**
+     * @return how many frames are skipped between two encoded ones by {@link Policy#STEP_DOWN}
+     */
+    public int getStepLevel() {
+        return mStepLevel;
+    }
+
+    public int getTotalFrameCount() {
+        return mTotalFrames;
+    }
+
+    public int getDroppedFrameCount() {
+        return mDroppedFrames;
+    }
+
+    public int getCongestionCount() {
+        return mCongestionCount;
+    }
+}
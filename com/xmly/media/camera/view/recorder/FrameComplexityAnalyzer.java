@@ -0,0 +1,112 @@
+package com.xmly.media.camera.view.recorder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Measures how hard a frame is to encode from a small RGBA copy of it, 64x36 is plenty.
+ * Motion is the mean absolute luma difference to the previous frame, detail the mean gradient
+ * energy |dx| + |dy| of the luma. Both are normalized to [0, 1].
+ * Plain Java without GL, so it runs the same on the render thread and in a unit test.
+ */
+public class FrameComplexityAnalyzer {
+    private static final int PIXEL_STRIDE = 4;
+    private int mWidth = 0;
+    private int mHeight = 0;
+    private int[] mLuma = null;
+    private int[] mPrevLuma = null;
+    private boolean mHasPrevious = false;
+    private float mMotion = 0.0f;
+    private float mDetail = 0.0f;
+    private long mFrameCount = 0;
+
+    /**
+     * Forgets the previous frame, the next frame reports no motion.
+     */
+    public void reset() {
+        mHasPrevious = false;
+        mMotion = 0.0f;
+        mDetail = 0.0f;
+        mFrameCount = 0;
+    }
+
+    /**
+     * @param rgba frame read from its position, left unchanged
+     * @param rowStride bytes per row, at least width * 4
+     */
+    public void analyze(ByteBuffer rgba, int width, int height, int rowStride) {
+        if (width <= 0 || height <= 0 || rowStride < width * PIXEL_STRIDE)
+            throw new IllegalArgumentException("bad frame " + width + "x" + height + " stride " + rowStride);
+
+        if (width != mWidth || height != mHeight) {
+            mWidth = width;
+            mHeight = height;
+            mLuma = new int[width * height];
+            mPrevLuma = new int[width * height];
+            mHasPrevious = false;
+        }
+
+        int base = rgba.position();
+        int[] luma = mLuma;
+        for (int y = 0; y < height; y++) {
+            int src = base + y * rowStride;
+            int dst = y * width;
+            for (int x = 0; x < width; x++, src += PIXEL_STRIDE) {
+                int r = rgba.get(src) & 0xff;
+                int g = rgba.get(src + 1) & 0xff;
+                int b = rgba.get(src + 2) & 0xff;
+                //BT.601整数近似
+                luma[dst + x] = (77 * r + 150 * g + 29 * b) >> 8;
+            }
+        }
+
+        //两个方向之和最大为510
+        mDetail = gradientEnergy(luma, width, height) / 510.0f;
+        mMotion = mHasPrevious ? meanAbsDiff(luma, mPrevLuma) / 255.0f : 0.0f;
+
+        mLuma = mPrevLuma;
+        mPrevLuma = luma;
+        mHasPrevious = true;
+        mFrameCount++;
+    }
+
+    private static float meanAbsDiff(int[] a, int[] b) {
+        long sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += Math.abs(a[i] - b[i]);
+        }
+        return (float) sum / a.length;
+    }
+
+    private static float gradientEnergy(int[] luma, int width, int height) {
+        if (width < 2 || height < 2)
+            return 0.0f;
+
+        long sum = 0;
+        for (int y = 0; y < height - 1; y++) {
+            int row = y * width;
+            for (int x = 0; x < width - 1; x++) {
+                int p = luma[row + x];
+                sum += Math.abs(luma[row + x + 1] - p) + Math.abs(luma[row + width + x] - p);
+            }
+        }
+        return (float) sum / ((width - 1) * (height - 1));
+    }
+
+    /**
+     * @return mean absolute luma difference to the previous frame, 0 for the first frame
+     */
+    public float getMotion() {
+        return mMotion;
+    }
+
+    /**
+     * @return mean gradient energy of the last frame
+     */
+    public float getDetail() {
+        return mDetail;
+    }
+
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+}
@@ -0,0 +1,10 @@
+package com.xmly.media.camera.view.recorder;
+
+/**
+ * Optional listener of {@link XMMediaRecorder} for frames given up by an
+ * {@link EncoderBackpressureController}, called on the recorder event thread.
+ */
+public interface OnFramesDroppedListener {
+    //编码队列积压时丢弃的帧数和送入编码前的总帧数
+    void onFramesDropped(int droppedFrames, int totalFrames);
+}
@@ -22,6 +22,7 @@ public class XMMediaRecorder {
     private static boolean mIsLibLoaded = false;
     private EventHandler mEventHandler;
     private IXMCameraRecorderListener mListener = null;
+    private OnFramesDroppedListener mFramesDroppedListener = null;
     @AccessedByNative
     private long mNativeXMMediaRecorder = 0;
     private boolean mUseSoftEncoder = false;
@@ -34,6 +35,8 @@ public class XMMediaRecorder {
     private static final int RECORDER_COMPLETED = 2;
     private static final int RECORDER_ERROR = 100;
     private static final int RECORDER_INFO = 200;
+    //java层发出的消息,native不会使用
+    private static final int RECORDER_FRAMES_DROPPED = 300;
 
     private static final int MR_MSG_ERROR = 100;
     private static final int MR_MSG_STARTED = 200;
@@ -117,6 +120,13 @@ public class XMMediaRecorder {
         mListener = l;
     }
 
+    /**
+     * @param l called on the event thread with the statistics of {@link #notifyFramesDropped}
+     */
+    public void setOnFramesDroppedListener(OnFramesDroppedListener l) {
+        mFramesDroppedListener = l;
+    }
+
     public void prepareAsync() {
         _prepareAsync();
     }
@@ -133,6 +143,7 @@ public class XMMediaRecorder {
         _release();
         mEventHandler = null;
         mListener = null;
+        mFramesDroppedListener = null;
         mRecorder = null;
     }
 
@@ -140,6 +151,16 @@ public class XMMediaRecorder {
         return _queue_sizes();
     }
 
+    /**
+     * Posts the dropped frame statistics to the listener on the event thread.
+     */
+    public void notifyFramesDropped(int droppedFrames, int totalFrames) {
+        if (mEventHandler != null) {
+            Message m = mEventHandler.obtainMessage(RECORDER_FRAMES_DROPPED, droppedFrames, totalFrames);
+            mEventHandler.sendMessage(m);
+        }
+    }
+
     public void put(byte[] data, int w, int h, int pixelStride, int rowPadding,
                     int rotate_degrees, boolean flipHorizontal, boolean flipVertical) {
         if(data != null && w > 0 && h > 0)
@@ -197,6 +218,11 @@ public class XMMediaRecorder {
             mListener.onRecorderError();
     }
 
+    private final void onRecorderFramesDropped(int droppedFrames, int totalFrames) {
+        if(mFramesDroppedListener != null)
+            mFramesDroppedListener.onFramesDropped(droppedFrames, totalFrames);
+    }
+
     private static class EventHandler extends Handler {
         private final WeakReference<XMMediaRecorder> mWeakRecoder;
 
@@ -232,6 +258,9 @@ public class XMMediaRecorder {
                     Log.i(TAG, "RECORDER_ERROR");
                     recoder.onRecorderError();
                     return;
+                case RECORDER_FRAMES_DROPPED:
+                    recoder.onRecorderFramesDropped(msg.arg1, msg.arg2);
+                    return;
                 default:
                     Log.i(TAG, "Unknown message type " + msg.what);
             }
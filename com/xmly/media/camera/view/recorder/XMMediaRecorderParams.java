@@ -23,6 +23,13 @@ public class XMMediaRecorderParams {
     public XMMediaRecorderParams() {
     }
 
+    /**
+     * The default bitrate, 700kbps at 960x540 and proportional to the pixel count.
+     */
+    public static int getScaledBitrate(int width, int height) {
+        return (int) (700000L * width * height / (960 * 540));
+    }
+
     public XMMediaRecorderParams setSize(int w, int h) {
         width = w;
         height = h;
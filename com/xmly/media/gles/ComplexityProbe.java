@@ -0,0 +1,143 @@
+package com.xmly.media.gles;
+
+import android.annotation.TargetApi;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+
+import com.xmly.media.camera.view.recorder.AdaptiveBitrateController;
+import com.xmly.media.camera.view.recorder.FrameComplexityAnalyzer;
+import com.xmly.media.gles.filter.GPUImageFilter;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Feeds an {@link AdaptiveBitrateController} from the rendered frames. Every few frames the
+ * texture is downscaled to 64x36 on the GPU and read into one of two pixel pack buffers, the
+ * other buffer is analyzed once its fence has signalled, so the frame never waits for the
+ * readback. Called on the GL thread only.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class ComplexityProbe {
+    public static final int WIDTH = 64;
+    public static final int HEIGHT = 36;
+    public static final int DEFAULT_INTERVAL = 3;
+    private static final int PIXEL_STRIDE = 4;
+    private static final int SIZE = WIDTH * HEIGHT * PIXEL_STRIDE;
+
+    private final FrameComplexityAnalyzer mAnalyzer = new FrameComplexityAnalyzer();
+    private final AdaptiveBitrateController mController;
+    private ScaleFilter mScaler = null;
+    private final int[] mPbo = new int[2];
+    private final long[] mFence = new long[2];
+    private int mIndex = 0;
+    private int mFrames = 0;
+    private volatile int mInterval = DEFAULT_INTERVAL;
+
+    private static class ScaleFilter extends GPUImageFilter {
+        int getFrameBuffer() {
+            return mFrameBuffers == null ? 0 : mFrameBuffers[0];
+        }
+    }
+
+    public ComplexityProbe(AdaptiveBitrateController controller) {
+        mController = controller;
+    }
+
+    public AdaptiveBitrateController getController() {
+        return mController;
+    }
+
+    public FrameComplexityAnalyzer getAnalyzer() {
+        return mAnalyzer;
+    }
+
+    /**
+     * @param interval sample one of this many frames
+     */
+    public void setInterval(int interval) {
+        mInterval = Math.max(interval, 1);
+    }
+
+    public void init() {
+        mScaler = new ScaleFilter();
+        mScaler.init();
+        mScaler.onOutputSizeChanged(WIDTH, HEIGHT);
+        GLES30.glGenBuffers(2, mPbo, 0);
+        for (int i = 0; i < mPbo.length; i++) {
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPbo[i]);
+            GLES30.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, SIZE, null, GLES30.GL_STREAM_READ);
+        }
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        reset();
+    }
+
+    /**
+     * Starts over without a previous frame, call when a recording starts.
+     */
+    public void reset() {
+        mAnalyzer.reset();
+        mFrames = 0;
+    }
+
+    /**
+     * @param textureBuffer texture coordinates of the readback, as for the copiers
+     */
+    public void onDraw(int textureId, FloatBuffer cubeBuffer, FloatBuffer textureBuffer) {
+        if (mScaler == null || ++mFrames % mInterval != 0)
+            return;
+
+        //先分析上一次发出的读取,GPU未完成时跳过这一次采样
+        int prev = mIndex ^ 1;
+        if (mFence[prev] != 0) {
+            int status = GLES30.glClientWaitSync(mFence[prev], 0, 0);
+            if (status == GLES30.GL_TIMEOUT_EXPIRED)
+                return;
+            GLES30.glDeleteSync(mFence[prev]);
+            mFence[prev] = 0;
+            if (status != GLES30.GL_WAIT_FAILED) {
+                analyze(mPbo[prev]);
+            }
+        }
+
+        mScaler.onDrawToTexture(textureId, cubeBuffer, textureBuffer);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mScaler.getFrameBuffer());
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPbo[mIndex]);
+        GLES30.glPixelStorei(GLES30.GL_PACK_ALIGNMENT, PIXEL_STRIDE);
+        GLES30.glReadPixels(0, 0, WIDTH, HEIGHT, GLES30.GL_RGBA, GLES30.GL_UNSIGNED_BYTE, 0);
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        mFence[mIndex] = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        mIndex = prev;
+    }
+
+    private void analyze(int pbo) {
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pbo);
+        ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER, 0, SIZE, GLES30.GL_MAP_READ_BIT);
+        if (mapped != null) {
+            mAnalyzer.analyze(mapped, WIDTH, HEIGHT, WIDTH * PIXEL_STRIDE);
+            GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+            mController.onSample(mAnalyzer);
+        }
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+    }
+
+    public void destroy() {
+        for (int i = 0; i < mFence.length; i++) {
+            if (mFence[i] != 0) {
+                GLES30.glDeleteSync(mFence[i]);
+                mFence[i] = 0;
+            }
+        }
+        if (mPbo[0] != 0) {
+            GLES30.glDeleteBuffers(2, mPbo, 0);
+            mPbo[0] = 0;
+            mPbo[1] = 0;
+        }
+        if (mScaler != null) {
+            mScaler.destroy();
+            mScaler = null;
+        }
+    }
+}
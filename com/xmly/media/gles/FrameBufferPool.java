@@ -0,0 +1,188 @@
+package com.xmly.media.gles;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Pool of framebuffer/texture pairs keyed by (width, height, format).
+ * Framebuffer objects are not shared between EGL contexts, so every GL thread gets its own pool
+ * through {@link #getInstance()}. Released targets are kept for reuse and the least recently
+ * released ones are deleted once the pool holds more than {@link #setMaxBytes} bytes.
+ */
+public class FrameBufferPool {
+    private static final String TAG = "FrameBufferPool";
+    public static final int DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+
+    private static final ThreadLocal<FrameBufferPool> sPools = new ThreadLocal<FrameBufferPool>() {
+        @Override
+        protected FrameBufferPool initialValue() {
+            return new FrameBufferPool();
+        }
+    };
+
+    //按释放先后排序,队首最久未使用
+    private final ArrayList<RenderTarget> mFreeTargets = new ArrayList<RenderTarget>();
+    private long mMaxBytes = DEFAULT_MAX_BYTES;
+    private long mTotalBytes = 0;
+    private long mInUseBytes = 0;
+    private long mPeakBytes = 0;
+    private int mGeneration = 0;
+
+    /**
+     * @return the pool of the calling GL thread
+     */
+    public static FrameBufferPool getInstance() {
+        return sPools.get();
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        mMaxBytes = maxBytes;
+        trimToSize(mMaxBytes);
+    }
+
+    /**
+     * Returns a free target of the given size, creating one if none can be reused.
+     * Must be called on the GL thread that owns this pool.
+     */
+    public synchronized RenderTarget acquire(int width, int height, int format) {
+        for (int i = mFreeTargets.size() - 1; i >= 0; i--) {
+            RenderTarget target = mFreeTargets.get(i);
+            if (target.width == width && target.height == height && target.format == format) {
+                mFreeTargets.remove(i);
+                target.mInUse = true;
+                mInUseBytes += target.getBytes();
+                resetTextureParameters(target.texture);
+                return target;
+            }
+        }
+
+        RenderTarget target = createTarget(width, height, format);
+        target.mInUse = true;
+        mTotalBytes += target.getBytes();
+        mInUseBytes += target.getBytes();
+        mPeakBytes = Math.max(mPeakBytes, mTotalBytes);
+        trimToSize(mMaxBytes);
+        return target;
+    }
+
+    /**
+     * Gives a target back to its pool, the target must not be used by the caller afterwards.
+     */
+    public static void release(RenderTarget target) {
+        if (target != null && target.mPool != null) {
+            target.mPool.recycle(target);
+        }
+    }
+
+    private synchronized void recycle(RenderTarget target) {
+        if (!target.mInUse)
+            return;
+        target.mInUse = false;
+        if (target.mGeneration != mGeneration) {
+            //上下文已经销毁,id不再有效
+            return;
+        }
+        mInUseBytes -= target.getBytes();
+        mFreeTargets.add(target);
+        trimToSize(mMaxBytes);
+    }
+
+    /**
+     * Deletes least recently released targets until the pool is below maxBytes.
+     */
+    public synchronized void trimToSize(long maxBytes) {
+        while (mTotalBytes > maxBytes && !mFreeTargets.isEmpty()) {
+            RenderTarget target = mFreeTargets.remove(0);
+            deleteTarget(target);
+            mTotalBytes -= target.getBytes();
+        }
+    }
+
+    /**
+     * Deletes the free targets and forgets the ones still in use. Call with the old context
+     * current before it is destroyed, or right after a new context was created.
+     */
+    public synchronized void clear() {
+        trimToSize(0);
+        mGeneration++;
+        mTotalBytes = 0;
+        mInUseBytes = 0;
+    }
+
+    public synchronized long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    public synchronized long getInUseBytes() {
+        return mInUseBytes;
+    }
+
+    public synchronized long getPeakBytes() {
+        return mPeakBytes;
+    }
+
+    private RenderTarget createTarget(int width, int height, int format) {
+        int[] frameBuffers = new int[1];
+        int[] textures = new int[1];
+        GLES20.glGenFramebuffers(1, frameBuffers, 0);
+        GLES20.glGenTextures(1, textures, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, format, width, height, 0,
+                format, GLES20.GL_UNSIGNED_BYTE, null);
+        resetTextureParameters(textures[0]);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBuffers[0]);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, textures[0], 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        Log.d(TAG, "create target " + width + "x" + height + ", pool bytes " + (mTotalBytes + (long) width * height * 4));
+        return new RenderTarget(this, frameBuffers[0], textures[0], width, height, format, mGeneration);
+    }
+
+    private void deleteTarget(RenderTarget target) {
+        GLES20.glDeleteTextures(1, new int[]{target.texture}, 0);
+        GLES20.glDeleteFramebuffers(1, new int[]{target.frameBuffer}, 0);
+    }
+
+    //滤镜可能改过采样参数,复用前恢复默认值
+    private static void resetTextureParameters(int texture) {
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+    }
+
+    public static final class RenderTarget {
+        public final int frameBuffer;
+        public final int texture;
+        public final int width;
+        public final int height;
+        public final int format;
+        private final FrameBufferPool mPool;
+        private final int mGeneration;
+        private boolean mInUse = false;
+
+        private RenderTarget(FrameBufferPool pool, int frameBuffer, int texture,
+                             int width, int height, int format, int generation) {
+            mPool = pool;
+            this.frameBuffer = frameBuffer;
+            this.texture = texture;
+            this.width = width;
+            this.height = height;
+            this.format = format;
+            mGeneration = generation;
+        }
+
+        public long getBytes() {
+            return (long) width * height * 4;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.xmly.media.gles;
+
+import android.opengl.GLES20;
+
+import com.xmly.media.gles.utils.Rotation;
+import com.xmly.media.gles.utils.TextureRotationUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.IdentityHashMap;
+
+/**
+ * The full screen quad and its texture coordinates for every rotation/flip combination,
+ * uploaded once into a vertex buffer object per GL thread.
+ * Filters handed one of the shared buffers from {@link #getCubeBuffer()} or
+ * {@link #getTextureBuffer} point their attributes into the VBO instead of uploading the
+ * client array on every draw. The shared buffers must not be written to.
+ */
+public class QuadVertexBuffer {
+    private static final String TAG = "QuadVertexBuffer";
+    private static final int FLOATS_PER_QUAD = 8;
+
+    private static final FloatBuffer sCubeBuffer;
+    private static final FloatBuffer[] sTextureBuffers = new FloatBuffer[TextureRotationUtil.ROTATION_COUNT];
+    //共享buffer在VBO中的字节偏移
+    private static final IdentityHashMap<FloatBuffer, Integer> sOffsets = new IdentityHashMap<FloatBuffer, Integer>();
+    private static final float[] sVertices = new float[(TextureRotationUtil.ROTATION_COUNT + 1) * FLOATS_PER_QUAD];
+
+    static {
+        sCubeBuffer = put(0, TextureRotationUtil.CUBE);
+        for (int i = 0; i < TextureRotationUtil.ROTATION_COUNT; i++) {
+            sTextureBuffers[i] = put(i + 1, TextureRotationUtil.getRotation(i));
+        }
+    }
+
+    private static final ThreadLocal<QuadVertexBuffer> sBuffers = new ThreadLocal<QuadVertexBuffer>() {
+        @Override
+        protected QuadVertexBuffer initialValue() {
+            return new QuadVertexBuffer();
+        }
+    };
+
+    private int mBuffer = 0;
+
+    private static FloatBuffer put(int slot, float[] quad) {
+        System.arraycopy(quad, 0, sVertices, slot * FLOATS_PER_QUAD, FLOATS_PER_QUAD);
+        FloatBuffer buffer = ByteBuffer.allocateDirect(FLOATS_PER_QUAD * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        buffer.put(quad).position(0);
+        sOffsets.put(buffer, slot * FLOATS_PER_QUAD * 4);
+        return buffer;
+    }
+
+    /**
+     * @return the VBO of the calling GL thread
+     */
+    public static QuadVertexBuffer getInstance() {
+        return sBuffers.get();
+    }
+
+    public static FloatBuffer getCubeBuffer() {
+        return sCubeBuffer;
+    }
+
+    public static FloatBuffer getTextureBuffer(Rotation rotation, boolean flipHorizontal, boolean flipVertical) {
+        return sTextureBuffers[TextureRotationUtil.getRotationIndex(rotation, flipHorizontal, flipVertical)];
+    }
+
+    /**
+     * Points a vec2 attribute at buffer, through the VBO if buffer is one of the shared buffers.
+     */
+    public void setVertexAttribPointer(int location, FloatBuffer buffer) {
+        Integer offset = sOffsets.get(buffer);
+        if (offset == null) {
+            buffer.position(0);
+            GLES20.glVertexAttribPointer(location, 2, GLES20.GL_FLOAT, false, 0, buffer);
+            return;
+        }
+
+        if (mBuffer == 0) {
+            upload();
+        }
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBuffer);
+        GLES20.glVertexAttribPointer(location, 2, GLES20.GL_FLOAT, false, 0, offset);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    }
+
+    /**
+     * Deletes the VBO, it is uploaded again on next use. Call with the old context current before
+     * it is destroyed, or right after a new context was created.
+     */
+    public void clear() {
+        if (mBuffer != 0) {
+            GLES20.glDeleteBuffers(1, new int[]{mBuffer}, 0);
+            mBuffer = 0;
+        }
+    }
+
+    private void upload() {
+        int[] buffers = new int[1];
+        GLES20.glGenBuffers(1, buffers, 0);
+        FloatBuffer data = ByteBuffer.allocateDirect(sVertices.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        data.put(sVertices).position(0);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffers[0]);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, sVertices.length * 4, data, GLES20.GL_STATIC_DRAW);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        mBuffer = buffers[0];
+    }
+}
@@ -0,0 +1,143 @@
+package com.xmly.media.gles;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Commands posted by any number of threads and run by the render thread, in posting order.
+ * Posting never blocks, it is one atomic exchange on the tail of a linked list. A command posted
+ * with a key replaces the pending command of the same key, only the latest one runs, so a burst
+ * of slider driven setFilter calls builds one filter. {@link #drain(long)} stops once its time
+ * budget is used up and leaves the rest for the next frame. Only draining and clearing share a
+ * monitor, so a clear from another thread waits for the render thread but a post never does.
+ */
+public class RenderCommandQueue {
+    /** Budget of {@link #drain(long)} that runs every pending command. */
+    public static final long NO_BUDGET = 0;
+
+    private static final class Node {
+        final Runnable mCommand;
+        final Object mKey;
+        volatile Node mNext;
+
+        Node(Runnable command, Object key) {
+            mCommand = command;
+            mKey = key;
+        }
+    }
+
+    //消费者持有head,生产者交换tail
+    private Node mHead;
+    private final AtomicReference<Node> mTail;
+    //每个key最新提交的命令,更早的同key命令出队时跳过
+    private final ConcurrentHashMap<Object, Node> mLatest = new ConcurrentHashMap<Object, Node>();
+    private final AtomicLong mPosted = new AtomicLong(0);
+    private final AtomicLong mCoalesced = new AtomicLong(0);
+    private long mDeferred = 0;
+
+    public RenderCommandQueue() {
+        Node stub = new Node(null, null);
+        mHead = stub;
+        mTail = new AtomicReference<Node>(stub);
+    }
+
+    /**
+     * Adds a command, from any thread.
+     */
+    public void post(Runnable command) {
+        post(null, command);
+    }
+
+    /**
+     * Adds a command that supersedes the pending command with an equal key, from any thread.
+     * @param key null for a command that always runs
+     */
+    public void post(Object key, Runnable command) {
+        if (command == null)
+            return;
+
+        Node node = new Node(command, key);
+        if (key != null) {
+            mLatest.put(key, node);
+        }
+        Node prev = mTail.getAndSet(node);
+        //在这之前消费者看不到node,最多晚一帧执行
+        prev.mNext = node;
+        mPosted.incrementAndGet();
+    }
+
+    /**
+     * Runs every pending command, on the render thread.
+     */
+    public void drainAll() {
+        drain(NO_BUDGET);
+    }
+
+    /**
+     * Runs pending commands until the queue is empty or budgetNs has passed, on the render
+     * thread. At least one command runs per call, so a slow command can not starve the queue.
+     * @param budgetNs {@link #NO_BUDGET} for no limit
+     * @return true when commands are left for the next call
+     */
+    public synchronized boolean drain(long budgetNs) {
+        long start = budgetNs > 0 ? System.nanoTime() : 0;
+        boolean ran = false;
+        Node next;
+        while ((next = mHead.mNext) != null) {
+            if (ran && budgetNs > 0 && System.nanoTime() - start >= budgetNs) {
+                mDeferred++;
+                return true;
+            }
+
+            mHead = next;
+            Runnable command = next.mCommand;
+            Object key = next.mKey;
+            if (key != null && !mLatest.remove(key, next)) {
+                mCoalesced.incrementAndGet();
+                continue;
+            }
+            command.run();
+            ran = true;
+        }
+        return false;
+    }
+
+    /**
+     * Drops every pending command, from any thread. Waits for a running drain, never for posts.
+     */
+    public synchronized void clear() {
+        Node next;
+        while ((next = mHead.mNext) != null) {
+            mHead = next;
+            if (next.mKey != null) {
+                mLatest.remove(next.mKey, next);
+            }
+        }
+    }
+
+    /**
+     * @return true when no posted command is visible to the consumer
+     */
+    public synchronized boolean isEmpty() {
+        return mHead.mNext == null;
+    }
+
+    public long getPostedCount() {
+        return mPosted.get();
+    }
+
+    /**
+     * @return commands skipped because a newer one with the same key was posted
+     */
+    public long getCoalescedCount() {
+        return mCoalesced.get();
+    }
+
+    /**
+     * @return drains that ran out of budget
+     */
+    public synchronized long getDeferredCount() {
+        return mDeferred;
+    }
+}
@@ -0,0 +1,315 @@
+package com.xmly.media.gles;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.util.Log;
+
+import com.xmly.media.gles.filter.GPUImageFilter;
+import com.xmly.media.gles.utils.OpenGlUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Takes snapshots of a render chain without stalling it. A request is scaled to its size and read
+ * into a pixel pack buffer when its stage is drawn, the buffer is copied out once its fence has
+ * signalled on a later frame, and the image is compressed on a background executor.
+ * {@link #requestSnapshot} may be called from any thread, everything else on the GL thread.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class SnapshotReader {
+    private static final String TAG = "SnapshotReader";
+    private static final int PIXEL_STRIDE = 4;
+
+    public enum Stage {
+        /** The input frame before the effect filter. */
+        PRE_FILTER,
+        /** The output of the effect filter. */
+        POST_FILTER,
+        /** The frame as sent to the display and the encoder. */
+        FINAL
+    }
+
+    public interface OnSnapshotListener {
+        /**
+         * Called on the executor thread with the compressed image.
+         */
+        void onSnapshotTaken(byte[] data, int width, int height);
+
+        /**
+         * Called on the executor or the GL thread.
+         */
+        void onSnapshotFailed();
+    }
+
+    private final ExecutorService mExecutor;
+    private final boolean mOwnsExecutor;
+    private final ConcurrentLinkedQueue<Request> mPending = new ConcurrentLinkedQueue<Request>();
+    private final List<Request> mInFlight = new ArrayList<Request>();
+
+    private static class ScaleFilter extends GPUImageFilter {
+        int getFrameBuffer() {
+            return mFrameBuffers == null ? 0 : mFrameBuffers[0];
+        }
+    }
+
+    private static class Request extends FutureTask<byte[]> {
+        final Stage mStage;
+        final Bitmap.CompressFormat mFormat;
+        final int mQuality;
+        final OnSnapshotListener mListener;
+        int mWidth;
+        int mHeight;
+        ScaleFilter mScaler = null;
+        int mPbo = 0;
+        long mFence = 0;
+        ByteBuffer mPixels = null;
+
+        Request(Stage stage, int width, int height, Bitmap.CompressFormat format, int quality,
+                OnSnapshotListener listener, final Encoder encoder) {
+            super(encoder);
+            encoder.mRequest = this;
+            mStage = stage;
+            mWidth = width;
+            mHeight = height;
+            mFormat = format;
+            mQuality = quality;
+            mListener = listener;
+        }
+
+        void fail() {
+            setException(new IllegalStateException("snapshot was not taken"));
+        }
+
+        @Override
+        protected void done() {
+            if (mListener == null || isCancelled())
+                return;
+            try {
+                byte[] data = get();
+                mListener.onSnapshotTaken(data, mWidth, mHeight);
+            } catch (InterruptedException e) {
+                mListener.onSnapshotFailed();
+            } catch (ExecutionException e) {
+                mListener.onSnapshotFailed();
+            }
+        }
+    }
+
+    private static class Encoder implements Callable<byte[]> {
+        Request mRequest;
+
+        @Override
+        public byte[] call() throws Exception {
+            Request r = mRequest;
+            Bitmap bitmap = Bitmap.createBitmap(r.mWidth, r.mHeight, Bitmap.Config.ARGB_8888);
+            try {
+                bitmap.copyPixelsFromBuffer(r.mPixels);
+                r.mPixels = null;
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                if (!bitmap.compress(r.mFormat, r.mQuality, out))
+                    throw new IllegalStateException("compress failed");
+                return out.toByteArray();
+            } finally {
+                bitmap.recycle();
+            }
+        }
+    }
+
+    public SnapshotReader() {
+        this(Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, TAG);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        }), true);
+    }
+
+    /**
+     * @param executor runs the compression, it is not shut down by {@link #release()}
+     */
+    public SnapshotReader(ExecutorService executor) {
+        this(executor, false);
+    }
+
+    private SnapshotReader(ExecutorService executor, boolean ownsExecutor) {
+        mExecutor = executor;
+        mOwnsExecutor = ownsExecutor;
+    }
+
+    /**
+     * @param width width of the snapshot, 0 for the size of the stage
+     * @param format PNG, or JPEG with quality
+     * @param listener may be null when the future is used
+     * @return the compressed image, cancelling it drops the request
+     */
+    public Future<byte[]> requestSnapshot(Stage stage, int width, int height,
+                                          Bitmap.CompressFormat format, int quality,
+                                          OnSnapshotListener listener) {
+        Request request = new Request(stage, width, height, format, quality, listener, new Encoder());
+        mPending.add(request);
+        return request;
+    }
+
+    /**
+     * @return true while snapshots are waiting for a stage or a fence, keep drawing frames until false
+     */
+    public boolean hasPendingSnapshots() {
+        return !mPending.isEmpty() || !mInFlight.isEmpty();
+    }
+
+    /**
+     * Issues the readback of the requests for stage, call after the stage was drawn.
+     * @param textureBuffer texture coordinates that draw the stage upright and top row first
+     */
+    public void onStage(Stage stage, int textureId, int width, int height,
+                        FloatBuffer cubeBuffer, FloatBuffer textureBuffer) {
+        if (mPending.isEmpty() || textureId == OpenGlUtils.NO_TEXTURE || width <= 0 || height <= 0)
+            return;
+
+        Iterator<Request> it = mPending.iterator();
+        while (it.hasNext()) {
+            Request request = it.next();
+            if (request.isCancelled()) {
+                it.remove();
+                continue;
+            }
+            if (request.mStage != stage)
+                continue;
+
+            it.remove();
+            if (request.mWidth <= 0 || request.mHeight <= 0) {
+                request.mWidth = width;
+                request.mHeight = height;
+            }
+            readBack(request, textureId, cubeBuffer, textureBuffer);
+        }
+    }
+
+    private void readBack(Request request, int textureId, FloatBuffer cubeBuffer, FloatBuffer textureBuffer) {
+        int width = request.mWidth;
+        int height = request.mHeight;
+        request.mScaler = new ScaleFilter();
+        request.mScaler.init();
+        request.mScaler.onOutputSizeChanged(width, height);
+        request.mScaler.onDrawToTexture(textureId, cubeBuffer, textureBuffer);
+
+        int[] pbo = new int[1];
+        GLES30.glGenBuffers(1, pbo, 0);
+        request.mPbo = pbo[0];
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, request.mPbo);
+        GLES30.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, width * height * PIXEL_STRIDE, null, GLES30.GL_STREAM_READ);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, request.mScaler.getFrameBuffer());
+        GLES30.glPixelStorei(GLES30.GL_PACK_ALIGNMENT, PIXEL_STRIDE);
+        GLES30.glReadPixels(0, 0, width, height, GLES30.GL_RGBA, GLES30.GL_UNSIGNED_BYTE, 0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        request.mFence = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        mInFlight.add(request);
+    }
+
+    /**
+     * Copies out the readbacks that have completed, call once per frame. Never waits for the GPU.
+     */
+    public void poll() {
+        for (int i = mInFlight.size() - 1; i >= 0; i--) {
+            Request request = mInFlight.get(i);
+            int status = GLES30.glClientWaitSync(request.mFence, GLES30.GL_SYNC_FLUSH_COMMANDS_BIT, 0);
+            if (status == GLES30.GL_TIMEOUT_EXPIRED)
+                continue;
+
+            mInFlight.remove(i);
+            if (status != GLES30.GL_WAIT_FAILED && !request.isCancelled()) {
+                int size = request.mWidth * request.mHeight * PIXEL_STRIDE;
+                GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, request.mPbo);
+                ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER, 0, size, GLES30.GL_MAP_READ_BIT);
+                if (mapped != null) {
+                    request.mPixels = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+                    request.mPixels.put(mapped).position(0);
+                    GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+                }
+                GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+            }
+            releaseGL(request);
+            if (request.mPixels != null) {
+                mExecutor.execute(request);
+            } else if (!request.isCancelled()) {
+                Log.e(TAG, "snapshot readback failed");
+                request.fail();
+            }
+        }
+    }
+
+    private void releaseGL(Request request) {
+        if (request.mFence != 0) {
+            GLES30.glDeleteSync(request.mFence);
+            request.mFence = 0;
+        }
+        if (request.mPbo != 0) {
+            GLES30.glDeleteBuffers(1, new int[]{request.mPbo}, 0);
+            request.mPbo = 0;
+        }
+        if (request.mScaler != null) {
+            request.mScaler.destroy();
+            request.mScaler = null;
+        }
+    }
+
+    /**
+     * Fails the snapshots in flight and frees their GL objects, call before the context goes away.
+     * Requests still waiting for their stage are kept for the next context.
+     */
+    public void destroy() {
+        for (Request request : mInFlight) {
+            releaseGL(request);
+            request.fail();
+        }
+        mInFlight.clear();
+    }
+
+    /**
+     * Fails the snapshots in flight without touching GL, call when the context was lost and
+     * a new one was created, their objects went away with the old context.
+     */
+    public void onContextLost() {
+        for (Request request : mInFlight) {
+            request.mFence = 0;
+            request.mPbo = 0;
+            request.mScaler = null;
+            request.fail();
+        }
+        mInFlight.clear();
+    }
+
+    /**
+     * Fails every snapshot, then shuts down the executor if it was created by this reader.
+     */
+    public void release() {
+        destroy();
+        Request request;
+        while ((request = mPending.poll()) != null) {
+            request.fail();
+        }
+        if (mOwnsExecutor) {
+            mExecutor.shutdown();
+        }
+    }
+}
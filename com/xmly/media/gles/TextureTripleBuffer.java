@@ -0,0 +1,291 @@
+package com.xmly.media.gles;
+
+import android.annotation.TargetApi;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.util.Log;
+
+import com.xmly.media.gles.filter.GPUImageFilter;
+import com.xmly.media.gles.utils.OpenGlUtils;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands the latest rendered frame from one GL thread to another without a shared lock. Three
+ * textures are created in the producer context and sampled from a consumer context sharing it.
+ * The producer renders into its back slot, fences it and swaps it with the ready slot, the
+ * consumer swaps the ready slot with its front slot and waits on the fence on the GPU. Neither
+ * side ever blocks on the other, a frame published twice before the consumer took it is
+ * counted as overwritten. Slots return to the producer with a fence over the consumer's reads.
+ * A resize while a consumer is attached is a handshake: the producer stops publishing, the
+ * consumer parks on its next {@link #acquire()} after its reads finished, and only then does the
+ * producer recreate the textures and resume.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class TextureTripleBuffer {
+    private static final String TAG = "TextureTripleBuffer";
+    private static final int SLOTS = 3;
+    private static final int INDEX_MASK = 0x3;
+    private static final int FRESH = 0x4;//就绪槽位有未被取走的新帧
+    private static final int STATE_RUNNING = 0;
+    private static final int STATE_RESIZE_REQUESTED = 1;//生产者等待消费者停止采样
+    private static final int STATE_CONSUMER_PARKED = 2;//消费者已停止,生产者可以重建纹理
+
+    private final int[] mTextures = new int[SLOTS];
+    private final int[] mFrameBuffers = new int[SLOTS];
+    //写完成和读完成的fence,经过mReady的原子交换在两个线程间传递
+    private final long[] mWriteFence = new long[SLOTS];
+    private final long[] mReadFence = new long[SLOTS];
+    private final AtomicInteger mReady = new AtomicInteger(0);
+    private final AtomicInteger mState = new AtomicInteger(STATE_RUNNING);
+    private int mPendingWidth = 0;
+    private int mPendingHeight = 0;
+    private final AtomicLong mPublished = new AtomicLong(0);
+    private final AtomicLong mConsumed = new AtomicLong(0);
+    private final AtomicLong mOverwritten = new AtomicLong(0);
+    private volatile boolean mConsumerAttached = false;
+    private volatile int mWidth = 0;
+    private volatile int mHeight = 0;
+    private BlitFilter mBlit = null;
+    //生产者持有的槽位
+    private int mBack = 1;
+    //消费者持有的槽位
+    private int mFront = 2;
+
+    private static class BlitFilter extends GPUImageFilter {
+        void setViewportSize(int width, int height) {
+            mOutputWidth = width;
+            mOutputHeight = height;
+        }
+    }
+
+    /**
+     * Creates the textures at the given size, on the producer thread while no consumer is attached.
+     * Use {@link #resize(int, int)} when a consumer may be attached.
+     */
+    public void init(int width, int height) {
+        destroy();
+        create(width, height);
+    }
+
+    /**
+     * Changes the size on the producer thread. The textures are recreated by the next
+     * {@link #publish}, once a consumer that may be sampling them has parked.
+     */
+    public void resize(int width, int height) {
+        boolean pending = mState.get() != STATE_RUNNING;
+        if (pending ? (width == mPendingWidth && height == mPendingHeight)
+                : (isInitialized() && width == mWidth && height == mHeight))
+            return;
+
+        mPendingWidth = width;
+        mPendingHeight = height;
+        if (mConsumerAttached) {
+            mState.compareAndSet(STATE_RUNNING, STATE_RESIZE_REQUESTED);
+        } else {
+            //没有消费者在采样,下一次publish直接重建
+            mState.compareAndSet(STATE_RUNNING, STATE_CONSUMER_PARKED);
+        }
+    }
+
+    /**
+     * Recreates the textures once the consumer parked.
+     * @return true when frames can be published
+     */
+    private boolean applyPendingResize() {
+        int state = mState.get();
+        if (state == STATE_RUNNING)
+            return true;
+        if (state == STATE_RESIZE_REQUESTED)
+            return false;
+
+        releaseGLES();
+        create(mPendingWidth, mPendingHeight);
+        mState.set(STATE_RUNNING);
+        return true;
+    }
+
+    private void create(int width, int height) {
+        GLES20.glGenTextures(SLOTS, mTextures, 0);
+        GLES20.glGenFramebuffers(SLOTS, mFrameBuffers, 0);
+        for (int i = 0; i < SLOTS; i++) {
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextures[i]);
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                    GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffers[i]);
+            GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                    GLES20.GL_TEXTURE_2D, mTextures[i], 0);
+        }
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+
+        mBlit = new BlitFilter();
+        mBlit.init();
+        mBlit.setViewportSize(width, height);
+        mReady.set(0);
+        mBack = 1;
+        mFront = 2;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    public boolean isInitialized() {
+        return mBlit != null;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * The producer only copies frames while a consumer is attached.
+     */
+    public void setConsumerAttached(boolean attached) {
+        mConsumerAttached = attached;
+    }
+
+    public boolean isConsumerAttached() {
+        return mConsumerAttached;
+    }
+
+    /**
+     * Copies textureId into the back slot and makes it the newest frame, on the producer thread.
+     */
+    public void publish(int textureId, FloatBuffer cubeBuffer, FloatBuffer textureBuffer) {
+        if (!applyPendingResize() || mBlit == null || textureId == OpenGlUtils.NO_TEXTURE)
+            return;
+
+        int slot = mBack;
+        //消费者对这个槽位的采样完成之前不能覆盖
+        if (mReadFence[slot] != 0) {
+            GLES30.glWaitSync(mReadFence[slot], 0, GLES30.GL_TIMEOUT_IGNORED);
+            GLES30.glDeleteSync(mReadFence[slot]);
+            mReadFence[slot] = 0;
+        }
+        if (mWriteFence[slot] != 0) {
+            GLES30.glDeleteSync(mWriteFence[slot]);
+            mWriteFence[slot] = 0;
+        }
+
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffers[slot]);
+        mBlit.onDraw(textureId, cubeBuffer, textureBuffer);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        mWriteFence[slot] = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        //fence要在另一个上下文可见,先提交到GPU
+        GLES20.glFlush();
+
+        int previous = mReady.getAndSet(slot | FRESH);
+        if ((previous & FRESH) != 0) {
+            mOverwritten.incrementAndGet();
+        }
+        mBack = previous & INDEX_MASK;
+        mPublished.incrementAndGet();
+    }
+
+    /**
+     * Takes the newest frame, on the consumer thread. Later GL commands of the consumer wait for
+     * the producer to finish rendering it, the calling thread does not.
+     * @return the texture, or {@link OpenGlUtils#NO_TEXTURE} when nothing new was published
+     */
+    public int acquire() {
+        int state = mState.get();
+        if (state == STATE_RESIZE_REQUESTED) {
+            //等自己对纹理的读取全部完成再让生产者重建
+            GLES20.glFinish();
+            mState.compareAndSet(STATE_RESIZE_REQUESTED, STATE_CONSUMER_PARKED);
+            return OpenGlUtils.NO_TEXTURE;
+        }
+        if (state == STATE_CONSUMER_PARKED || mWidth == 0 || (mReady.get() & FRESH) == 0)
+            return OpenGlUtils.NO_TEXTURE;
+
+        int previous = mReady.getAndSet(mFront);
+        mFront = previous & INDEX_MASK;
+        if (mWriteFence[mFront] != 0) {
+            GLES30.glWaitSync(mWriteFence[mFront], 0, GLES30.GL_TIMEOUT_IGNORED);
+        }
+        mConsumed.incrementAndGet();
+        return mTextures[mFront];
+    }
+
+    /**
+     * Marks the end of the consumer's reads of the texture from {@link #acquire()}.
+     */
+    public void releaseFront() {
+        if (mReadFence[mFront] != 0) {
+            GLES30.glDeleteSync(mReadFence[mFront]);
+        }
+        mReadFence[mFront] = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        GLES20.glFlush();
+    }
+
+    public long getPublishedCount() {
+        return mPublished.get();
+    }
+
+    public long getConsumedCount() {
+        return mConsumed.get();
+    }
+
+    /**
+     * @return frames replaced by a newer one before the consumer took them
+     */
+    public long getOverwrittenCount() {
+        return mOverwritten.get();
+    }
+
+    public void resetCounters() {
+        mPublished.set(0);
+        mConsumed.set(0);
+        mOverwritten.set(0);
+    }
+
+    /**
+     * Deletes the textures and fences, on the producer thread once the consumer has detached.
+     */
+    public void destroy() {
+        if (mConsumerAttached) {
+            Log.w(TAG, "destroyed while a consumer is attached");
+        }
+        releaseGLES();
+        mState.set(STATE_RUNNING);
+    }
+
+    private void releaseGLES() {
+        for (int i = 0; i < SLOTS; i++) {
+            if (mWriteFence[i] != 0) {
+                GLES30.glDeleteSync(mWriteFence[i]);
+                mWriteFence[i] = 0;
+            }
+            if (mReadFence[i] != 0) {
+                GLES30.glDeleteSync(mReadFence[i]);
+                mReadFence[i] = 0;
+            }
+        }
+        if (mTextures[0] != 0) {
+            GLES20.glDeleteFramebuffers(SLOTS, mFrameBuffers, 0);
+            GLES20.glDeleteTextures(SLOTS, mTextures, 0);
+            for (int i = 0; i < SLOTS; i++) {
+                mTextures[i] = 0;
+                mFrameBuffers[i] = 0;
+            }
+        }
+        if (mBlit != null) {
+            mBlit.destroy();
+            mBlit = null;
+        }
+        mReady.set(0);
+        mWidth = 0;
+        mHeight = 0;
+    }
+}
@@ -0,0 +1,118 @@
+package com.xmly.media.gles.capture;
+
+import com.xmly.media.gles.sink.FrameFormat;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Maps a file written by {@link FrameCaptureWriter} read only. Frames are numbered from 0 for the
+ * oldest one still in the file, {@link #getFrame} returns a view of the mapping without copying.
+ */
+public class FrameCaptureReader implements Closeable {
+    private final RandomAccessFile mRandomAccessFile;
+    private final MappedByteBuffer mBuffer;
+    private final int mFormat;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFrameSize;
+    private final int mCapacity;
+    private final int mSlotSize;
+    private final long mFirstFrame;
+    private final int mFrameCount;
+
+    public FrameCaptureReader(File file) throws IOException {
+        mRandomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = mRandomAccessFile.getChannel();
+            if (channel.size() < FrameCaptureWriter.HEADER_SIZE)
+                throw new IOException(file + " is not a frame capture");
+
+            mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (mBuffer.getInt(FrameCaptureWriter.OFFSET_MAGIC) != FrameCaptureWriter.MAGIC)
+                throw new IOException(file + " is not a frame capture");
+            int version = mBuffer.getInt(FrameCaptureWriter.OFFSET_VERSION);
+            if (version != FrameCaptureWriter.VERSION)
+                throw new IOException("unsupported capture version " + version);
+
+            mFormat = mBuffer.getInt(FrameCaptureWriter.OFFSET_FORMAT);
+            mWidth = mBuffer.getInt(FrameCaptureWriter.OFFSET_WIDTH);
+            mHeight = mBuffer.getInt(FrameCaptureWriter.OFFSET_HEIGHT);
+            mFrameSize = mBuffer.getInt(FrameCaptureWriter.OFFSET_FRAME_SIZE);
+            mCapacity = mBuffer.getInt(FrameCaptureWriter.OFFSET_CAPACITY);
+            mSlotSize = mBuffer.getInt(FrameCaptureWriter.OFFSET_SLOT_SIZE);
+            if (mFrameSize != FrameFormat.getFrameSize(mFormat, mWidth, mHeight)
+                    || mSlotSize != FrameCaptureWriter.getSlotSize(mFrameSize)
+                    || FrameCaptureWriter.HEADER_SIZE + (long) mSlotSize * mCapacity > channel.size())
+                throw new IOException(file + " is truncated or corrupt");
+
+            long written = mBuffer.getLong(FrameCaptureWriter.OFFSET_FRAME_COUNT);
+            mFrameCount = (int) Math.min(written, mCapacity);
+            mFirstFrame = written - mFrameCount;
+        } catch (IOException e) {
+            mRandomAccessFile.close();
+            throw e;
+        }
+    }
+
+    public int getFormat() {
+        return mFormat;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getFrameSize() {
+        return mFrameSize;
+    }
+
+    /**
+     * Rows of the frames returned by {@link #getFrame} are packed, this is the row stride to pass on.
+     */
+    public int getRowStride() {
+        return FrameFormat.getRowBytes(mFormat, mWidth);
+    }
+
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    private int getSlotOffset(int index) {
+        if (index < 0 || index >= mFrameCount)
+            throw new IndexOutOfBoundsException("frame " + index + " of " + mFrameCount);
+        int slot = (int) ((mFirstFrame + index) % mCapacity);
+        return FrameCaptureWriter.HEADER_SIZE + slot * mSlotSize;
+    }
+
+    public long getPresentationTime(int index) {
+        return mBuffer.getLong(getSlotOffset(index));
+    }
+
+    /**
+     * @return a read only view of the frame in the mapping, valid until {@link #close()}
+     */
+    public ByteBuffer getFrame(int index) {
+        int offset = getSlotOffset(index) + FrameCaptureWriter.PTS_SIZE;
+        ByteBuffer frame = mBuffer.duplicate();
+        frame.limit(offset + mFrameSize);
+        frame.position(offset);
+        return frame.slice().asReadOnlyBuffer();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mRandomAccessFile.close();
+    }
+}
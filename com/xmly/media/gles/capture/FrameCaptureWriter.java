@@ -0,0 +1,166 @@
+package com.xmly.media.gles.capture;
+
+import android.util.Log;
+
+import com.xmly.media.gles.sink.FrameFormat;
+import com.xmly.media.gles.sink.FrameSink;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records frames with their timestamps into a capture file that {@link FrameCaptureReader} reads
+ * back. The file is preallocated for a fixed number of frames and mapped once, frames are written
+ * as a ring so the file always holds the most recent ones. Rows are copied from the mapped readback
+ * straight into the mapped file.
+ * <p>
+ * Layout, little endian: a {@link #HEADER_SIZE} byte header followed by capacity slots of
+ * slot size bytes, each slot is the timestamp in microseconds as a long followed by the frame
+ * without row padding. The frame counter in the header is updated after the slot is written.
+ */
+public class FrameCaptureWriter implements FrameSink {
+    private static final String TAG = "FrameCaptureWriter";
+    static final int MAGIC = 0x43464d58;//"XMFC"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int OFFSET_MAGIC = 0;
+    static final int OFFSET_VERSION = 4;
+    static final int OFFSET_FORMAT = 8;
+    static final int OFFSET_WIDTH = 12;
+    static final int OFFSET_HEIGHT = 16;
+    static final int OFFSET_FRAME_SIZE = 20;
+    static final int OFFSET_CAPACITY = 24;
+    static final int OFFSET_SLOT_SIZE = 28;
+    static final int OFFSET_FRAME_COUNT = 32;
+    static final int PTS_SIZE = 8;
+
+    private final File mFile;
+    private final int mCapacity;
+    private RandomAccessFile mRandomAccessFile = null;
+    private FileChannel mChannel = null;
+    private MappedByteBuffer mBuffer = null;
+    private int mFormat;
+    private int mWidth;
+    private int mHeight;
+    private int mFrameSize;
+    private int mSlotSize;
+    private long mFrameCount = 0;
+    private boolean mFailed = false;
+
+    /**
+     * @param capacity frames kept in the file, older frames are overwritten
+     */
+    public FrameCaptureWriter(File file, int capacity) {
+        mFile = file;
+        mCapacity = Math.max(capacity, 1);
+    }
+
+    static int getSlotSize(int frameSize) {
+        return (PTS_SIZE + frameSize + 7) & ~7;
+    }
+
+    private void open(int format, int width, int height) throws IOException {
+        mFormat = format;
+        mWidth = width;
+        mHeight = height;
+        mFrameSize = FrameFormat.getFrameSize(format, width, height);
+        mSlotSize = getSlotSize(mFrameSize);
+        long length = HEADER_SIZE + (long) mSlotSize * mCapacity;
+        if (length > Integer.MAX_VALUE)
+            throw new IOException("capture of " + length + " bytes can not be mapped");
+
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        mRandomAccessFile.setLength(0);
+        mRandomAccessFile.setLength(length);
+        mChannel = mRandomAccessFile.getChannel();
+        mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        mBuffer.putInt(OFFSET_MAGIC, MAGIC);
+        mBuffer.putInt(OFFSET_VERSION, VERSION);
+        mBuffer.putInt(OFFSET_FORMAT, format);
+        mBuffer.putInt(OFFSET_WIDTH, width);
+        mBuffer.putInt(OFFSET_HEIGHT, height);
+        mBuffer.putInt(OFFSET_FRAME_SIZE, mFrameSize);
+        mBuffer.putInt(OFFSET_CAPACITY, mCapacity);
+        mBuffer.putInt(OFFSET_SLOT_SIZE, mSlotSize);
+        mBuffer.putLong(OFFSET_FRAME_COUNT, 0);
+        mFrameCount = 0;
+        Log.i(TAG, "capturing " + FrameFormat.getName(format) + " " + width + "x" + height
+                + ", " + mCapacity + " frames to " + mFile);
+    }
+
+    @Override
+    public void onFrame(ByteBuffer frame, int format, int width, int height, int rowStride, long ptsUs) {
+        if (mFailed)
+            return;
+
+        if (mBuffer == null) {
+            try {
+                open(format, width, height);
+            } catch (IOException e) {
+                Log.e(TAG, "open " + mFile + " failed", e);
+                mFailed = true;
+                closeQuietly();
+                return;
+            }
+        } else if (format != mFormat || width != mWidth || height != mHeight) {
+            Log.w(TAG, "frame format changed, frame dropped");
+            return;
+        }
+
+        int slot = (int) (mFrameCount % mCapacity);
+        int offset = HEADER_SIZE + slot * mSlotSize;
+        mBuffer.putLong(offset, ptsUs);
+        mBuffer.position(offset + PTS_SIZE);
+        int rowBytes = FrameFormat.getRowBytes(format, width);
+        int rows = FrameFormat.getRows(format, height);
+        ByteBuffer src = frame.duplicate();
+        for (int row = 0; row < rows; row++) {
+            src.limit(row * rowStride + rowBytes);
+            src.position(row * rowStride);
+            mBuffer.put(src);
+        }
+        mFrameCount++;
+        mBuffer.putLong(OFFSET_FRAME_COUNT, mFrameCount);
+    }
+
+    /**
+     * @return frames written, including the ones already overwritten
+     */
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    private void closeQuietly() {
+        try {
+            if (mChannel != null) {
+                mChannel.close();
+            }
+            if (mRandomAccessFile != null) {
+                mRandomAccessFile.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        mBuffer = null;
+        mChannel = null;
+        mRandomAccessFile = null;
+    }
+
+    @Override
+    public void release() {
+        if (mBuffer != null) {
+            mBuffer.force();
+        }
+        closeQuietly();
+    }
+}
@@ -0,0 +1,126 @@
+package com.xmly.media.gles.capture;
+
+import android.util.Log;
+
+import com.xmly.media.gles.sink.FrameSink;
+import com.xmly.media.gles.utils.FramePacer;
+
+/**
+ * Plays the frames of a capture into a {@link FrameSink} on its own thread, e.g. a
+ * {@link com.xmly.media.gles.sink.NativeRecorderFrameSink} to re-encode with other recorder
+ * settings, YUV captures are converted to RGBA there, or a {@link com.xmly.media.gles.sink.RingFrameSink} a GL thread uploads from.
+ * Timestamps are rebased so the replay starts at 0 and keeps increasing across loops.
+ * With a speed of 0 frames are delivered as fast as the sink takes them.
+ */
+public class FrameReplaySource implements Runnable {
+    private static final String TAG = "FrameReplaySource";
+    private final FrameCaptureReader mReader;
+    private final FrameSink mSink;
+    private volatile float mSpeed = 0.0f;
+    private volatile int mLoops = 1;
+    private volatile boolean mStopRequested = false;
+    private Thread mThread = null;
+    private OnReplayListener mListener = null;
+    private long mFramesDelivered = 0;
+    private final FramePacer mPacer = new FramePacer();
+
+    public interface OnReplayListener {
+        /**
+         * Called on the replay thread after the last frame or when the replay was stopped.
+         */
+        void onReplayCompleted(long framesDelivered);
+    }
+
+    public FrameReplaySource(FrameCaptureReader reader, FrameSink sink) {
+        mReader = reader;
+        mSink = sink;
+    }
+
+    /**
+     * @param speed 1 replays at the captured rate, 4 four times faster, 0 without pacing.
+     *              Paced speeds are clamped to the range of {@link FramePacer}.
+     */
+    public void setSpeed(float speed) {
+        mSpeed = Math.max(speed, 0.0f);
+    }
+
+    public void setLoopCount(int loops) {
+        mLoops = Math.max(loops, 1);
+    }
+
+    public void setListener(OnReplayListener l) {
+        mListener = l;
+    }
+
+    public synchronized void start() {
+        if (mThread != null)
+            return;
+
+        mStopRequested = false;
+        mThread = new Thread(this, TAG);
+        mThread.start();
+    }
+
+    /**
+     * Stops the replay and waits for the thread to end.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+            mStopRequested = true;
+        }
+        if (thread == null || thread == Thread.currentThread())
+            return;
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public long getFramesDelivered() {
+        return mFramesDelivered;
+    }
+
+    @Override
+    public void run() {
+        int count = mReader.getFrameCount();
+        if (count > 0) {
+            long firstPts = mReader.getPresentationTime(0);
+            //每轮的时长,多加一帧的间隔让下一轮的第一帧不与上一轮的最后一帧重叠
+            long loopDuration = mReader.getPresentationTime(count - 1) - firstPts;
+            if (count > 1) {
+                loopDuration += loopDuration / (count - 1);
+            }
+            mPacer.reset();
+            for (int loop = 0; loop < mLoops && !mStopRequested; loop++) {
+                for (int i = 0; i < count && !mStopRequested; i++) {
+                    long ptsUs = mReader.getPresentationTime(i) - firstPts + loop * loopDuration;
+                    waitUntil(ptsUs);
+                    mSink.onFrame(mReader.getFrame(i), mReader.getFormat(), mReader.getWidth(),
+                            mReader.getHeight(), mReader.getRowStride(), ptsUs);
+                    mFramesDelivered++;
+                }
+            }
+        }
+
+        Log.i(TAG, "replay finished, " + mFramesDelivered + " frames");
+        synchronized (this) {
+            mThread = null;
+        }
+        if (mListener != null) {
+            mListener.onReplayCompleted(mFramesDelivered);
+        }
+    }
+
+    private void waitUntil(long ptsUs) {
+        float speed = mSpeed;
+        if (speed <= 0.0f)
+            return;
+
+        mPacer.setSpeed(speed);
+        mPacer.awaitPresentation(ptsUs);
+    }
+}
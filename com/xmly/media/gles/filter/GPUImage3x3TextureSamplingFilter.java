@@ -117,4 +117,8 @@ public class GPUImage3x3TextureSamplingFilter extends GPUImageFilter {
         setFloat(mUniformTexelWidthLocation, mTexelWidth);
         setFloat(mUniformTexelHeightLocation, mTexelHeight);
     }
+
+    public float getLineSize() {
+        return mLineSize;
+    }
 }
@@ -43,7 +43,7 @@ public class GPUImageBeautyFilter extends GPUImageFilter {
     }
 
     private void setTexelSize(final float w, final float h) {
-        setFloatVec2(mSingleStepOffsetLocation, new float[] {2.0f / w, 2.0f / h});
+        setFloatVec2(mSingleStepOffsetLocation, 2.0f / w, 2.0f / h);
     }
 
     @Override
@@ -53,6 +53,7 @@ public class GPUImageBeautyFilter extends GPUImageFilter {
     }
 
     public void setBeautyLevel(int level){
+        beauty_level = level;
         switch (level) {
             case 1:
                 setFloat(mParamsLocation, 1.0f);
@@ -77,4 +78,8 @@ public class GPUImageBeautyFilter extends GPUImageFilter {
     public void onBeautyLevelChanged() {
         setBeautyLevel(GPUImageParams.beautyLevel);
     }
+
+    public int getBeautyLevel() {
+        return beauty_level;
+    }
 }
\ No newline at end of file
@@ -21,7 +21,7 @@ import android.opengl.GLES20;
 /**
  * brightness value ranges from -1.0 to 1.0, with 0.0 as the normal level
  */
-public class GPUImageBrightnessFilter extends GPUImageFilter {
+public class GPUImageBrightnessFilter extends GPUImageFilter implements GPUImageFusableFilter {
     public static final String BRIGHTNESS_FRAGMENT_SHADER = "" +
             "varying highp vec2 textureCoordinate;\n" +
             " \n" +
@@ -52,6 +52,7 @@ public class GPUImageBrightnessFilter extends GPUImageFilter {
 
     private int mBrightnessLocation;
     private float mBrightness;
+    private final boolean mFusable;
 
     public GPUImageBrightnessFilter() {
         this(0.0f);
@@ -64,6 +65,7 @@ public class GPUImageBrightnessFilter extends GPUImageFilter {
     public GPUImageBrightnessFilter(final float brightness, final String f_shader) {
         super(NO_FILTER_VERTEX_SHADER, f_shader);
         mBrightness = brightness;
+        mFusable = BRIGHTNESS_FRAGMENT_SHADER.equals(f_shader);
     }
 
     @Override
@@ -82,4 +84,28 @@ public class GPUImageBrightnessFilter extends GPUImageFilter {
         mBrightness = brightness;
         setFloat(mBrightnessLocation, mBrightness);
     }
+
+    public float getBrightness() {
+        return mBrightness;
+    }
+
+    @Override
+    public boolean isFusable() {
+        return mFusable;
+    }
+
+    @Override
+    public String getFusionShader(String prefix) {
+        return "uniform lowp float " + prefix + "brightness;\n" +
+                "lowp vec4 " + prefix + "apply(lowp vec4 color)\n" +
+                "{\n" +
+                "    return vec4((color.rgb + vec3(" + prefix + "brightness)), color.w);\n" +
+                "}\n";
+    }
+
+    @Override
+    public void onFusionInit(int program, String prefix) {
+        mBrightnessLocation = GLES20.glGetUniformLocation(program, prefix + "brightness");
+        setBrightness(mBrightness);
+    }
 }
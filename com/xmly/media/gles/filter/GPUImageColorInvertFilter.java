@@ -19,7 +19,7 @@ package com.xmly.media.gles.filter;
 /**
  * Invert all the colors in the image.
  */
-public class GPUImageColorInvertFilter extends GPUImageFilter {
+public class GPUImageColorInvertFilter extends GPUImageFilter implements GPUImageFusableFilter {
     public static final String COLOR_INVERT_FRAGMENT_SHADER = "" +
             "varying highp vec2 textureCoordinate;\n" +
             "\n" +
@@ -35,4 +35,21 @@ public class GPUImageColorInvertFilter extends GPUImageFilter {
     public GPUImageColorInvertFilter() {
         super(NO_FILTER_VERTEX_SHADER, COLOR_INVERT_FRAGMENT_SHADER);
     }
+
+    @Override
+    public boolean isFusable() {
+        return true;
+    }
+
+    @Override
+    public String getFusionShader(String prefix) {
+        return "lowp vec4 " + prefix + "apply(lowp vec4 color)\n" +
+                "{\n" +
+                "    return vec4((1.0 - color.rgb), color.w);\n" +
+                "}\n";
+    }
+
+    @Override
+    public void onFusionInit(int program, String prefix) {
+    }
 }
@@ -21,7 +21,7 @@ import android.opengl.GLES20;
 /**
  * Applies a ColorMatrix to the image.
  */
-public class GPUImageColorMatrixFilter extends GPUImageFilter {
+public class GPUImageColorMatrixFilter extends GPUImageFilter implements GPUImageFusableFilter {
     public static final String COLOR_MATRIX_FRAGMENT_SHADER = "" +
             "varying highp vec2 textureCoordinate;\n" +
             "\n" +
@@ -81,4 +81,36 @@ public class GPUImageColorMatrixFilter extends GPUImageFilter {
         mColorMatrix = colorMatrix;
         setUniformMatrix4f(mColorMatrixLocation, colorMatrix);
     }
+
+    public float getIntensity() {
+        return mIntensity;
+    }
+
+    public float[] getColorMatrix() {
+        return mColorMatrix;
+    }
+
+    @Override
+    public boolean isFusable() {
+        return true;
+    }
+
+    @Override
+    public String getFusionShader(String prefix) {
+        return "uniform lowp mat4 " + prefix + "colorMatrix;\n" +
+                "uniform lowp float " + prefix + "intensity;\n" +
+                "lowp vec4 " + prefix + "apply(lowp vec4 color)\n" +
+                "{\n" +
+                "    lowp vec4 outputColor = color * " + prefix + "colorMatrix;\n" +
+                "    return (" + prefix + "intensity * outputColor) + ((1.0 - " + prefix + "intensity) * color);\n" +
+                "}\n";
+    }
+
+    @Override
+    public void onFusionInit(int program, String prefix) {
+        mColorMatrixLocation = GLES20.glGetUniformLocation(program, prefix + "colorMatrix");
+        mIntensityLocation = GLES20.glGetUniformLocation(program, prefix + "intensity");
+        setIntensity(mIntensity);
+        setColorMatrix(mColorMatrix);
+    }
 }
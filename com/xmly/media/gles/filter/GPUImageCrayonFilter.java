@@ -33,7 +33,7 @@ public class GPUImageCrayonFilter extends GPUImageFilter {
     }
 
     private void setTexelSize(final float w, final float h) {
-		setFloatVec2(mSingleStepOffsetLocation, new float[] {1.0f / w, 1.0f / h});
+		setFloatVec2(mSingleStepOffsetLocation, 1.0f / w, 1.0f / h);
 	}
 
     public void onInputSizeChanged(final int width, final int height) {
@@ -127,4 +127,12 @@ public class GPUImageCrosshatchFilter extends GPUImageFilter {
         mLineWidth = lineWidth;
         setFloat(mLineWidthLocation, mLineWidth);
     }
+
+    public float getCrossHatchSpacing() {
+        return mCrossHatchSpacing;
+    }
+
+    public float getLineWidth() {
+        return mLineWidth;
+    }
 }
@@ -66,13 +66,7 @@ public class GPUImageFadeInOutFilter extends GPUImageImageSwitchFilter {
     protected void onDrawArraysPre() {
         super.onDrawArraysPre();
         if (mInputTexture2 != OpenGlUtils.NO_TEXTURE) {
-            if (mOffset < 1.0f) {
-                mOffset += 0.05f;
-            } else if (!mSwitchCompleted) {
-                if (mListener != null) mListener.onImageSwitchCompleted();
-                mSwitchCompleted = true;
-                mOffset = 1.0f;
-            }
+            mOffset = updateTransition();
         }
 
         GLES20.glUniform1f(mGLOffset, mOffset);
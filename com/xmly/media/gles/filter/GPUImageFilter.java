@@ -21,11 +21,13 @@ import android.content.res.AssetManager;
 import android.graphics.PointF;
 import android.opengl.GLES20;
 
+import com.xmly.media.gles.FrameBufferPool;
+import com.xmly.media.gles.QuadVertexBuffer;
+import com.xmly.media.gles.RenderCommandQueue;
 import com.xmly.media.gles.utils.OpenGlUtils;
 
 import java.io.InputStream;
 import java.nio.FloatBuffer;
-import java.util.LinkedList;
 
 public class GPUImageFilter {
     private static final String TAG = "GPUImageFilter";
@@ -61,7 +63,8 @@ public class GPUImageFilter {
             "     gl_FragColor = texture2D(inputImageTexture, textureCoordinate);\n" +
             "}";
 
-    private final LinkedList<Runnable> mRunOnDraw;
+    private final RenderCommandQueue mRunOnDraw;
+    private final GPUImageUniformTable mUniforms;
     private final String mVertexShader;
     private final String mFragmentShader;
     protected int mGLProgId;
@@ -76,6 +79,7 @@ public class GPUImageFilter {
     protected int[] mFrameBufferTextures = null;
     protected int mFrameWidth = -1;
     protected int mFrameHeight = -1;
+    private FrameBufferPool.RenderTarget mRenderTarget = null;
 
     public GPUImageFilter() {
         this(NO_FILTER_FRAGMENT_SHADER);
@@ -86,7 +90,8 @@ public class GPUImageFilter {
     }
 
     public GPUImageFilter(final String vertexShader, final String fragmentShader) {
-        mRunOnDraw = new LinkedList<Runnable>();
+        mRunOnDraw = new RenderCommandQueue();
+        mUniforms = new GPUImageUniformTable();
         mVertexShader = vertexShader;
         mFragmentShader = fragmentShader;
     }
@@ -98,7 +103,7 @@ public class GPUImageFilter {
     }
 
     public void onInit() {
-        mGLProgId = OpenGlUtils.loadProgram(mVertexShader, mFragmentShader);
+        mGLProgId = OpenGlUtils.acquireProgram(mVertexShader, mFragmentShader);
         mGLAttribPosition = GLES20.glGetAttribLocation(mGLProgId, "position");
         mGLUniformTexture = GLES20.glGetUniformLocation(mGLProgId, "inputImageTexture");
         mGLAttribTextureCoordinate = GLES20.glGetAttribLocation(mGLProgId,
@@ -111,7 +116,8 @@ public class GPUImageFilter {
 
     public final void destroy() {
         mIsInitialized = false;
-        GLES20.glDeleteProgram(mGLProgId);
+        OpenGlUtils.releaseProgram(mGLProgId);
+        mUniforms.clear();
         onDestroy();
     }
 
@@ -120,14 +126,12 @@ public class GPUImageFilter {
     }
 
     public void destroyFramebuffers() {
-        if (mFrameBufferTextures != null) {
-            GLES20.glDeleteTextures(1, mFrameBufferTextures, 0);
-            mFrameBufferTextures = null;
-        }
-        if (mFrameBuffers != null) {
-            GLES20.glDeleteFramebuffers(1, mFrameBuffers, 0);
-            mFrameBuffers = null;
+        if (mRenderTarget != null) {
+            FrameBufferPool.release(mRenderTarget);
+            mRenderTarget = null;
         }
+        mFrameBuffers = null;
+        mFrameBufferTextures = null;
         mFrameWidth = -1;
         mFrameHeight = -1;
     }
@@ -141,33 +145,15 @@ public class GPUImageFilter {
     public void onInputSizeChanged(final int width, final int height) {
     }
 
-    private void initFrameBuffer(int width, int height) {
+    protected void initFrameBuffer(int width, int height) {
         if (mFrameBuffers != null && (mFrameWidth != width || mFrameHeight != height))
             destroyFramebuffers();
         if (mFrameBuffers == null) {
+            mRenderTarget = FrameBufferPool.getInstance().acquire(width, height, GLES20.GL_RGBA);
             mFrameWidth = width;
             mFrameHeight = height;
-            mFrameBuffers = new int[1];
-            mFrameBufferTextures = new int[1];
-
-            GLES20.glGenFramebuffers(1, mFrameBuffers, 0);
-            GLES20.glGenTextures(1, mFrameBufferTextures, 0);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mFrameBufferTextures[0]);
-            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
-                    GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
-            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-                    GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-                    GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
-            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-                    GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-                    GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffers[0]);
-            GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
-                    GLES20.GL_TEXTURE_2D, mFrameBufferTextures[0], 0);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
-            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+            mFrameBuffers = new int[]{mRenderTarget.frameBuffer};
+            mFrameBufferTextures = new int[]{mRenderTarget.texture};
         }
     }
 
@@ -183,12 +169,9 @@ public class GPUImageFilter {
             return OpenGlUtils.NOT_INIT;
         }
 
-        cubeBuffer.position(0);
-        GLES20.glVertexAttribPointer(mGLAttribPosition, 2, GLES20.GL_FLOAT, false, 0, cubeBuffer);
+        setVertexAttribPointer(mGLAttribPosition, cubeBuffer);
         GLES20.glEnableVertexAttribArray(mGLAttribPosition);
-        textureBuffer.position(0);
-        GLES20.glVertexAttribPointer(mGLAttribTextureCoordinate, 2, GLES20.GL_FLOAT, false, 0,
-                textureBuffer);
+        setVertexAttribPointer(mGLAttribTextureCoordinate, textureBuffer);
         GLES20.glEnableVertexAttribArray(mGLAttribTextureCoordinate);
         if (textureId != OpenGlUtils.NO_TEXTURE) {
             GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
@@ -214,12 +197,9 @@ public class GPUImageFilter {
             return;
         }
 
-        cubeBuffer.position(0);
-        GLES20.glVertexAttribPointer(mGLAttribPosition, 2, GLES20.GL_FLOAT, false, 0, cubeBuffer);
+        setVertexAttribPointer(mGLAttribPosition, cubeBuffer);
         GLES20.glEnableVertexAttribArray(mGLAttribPosition);
-        textureBuffer.position(0);
-        GLES20.glVertexAttribPointer(mGLAttribTextureCoordinate, 2, GLES20.GL_FLOAT, false, 0,
-                textureBuffer);
+        setVertexAttribPointer(mGLAttribTextureCoordinate, textureBuffer);
         GLES20.glEnableVertexAttribArray(mGLAttribTextureCoordinate);
         if (textureId != OpenGlUtils.NO_TEXTURE) {
             GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
@@ -235,10 +215,17 @@ public class GPUImageFilter {
 
     protected void onDrawArraysPre() {}
 
+    /**
+     * Points a vec2 attribute at buffer, shared buffers from {@link QuadVertexBuffer} are read
+     * from its VBO without uploading them.
+     */
+    protected void setVertexAttribPointer(int location, FloatBuffer buffer) {
+        QuadVertexBuffer.getInstance().setVertexAttribPointer(location, buffer);
+    }
+
     protected void runPendingOnDrawTasks() {
-        while (!mRunOnDraw.isEmpty()) {
-            mRunOnDraw.removeFirst().run();
-        }
+        mRunOnDraw.drainAll();
+        mUniforms.flush();
     }
 
     public void setTextureCoordinate2(float buffer[]) {
@@ -276,96 +263,61 @@ public class GPUImageFilter {
     }
 
     protected void setInteger(final int location, final int intValue) {
-        runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                GLES20.glUniform1i(location, intValue);
-            }
-        });
+        mUniforms.setInt(location, intValue);
     }
 
     protected void setFloat(final int location, final float floatValue) {
-        runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                GLES20.glUniform1f(location, floatValue);
-            }
-        });
+        mUniforms.setFloat(location, floatValue);
+    }
+
+    protected void setFloatVec2(final int location, final float x, final float y) {
+        mUniforms.setVec2(location, x, y);
     }
 
     protected void setFloatVec2(final int location, final float[] arrayValue) {
-        runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                GLES20.glUniform2fv(location, 1, FloatBuffer.wrap(arrayValue));
-            }
-        });
+        mUniforms.setFloats(location, GPUImageUniformTable.TYPE_VEC2, arrayValue, 2);
     }
 
     protected void setFloatVec3(final int location, final float[] arrayValue) {
-        runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                GLES20.glUniform3fv(location, 1, FloatBuffer.wrap(arrayValue));
-            }
-        });
+        mUniforms.setFloats(location, GPUImageUniformTable.TYPE_VEC3, arrayValue, 3);
     }
 
     protected void setFloatVec4(final int location, final float[] arrayValue) {
-        runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                GLES20.glUniform4fv(location, 1, FloatBuffer.wrap(arrayValue));
-            }
-        });
+        mUniforms.setFloats(location, GPUImageUniformTable.TYPE_VEC4, arrayValue, 4);
     }
 
     protected void setFloatArray(final int location, final float[] arrayValue) {
-        runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                GLES20.glUniform1fv(location, arrayValue.length, FloatBuffer.wrap(arrayValue));
-            }
-        });
+        mUniforms.setFloats(location, GPUImageUniformTable.TYPE_FLOAT_ARRAY, arrayValue, arrayValue.length);
     }
 
     protected void setPoint(final int location, final PointF point) {
-        runOnDraw(new Runnable() {
-
-            @Override
-            public void run() {
-                float[] vec2 = new float[2];
-                vec2[0] = point.x;
-                vec2[1] = point.y;
-                GLES20.glUniform2fv(location, 1, vec2, 0);
-            }
-        });
+        mUniforms.setVec2(location, point.x, point.y);
     }
 
     protected void setUniformMatrix3f(final int location, final float[] matrix) {
-        runOnDraw(new Runnable() {
-
-            @Override
-            public void run() {
-                GLES20.glUniformMatrix3fv(location, 1, false, matrix, 0);
-            }
-        });
+        mUniforms.setFloats(location, GPUImageUniformTable.TYPE_MAT3, matrix, 9);
     }
 
     protected void setUniformMatrix4f(final int location, final float[] matrix) {
-        runOnDraw(new Runnable() {
+        mUniforms.setFloats(location, GPUImageUniformTable.TYPE_MAT4, matrix, 16);
+    }
 
-            @Override
-            public void run() {
-                GLES20.glUniformMatrix4fv(location, 1, false, matrix, 0);
-            }
-        });
+    /**
+     * Drops pending uniform values whose locations belong to the previous program.
+     */
+    void clearUniforms() {
+        mUniforms.clear();
     }
 
     protected void runOnDraw(final Runnable runnable) {
-        synchronized (mRunOnDraw) {
-            mRunOnDraw.addLast(runnable);
-        }
+        mRunOnDraw.post(runnable);
+    }
+
+    /**
+     * Like {@link #runOnDraw(Runnable)}, but only the latest runnable posted with key runs.
+     */
+    protected void runOnDraw(Object key, final Runnable runnable) {
+        mRunOnDraw.post(key, runnable);
     }
 
     public static String loadShader(String file, Context context) {
@@ -86,10 +86,28 @@ public class GPUImageFilterFactory {
             case FILTER_FADE_IN_OUT:
                 filter = new GPUImageFadeInOutFilter();
                 break;
+            case FILTER_TRANSITION_WIPE:
+            case FILTER_TRANSITION_SLIDE:
+            case FILTER_TRANSITION_ZOOM:
+            case FILTER_TRANSITION_DISSOLVE:
+            case FILTER_TRANSITION_BLINDS:
+                filter = new GPUImageTransitionFilter(GPUImageTransitionFilter.getTransition(filterType));
+                break;
             default:
                 filter = new GPUImageFilter();
                 break;
         }
         return filter;
     }
+
+    /**
+     * @return an uber filter running filterType, null if filterType has no single-pass equivalent
+     */
+    public static GPUImageUberFilter CreateUberFilter(XMFilterType filterType) {
+        if (!GPUImageUberFilter.isSupported(filterType))
+            return null;
+        GPUImageUberFilter filter = new GPUImageUberFilter();
+        filter.setFilterType(filterType);
+        return filter;
+    }
 }
@@ -19,12 +19,11 @@ package com.xmly.media.gles.filter;
 import android.annotation.SuppressLint;
 import android.opengl.GLES20;
 
+import com.xmly.media.gles.FrameBufferPool;
+import com.xmly.media.gles.QuadVertexBuffer;
 import com.xmly.media.gles.utils.OpenGlUtils;
 import com.xmly.media.gles.utils.Rotation;
-import com.xmly.media.gles.utils.TextureRotationUtil;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.List;
@@ -37,8 +36,15 @@ public class GPUImageFilterGroup extends GPUImageFilter {
     private static final String TAG = "GPUImageFilterGroup";
     protected List<GPUImageFilter> mFilters;
     protected List<GPUImageFilter> mMergedFilters;
-    private int[] mFrameBuffers;
-    private int[] mFrameBufferTextures;
+    private FrameBufferPool.RenderTarget[] mIntermediateTargets = new FrameBufferPool.RenderTarget[0];
+    private int mIntermediateCount = 0;
+    private boolean mPingPongEnabled = true;
+    private long mPeakIntermediateBytes = 0;
+    private boolean mFusionEnabled = true;
+    //被其他组包含时不融合,由最外层的组展开后统一融合
+    private boolean mNested = false;
+    //updateMergedFilters替换掉的融合滤镜,在GL线程上销毁
+    private final List<GPUImageFilter> mRetiredFilters = new ArrayList<GPUImageFilter>();
 
     private final FloatBuffer mGLCubeBuffer;
     private final FloatBuffer mGLTextureBuffer;
@@ -64,21 +70,9 @@ public class GPUImageFilterGroup extends GPUImageFilter {
             updateMergedFilters();
         }
 
-        mGLCubeBuffer = ByteBuffer.allocateDirect(TextureRotationUtil.CUBE.length * 4)
-                .order(ByteOrder.nativeOrder())
-                .asFloatBuffer();
-        mGLCubeBuffer.put(TextureRotationUtil.CUBE).position(0);
-
-        mGLTextureBuffer = ByteBuffer.allocateDirect(TextureRotationUtil.TEXTURE_NO_ROTATION.length * 4)
-                .order(ByteOrder.nativeOrder())
-                .asFloatBuffer();
-        mGLTextureBuffer.put(TextureRotationUtil.TEXTURE_NO_ROTATION).position(0);
-
-        float[] flipTexture = TextureRotationUtil.getRotation(Rotation.ROTATION_180, true, false);
-        mGLTextureFlipBuffer = ByteBuffer.allocateDirect(flipTexture.length * 4)
-                .order(ByteOrder.nativeOrder())
-                .asFloatBuffer();
-        mGLTextureFlipBuffer.put(flipTexture).position(0);
+        mGLCubeBuffer = QuadVertexBuffer.getCubeBuffer();
+        mGLTextureBuffer = QuadVertexBuffer.getTextureBuffer(Rotation.NORMAL, false, false);
+        mGLTextureFlipBuffer = QuadVertexBuffer.getTextureBuffer(Rotation.ROTATION_180, true, false);
     }
 
     public void addFilter(GPUImageFilter aFilter) {
@@ -99,6 +93,13 @@ public class GPUImageFilterGroup extends GPUImageFilter {
         for (GPUImageFilter filter : mFilters) {
             filter.init();
         }
+        if (mMergedFilters != null) {
+            for (GPUImageFilter filter : mMergedFilters) {
+                if (filter instanceof GPUImageFusedFilter && !filter.isInitialized()) {
+                    filter.init();
+                }
+            }
+        }
     }
 
     /*
@@ -110,20 +111,16 @@ public class GPUImageFilterGroup extends GPUImageFilter {
         for (GPUImageFilter filter : mFilters) {
             filter.destroy();
         }
+        destroyFusedFilters();
         super.onDestroy();
     }
 
+    /**
+     * The group draws into targets borrowed from {@link FrameBufferPool} per frame
+     * and its last filter owns the output, so the group itself needs no framebuffer.
+     */
     @Override
-    public void destroyFramebuffers() {
-        super.destroyFramebuffers();
-        if (mFrameBufferTextures != null) {
-            GLES20.glDeleteTextures(mFrameBufferTextures.length, mFrameBufferTextures, 0);
-            mFrameBufferTextures = null;
-        }
-        if (mFrameBuffers != null) {
-            GLES20.glDeleteFramebuffers(mFrameBuffers.length, mFrameBuffers, 0);
-            mFrameBuffers = null;
-        }
+    protected void initFrameBuffer(int width, int height) {
     }
 
     @Override
@@ -144,41 +141,16 @@ public class GPUImageFilterGroup extends GPUImageFilter {
     @Override
     public void onOutputSizeChanged(final int width, final int height) {
         super.onOutputSizeChanged(width, height);
-        if (mFrameBuffers != null) {
-            destroyFramebuffers();
-        }
 
         int size = mFilters.size();
         for (int i = 0; i < size; i++) {
             mFilters.get(i).onOutputSizeChanged(width, height);
         }
-
-        if (mMergedFilters != null && mMergedFilters.size() > 0) {
-            size = mMergedFilters.size();
-            mFrameBuffers = new int[size - 1];
-            mFrameBufferTextures = new int[size - 1];
-
-            for (int i = 0; i < size - 1; i++) {
-                GLES20.glGenFramebuffers(1, mFrameBuffers, i);
-                GLES20.glGenTextures(1, mFrameBufferTextures, i);
-                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mFrameBufferTextures[i]);
-                GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
-                        GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
-                GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-                        GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-                GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-                        GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
-                GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-                        GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-                GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-                        GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-
-                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffers[i]);
-                GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
-                        GLES20.GL_TEXTURE_2D, mFrameBufferTextures[i], 0);
-
-                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
-                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        if (mMergedFilters != null) {
+            for (GPUImageFilter filter : mMergedFilters) {
+                if (filter instanceof GPUImageFusedFilter && filter.isInitialized()) {
+                    filter.onOutputSizeChanged(width, height);
+                }
             }
         }
     }
@@ -189,17 +161,19 @@ public class GPUImageFilterGroup extends GPUImageFilter {
                        final FloatBuffer textureBuffer) {
         int ret = OpenGlUtils.NO_TEXTURE;
         runPendingOnDrawTasks();
-        if (!isInitialized() || mFrameBuffers == null || mFrameBufferTextures == null) {
+        if (!isInitialized() || mOutputWidth <= 0 || mOutputHeight <= 0) {
             return ret;
         }
         if (mMergedFilters != null) {
+            prepareFusedFilters();
             int size = mMergedFilters.size();
             int previousTexture = textureId;
+            acquireIntermediateTargets(size);
             for (int i = 0; i < size; i++) {
                 GPUImageFilter filter = mMergedFilters.get(i);
                 boolean isNotLast = i < size - 1;
                 if (isNotLast) {
-                    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffers[i]);
+                    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, intermediateTarget(i).frameBuffer);
                     GLES20.glClearColor(0, 0, 0, 0);
                 }
 
@@ -217,9 +191,10 @@ public class GPUImageFilterGroup extends GPUImageFilter {
 
                 if (isNotLast) {
                     GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
-                    previousTexture = mFrameBufferTextures[i];
+                    previousTexture = intermediateTarget(i).texture;
                 }
             }
+            releaseIntermediateTargets();
         }
         return ret;
     }
@@ -234,17 +209,19 @@ public class GPUImageFilterGroup extends GPUImageFilter {
     public void onDraw(final int textureId, final FloatBuffer cubeBuffer,
                        final FloatBuffer textureBuffer) {
         runPendingOnDrawTasks();
-        if (!isInitialized() || mFrameBuffers == null || mFrameBufferTextures == null) {
+        if (!isInitialized() || mOutputWidth <= 0 || mOutputHeight <= 0) {
             return;
         }
         if (mMergedFilters != null) {
+            prepareFusedFilters();
             int size = mMergedFilters.size();
             int previousTexture = textureId;
+            acquireIntermediateTargets(size);
             for (int i = 0; i < size; i++) {
                 GPUImageFilter filter = mMergedFilters.get(i);
                 boolean isNotLast = i < size - 1;
                 if (isNotLast) {
-                    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffers[i]);
+                    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, intermediateTarget(i).frameBuffer);
                     GLES20.glClearColor(0, 0, 0, 0);
                 }
 
@@ -258,12 +235,121 @@ public class GPUImageFilterGroup extends GPUImageFilter {
 
                 if (isNotLast) {
                     GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
-                    previousTexture = mFrameBufferTextures[i];
+                    previousTexture = intermediateTarget(i).texture;
                 }
             }
+            releaseIntermediateTargets();
         }
      }
 
+    /**
+     * In ping-pong mode the passes alternate between two intermediate targets, so the memory
+     * used by the group no longer grows with the length of the chain. Otherwise every pass
+     * but the last one gets its own target. Enabled by default.
+     */
+    public void setPingPongEnabled(boolean enable) {
+        mPingPongEnabled = enable;
+    }
+
+    public boolean isPingPongEnabled() {
+        return mPingPongEnabled;
+    }
+
+    /**
+     * @return the largest amount of intermediate texture memory a single frame of this group used
+     */
+    public long getPeakIntermediateBytes() {
+        return mPeakIntermediateBytes;
+    }
+
+    private FrameBufferPool.RenderTarget intermediateTarget(int pass) {
+        return mIntermediateTargets[pass % mIntermediateCount];
+    }
+
+    private void acquireIntermediateTargets(int passes) {
+        int count = mPingPongEnabled ? Math.min(passes - 1, 2) : passes - 1;
+        if (count <= 0)
+            return;
+        if (mIntermediateTargets.length < count) {
+            mIntermediateTargets = new FrameBufferPool.RenderTarget[count];
+        }
+        FrameBufferPool pool = FrameBufferPool.getInstance();
+        long bytes = 0;
+        for (int i = 0; i < count; i++) {
+            mIntermediateTargets[i] = pool.acquire(mOutputWidth, mOutputHeight, GLES20.GL_RGBA);
+            bytes += mIntermediateTargets[i].getBytes();
+        }
+        mIntermediateCount = count;
+        if (bytes > mPeakIntermediateBytes) {
+            mPeakIntermediateBytes = bytes;
+        }
+    }
+
+    private void releaseIntermediateTargets() {
+        for (int i = 0; i < mIntermediateTargets.length; i++) {
+            if (mIntermediateTargets[i] != null) {
+                FrameBufferPool.release(mIntermediateTargets[i]);
+                mIntermediateTargets[i] = null;
+            }
+        }
+        mIntermediateCount = 0;
+    }
+
+    /**
+     * Merges runs of point-wise color filters into one pass, see {@link GPUImageFusableFilter}.
+     * Enabled by default. Only the outermost group fuses, the setting of a nested group has no
+     * effect.
+     */
+    public void setFusionEnabled(boolean enable) {
+        if (mFusionEnabled != enable) {
+            mFusionEnabled = enable;
+            updateMergedFilters();
+        }
+    }
+
+    /**
+     * @return the number of passes per frame saved by fusing filters
+     */
+    public int getFusionSavedPasses() {
+        int saved = 0;
+        if (mMergedFilters != null) {
+            for (GPUImageFilter filter : mMergedFilters) {
+                if (filter instanceof GPUImageFusedFilter) {
+                    saved += ((GPUImageFusedFilter) filter).getSources().size() - 1;
+                }
+            }
+        }
+        return saved;
+    }
+
+    //融合滤镜在首次绘制时创建program,此时源滤镜都已初始化
+    private void prepareFusedFilters() {
+        for (GPUImageFilter filter : mRetiredFilters) {
+            filter.destroy();
+        }
+        mRetiredFilters.clear();
+        for (GPUImageFilter filter : mMergedFilters) {
+            if (filter instanceof GPUImageFusedFilter && !filter.isInitialized()) {
+                filter.init();
+                filter.onOutputSizeChanged(mOutputWidth, mOutputHeight);
+            }
+        }
+    }
+
+    private void destroyFusedFilters() {
+        for (GPUImageFilter filter : mRetiredFilters) {
+            filter.destroy();
+        }
+        mRetiredFilters.clear();
+        if (mMergedFilters != null) {
+            for (GPUImageFilter filter : mMergedFilters) {
+                if (filter instanceof GPUImageFusedFilter && filter.isInitialized()) {
+                    filter.destroy();
+                }
+            }
+        }
+    }
+
     /**
      * Gets the filters.
      *
@@ -285,14 +371,24 @@ public class GPUImageFilterGroup extends GPUImageFilter {
         if (mMergedFilters == null) {
             mMergedFilters = new ArrayList<GPUImageFilter>();
         } else {
+            for (GPUImageFilter filter : mMergedFilters) {
+                if (filter instanceof GPUImageFusedFilter && filter.isInitialized()) {
+                    mRetiredFilters.add(filter);
+                }
+            }
             mMergedFilters.clear();
         }
 
         List<GPUImageFilter> filters;
         for (GPUImageFilter filter : mFilters) {
             if (filter instanceof GPUImageFilterGroup) {
-                ((GPUImageFilterGroup) filter).updateMergedFilters();
-                filters = ((GPUImageFilterGroup) filter).getMergedFilters();
+                GPUImageFilterGroup group = (GPUImageFilterGroup) filter;
+                group.mNested = true;
+                group.updateMergedFilters();
+                //子组之前初始化过的融合滤镜交给本组在GL线程上销毁,恢复源滤镜的uniform位置
+                mRetiredFilters.addAll(group.mRetiredFilters);
+                group.mRetiredFilters.clear();
+                filters = group.getMergedFilters();
                 if (filters == null || filters.isEmpty())
                     continue;
                 mMergedFilters.addAll(filters);
@@ -300,5 +396,34 @@ public class GPUImageFilterGroup extends GPUImageFilter {
             }
             mMergedFilters.add(filter);
         }
+
+        if (mFusionEnabled && !mNested) {
+            fuseMergedFilters();
+        }
+    }
+
+    private void fuseMergedFilters() {
+        List<GPUImageFilter> fused = new ArrayList<GPUImageFilter>();
+        List<GPUImageFilter> run = new ArrayList<GPUImageFilter>();
+        for (GPUImageFilter filter : mMergedFilters) {
+            if (GPUImageFusedFilter.canFuse(filter)) {
+                run.add(filter);
+                continue;
+            }
+            flushFusionRun(run, fused);
+            fused.add(filter);
+        }
+        flushFusionRun(run, fused);
+        mMergedFilters.clear();
+        mMergedFilters.addAll(fused);
+    }
+
+    private static void flushFusionRun(List<GPUImageFilter> run, List<GPUImageFilter> out) {
+        if (run.size() > 1) {
+            out.add(new GPUImageFusedFilter(run));
+        } else {
+            out.addAll(run);
+        }
+        run.clear();
     }
 }
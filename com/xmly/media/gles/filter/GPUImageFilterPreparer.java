@@ -0,0 +1,173 @@
+package com.xmly.media.gles.filter;
+
+import android.annotation.TargetApi;
+import android.opengl.EGLContext;
+import android.opengl.GLES20;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import com.xmly.media.gles.EglCore;
+import com.xmly.media.gles.OffscreenSurface;
+import com.xmly.media.gles.utils.ProgramCache;
+import com.xmly.media.gles.utils.XMFilterType;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Creates and initializes filters on a worker thread whose EGL context shares objects with the
+ * render thread, so compiling a new filter does not stall frame production.
+ * Programs and textures are shared between the contexts but framebuffers are not, so the
+ * render thread picks the filter up with {@link #poll()} and sizes it itself. The worker uses
+ * the {@link ProgramCache} of the render thread, so programs it links are found there and
+ * released there when the render thread destroys the filter.
+ * Create it on the render thread.
+ * Only the latest request is prepared, older pending requests are dropped.
+ */
+public class GPUImageFilterPreparer {
+    private static final String TAG = "GPUImageFilterPreparer";
+
+    public interface OnFilterPreparedListener {
+        /**
+         * Called once a filter of the given type is ready, by the preparer on its worker thread.
+         */
+        void onFilterPrepared(XMFilterType type);
+    }
+
+    public static final class PreparedFilter {
+        public final XMFilterType type;
+        public final GPUImageFilter filter;
+
+        private PreparedFilter(XMFilterType type, GPUImageFilter filter) {
+            this.type = type;
+            this.filter = filter;
+        }
+    }
+
+    private final AtomicReference<XMFilterType> mRequest = new AtomicReference<XMFilterType>();
+    private final AtomicReference<PreparedFilter> mPrepared = new AtomicReference<PreparedFilter>();
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final EGLContext mSharedContext;
+    //渲染线程的program缓存,工作线程编译的program也登记在这里
+    private final ProgramCache mProgramCache;
+    private volatile OnFilterPreparedListener mListener = null;
+    private EglCore mEglCore = null;
+    private OffscreenSurface mSurface = null;
+
+    public GPUImageFilterPreparer(EGLContext sharedContext) {
+        mSharedContext = sharedContext;
+        mProgramCache = ProgramCache.getInstance();
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    public void setListener(OnFilterPreparedListener l) {
+        mListener = l;
+    }
+
+    /**
+     * Requests a filter of the given type, replaces a request that has not been started yet.
+     */
+    public void prepare(XMFilterType type) {
+        if (mRequest.getAndSet(type) == null) {
+            mHandler.post(mPrepareRunnable);
+        }
+    }
+
+    /**
+     * Takes the prepared filter, must be called on the render thread.
+     * @return the initialized but not yet sized filter and its type, null if none is ready
+     */
+    public PreparedFilter poll() {
+        return mPrepared.getAndSet(null);
+    }
+
+    /**
+     * Stops the worker and waits for it, a prepared filter that was never polled is destroyed
+     * there. Call it before the render thread clears its {@link ProgramCache} or releases its
+     * context, and without holding a lock the listener takes.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    public void release() {
+        mRequest.set(null);
+        mListener = null;
+        mHandler.removeCallbacksAndMessages(null);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                PreparedFilter prepared = mPrepared.getAndSet(null);
+                if (mSurface != null) {
+                    mSurface.makeCurrent();
+                    if (prepared != null) {
+                        prepared.filter.destroy();
+                    }
+                    //缓存属于渲染线程,由它在上下文销毁前清理
+                    ProgramCache.setInstance(null);
+                    mSurface.release();
+                    mSurface = null;
+                }
+                if (mEglCore != null) {
+                    mEglCore.release();
+                    mEglCore = null;
+                }
+            }
+        });
+        mThread.quitSafely();
+        try {
+            //等待工作线程结束,之后渲染线程才能清理缓存和释放上下文
+            mThread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private boolean makeCurrent() {
+        if (mSurface == null) {
+            try {
+                mEglCore = new EglCore(mSharedContext, 0);
+                mSurface = new OffscreenSurface(mEglCore, 1, 1);
+                ProgramCache.setInstance(mProgramCache);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "create shared context failed: " + e.getMessage());
+                if (mEglCore != null) {
+                    mEglCore.release();
+                    mEglCore = null;
+                }
+                return false;
+            }
+        }
+        mSurface.makeCurrent();
+        return true;
+    }
+
+    private final Runnable mPrepareRunnable = new Runnable() {
+        @Override
+        public void run() {
+            XMFilterType type = mRequest.getAndSet(null);
+            if (type == null || !makeCurrent())
+                return;
+
+            GPUImageFilter filter = GPUImageFilterFactory.CreateFilter(type);
+            filter.init();
+            //保证program在渲染线程的上下文中可用
+            GLES20.glFinish();
+            if (mRequest.get() != null) {
+                //已经有更新的请求,丢弃
+                filter.destroy();
+                return;
+            }
+
+            PreparedFilter stale = mPrepared.getAndSet(new PreparedFilter(type, filter));
+            if (stale != null) {
+                stale.filter.destroy();
+            }
+            OnFilterPreparedListener l = mListener;
+            if (l != null) {
+                l.onFilterPrepared(type);
+            }
+        }
+    };
+}
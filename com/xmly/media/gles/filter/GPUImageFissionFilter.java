@@ -81,13 +81,10 @@ public class GPUImageFissionFilter extends GPUImageFilter {
             return OpenGlUtils.NOT_INIT;
         }
 
-        cubeBuffer.position(0);
-        GLES20.glVertexAttribPointer(mGLAttribPosition, 2, GLES20.GL_FLOAT, false, 0, cubeBuffer);
+        setVertexAttribPointer(mGLAttribPosition, cubeBuffer);
         GLES20.glEnableVertexAttribArray(mGLAttribPosition);
         fission(textureBuffer);
-        mGLTextureBuffer.position(0);
-        GLES20.glVertexAttribPointer(mGLAttribTextureCoordinate, 2, GLES20.GL_FLOAT, false, 0,
-                mGLTextureBuffer);
+        setVertexAttribPointer(mGLAttribTextureCoordinate, mGLTextureBuffer);
         GLES20.glEnableVertexAttribArray(mGLAttribTextureCoordinate);
         if (textureId != OpenGlUtils.NO_TEXTURE) {
             GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
@@ -0,0 +1,26 @@
+package com.xmly.media.gles.filter;
+
+/**
+ * Implemented by point-wise color filters that {@link GPUImageFilterGroup} may merge with their
+ * neighbours into a single {@link GPUImageFusedFilter} pass.
+ */
+public interface GPUImageFusableFilter {
+    /**
+     * @return false if this instance can not be merged, e.g. it samples an external OES texture
+     */
+    boolean isFusable();
+
+    /**
+     * Returns the uniform declarations and a function {@code lowp vec4 <prefix>apply(lowp vec4 color)}
+     * that does the same as the filter's fragment shader. Every uniform, constant and function
+     * name must start with prefix.
+     */
+    String getFusionShader(String prefix);
+
+    /**
+     * Looks up the prefixed uniforms in program and sets the current values again.
+     * Called with the fused program, or with the filter's own program and an empty prefix
+     * once the fused pass is released.
+     */
+    void onFusionInit(int program, String prefix);
+}
@@ -0,0 +1,87 @@
+package com.xmly.media.gles.filter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs a chain of {@link GPUImageFusableFilter}s as one pass.
+ * The sources keep owning their parameters, their uniforms are pointed at this program
+ * and flushed before each draw, so setters on the sources keep working after fusion.
+ */
+public class GPUImageFusedFilter extends GPUImageFilter {
+    private static final String TAG = "GPUImageFusedFilter";
+    private final List<GPUImageFilter> mSources;
+
+    public GPUImageFusedFilter(List<GPUImageFilter> sources) {
+        super(NO_FILTER_VERTEX_SHADER, buildFragmentShader(sources));
+        mSources = new ArrayList<GPUImageFilter>(sources);
+    }
+
+    private static String prefix(int index) {
+        return "f" + index + "_";
+    }
+
+    private static String buildFragmentShader(List<GPUImageFilter> sources) {
+        StringBuilder shader = new StringBuilder();
+        shader.append("precision highp float;\n")
+                .append("varying highp vec2 textureCoordinate;\n")
+                .append("\n")
+                .append("uniform sampler2D inputImageTexture;\n")
+                .append("\n");
+        for (int i = 0; i < sources.size(); i++) {
+            shader.append(((GPUImageFusableFilter) sources.get(i)).getFusionShader(prefix(i)))
+                    .append("\n");
+        }
+        shader.append("void main()\n")
+                .append("{\n")
+                .append("    lowp vec4 color = texture2D(inputImageTexture, textureCoordinate);\n");
+        //分开绘制时每一级都写入RGBA8纹理被截断到[0,1],融合后要逐级截断才能得到相同结果
+        for (int i = 0; i < sources.size(); i++) {
+            shader.append("    color = clamp(").append(prefix(i)).append("apply(color), 0.0, 1.0);\n");
+        }
+        shader.append("    gl_FragColor = color;\n")
+                .append("}");
+        return shader.toString();
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        for (int i = 0; i < mSources.size(); i++) {
+            GPUImageFilter source = mSources.get(i);
+            source.clearUniforms();
+            ((GPUImageFusableFilter) source).onFusionInit(getProgram(), prefix(i));
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        //把uniform还给源滤镜自己的program
+        for (GPUImageFilter source : mSources) {
+            if (source.isInitialized()) {
+                source.clearUniforms();
+                ((GPUImageFusableFilter) source).onFusionInit(source.getProgram(), "");
+            }
+        }
+        super.onDestroy();
+    }
+
+    @Override
+    protected void runPendingOnDrawTasks() {
+        super.runPendingOnDrawTasks();
+        for (int i = 0; i < mSources.size(); i++) {
+            mSources.get(i).runPendingOnDrawTasks();
+        }
+    }
+
+    public List<GPUImageFilter> getSources() {
+        return mSources;
+    }
+
+    /**
+     * @return true if filter can take part in a fused pass
+     */
+    public static boolean canFuse(GPUImageFilter filter) {
+        return filter instanceof GPUImageFusableFilter && ((GPUImageFusableFilter) filter).isFusable();
+    }
+}
@@ -124,4 +124,16 @@ public class GPUImageGlassSphereFilter extends GPUImageFilter {
         mRadius = radius;
         setFloat(mRadiusLocation, radius);
     }
+
+    public PointF getCenter() {
+        return mCenter;
+    }
+
+    public float getRadius() {
+        return mRadius;
+    }
+
+    public float getRefractiveIndex() {
+        return mRefractiveIndex;
+    }
 }
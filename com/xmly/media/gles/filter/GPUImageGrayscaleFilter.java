@@ -19,7 +19,7 @@ package com.xmly.media.gles.filter;
 /**
  * Applies a grayscale effect to the image.
  */
-public class GPUImageGrayscaleFilter extends GPUImageFilter {
+public class GPUImageGrayscaleFilter extends GPUImageFilter implements GPUImageFusableFilter {
     public static final String GRAYSCALE_FRAGMENT_SHADER = "" +
             "precision highp float;\n" +
             "\n" +
@@ -40,4 +40,23 @@ public class GPUImageGrayscaleFilter extends GPUImageFilter {
     public GPUImageGrayscaleFilter() {
         super(NO_FILTER_VERTEX_SHADER, GRAYSCALE_FRAGMENT_SHADER);
     }
+
+    @Override
+    public boolean isFusable() {
+        return true;
+    }
+
+    @Override
+    public String getFusionShader(String prefix) {
+        return "const highp vec3 " + prefix + "W = vec3(0.2125, 0.7154, 0.0721);\n" +
+                "lowp vec4 " + prefix + "apply(lowp vec4 color)\n" +
+                "{\n" +
+                "    float luminance = dot(color.rgb, " + prefix + "W);\n" +
+                "    return vec4(vec3(luminance), color.a);\n" +
+                "}\n";
+    }
+
+    @Override
+    public void onFusionInit(int program, String prefix) {
+    }
 }
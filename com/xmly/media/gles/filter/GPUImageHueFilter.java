@@ -18,7 +18,7 @@ package com.xmly.media.gles.filter;
 
 import android.opengl.GLES20;
 
-public class GPUImageHueFilter extends GPUImageFilter {
+public class GPUImageHueFilter extends GPUImageFilter implements GPUImageFusableFilter {
     public static final String HUE_FRAGMENT_SHADER = "" +
       "precision highp float;\n" +
       "varying highp vec2 textureCoordinate;\n" +
@@ -93,4 +93,41 @@ public class GPUImageHueFilter extends GPUImageFilter {
         float hueAdjust = (mHue % 360.0f) * (float) Math.PI / 180.0f;
         setFloat(mHueLocation, hueAdjust);
     }
+
+    public float getHue() {
+        return mHue;
+    }
+
+    @Override
+    public boolean isFusable() {
+        return true;
+    }
+
+    @Override
+    public String getFusionShader(String prefix) {
+        return "uniform mediump float " + prefix + "hueAdjust;\n" +
+                "const highp vec4 " + prefix + "kRGBToYPrime = vec4 (0.299, 0.587, 0.114, 0.0);\n" +
+                "const highp vec4 " + prefix + "kRGBToI = vec4 (0.595716, -0.274453, -0.321263, 0.0);\n" +
+                "const highp vec4 " + prefix + "kRGBToQ = vec4 (0.211456, -0.522591, 0.31135, 0.0);\n" +
+                "const highp vec4 " + prefix + "kYIQToR = vec4 (1.0, 0.9563, 0.6210, 0.0);\n" +
+                "const highp vec4 " + prefix + "kYIQToG = vec4 (1.0, -0.2721, -0.6474, 0.0);\n" +
+                "const highp vec4 " + prefix + "kYIQToB = vec4 (1.0, -1.1070, 1.7046, 0.0);\n" +
+                "highp vec4 " + prefix + "apply(highp vec4 color)\n" +
+                "{\n" +
+                "    highp float YPrime = dot (color, " + prefix + "kRGBToYPrime);\n" +
+                "    highp float I = dot (color, " + prefix + "kRGBToI);\n" +
+                "    highp float Q = dot (color, " + prefix + "kRGBToQ);\n" +
+                "    highp float hue = atan (Q, I) - " + prefix + "hueAdjust;\n" +
+                "    highp float chroma = sqrt (I * I + Q * Q);\n" +
+                "    highp vec4 yIQ = vec4 (YPrime, chroma * cos (hue), chroma * sin (hue), 0.0);\n" +
+                "    return vec4(dot (yIQ, " + prefix + "kYIQToR), dot (yIQ, " + prefix + "kYIQToG),\n" +
+                "            dot (yIQ, " + prefix + "kYIQToB), color.a);\n" +
+                "}\n";
+    }
+
+    @Override
+    public void onFusionInit(int program, String prefix) {
+        mHueLocation = GLES20.glGetUniformLocation(program, prefix + "hueAdjust");
+        setHue(mHue);
+    }
 }
@@ -4,6 +4,7 @@ import android.graphics.Bitmap;
 import android.opengl.GLES20;
 
 import com.xmly.media.gles.utils.OpenGlUtils;
+import com.xmly.media.gles.utils.TransitionEngine;
 
 /**
  * Created by sunyc on 19-8-9.
@@ -12,6 +13,8 @@ public class GPUImageImageSwitchFilter extends GPUImageTwoInputFilter {
     private static final String TAG = "ImageSwitchFilter";
     protected IImageSwitchListener mListener = null;
     protected boolean mSwitchCompleted = true;
+    protected final TransitionEngine mTransition = new TransitionEngine();
+    private volatile long mPresentationTimeUs = -1L;
 
     public GPUImageImageSwitchFilter() {
         this(VERTEX_SHADER, FRAGMENT_SHADER);
@@ -23,6 +26,13 @@ public class GPUImageImageSwitchFilter extends GPUImageTwoInputFilter {
 
     public GPUImageImageSwitchFilter(String vertexShader, String fragmentShader) {
         super(vertexShader, fragmentShader);
+        mTransition.setListener(new TransitionEngine.OnTransitionListener() {
+            @Override
+            public void onTransitionCompleted() {
+                mSwitchCompleted = true;
+                if (mListener != null) mListener.onImageSwitchCompleted();
+            }
+        });
     }
 
     @Override
@@ -31,6 +41,7 @@ public class GPUImageImageSwitchFilter extends GPUImageTwoInputFilter {
 
         mReleaseTexture = false;
         mSwitchCompleted = true;
+        mTransition.cancel();
     }
 
     public void setBitmap(final Bitmap bitmap) {
@@ -44,10 +55,41 @@ public class GPUImageImageSwitchFilter extends GPUImageTwoInputFilter {
                 mInputTexture2 = OpenGlUtils.loadTexture(bitmap, mInputTexture2, true);
                 mReleaseTexture = true;
                 mSwitchCompleted = false;
+                mTransition.start();
             }
         });
     }
 
+    /**
+     * Sets the timestamp of the next drawn frame, transitions advance by it instead of by draws.
+     * Without one the monotonic clock is used.
+     */
+    public void setPresentationTime(long ptsUs) {
+        mPresentationTimeUs = ptsUs;
+    }
+
+    public void setTransitionDuration(long durationUs) {
+        mTransition.setDuration(durationUs);
+    }
+
+    public void setTransitionEasing(TransitionEngine.Easing easing) {
+        mTransition.setEasing(easing);
+    }
+
+    /**
+     * Advances the transition to the current frame, call once per draw.
+     * @return the progress from the current image to the new one, 1 once switched
+     */
+    protected float updateTransition() {
+        if (mInputTexture2 == OpenGlUtils.NO_TEXTURE)
+            return 0.0f;
+        long pts = mPresentationTimeUs;
+        if (pts < 0) {
+            pts = System.nanoTime() / 1000L;
+        }
+        return mTransition.update(pts);
+    }
+
     public void setListener(IImageSwitchListener l) {
         mListener = l;
     }
@@ -87,4 +87,8 @@ public class GPUImageLaplacianFilter extends GPUImage3x3TextureSamplingFilter {
         mConvolutionKernel = convolutionKernel;
         setUniformMatrix3f(mUniformConvolutionMatrix, mConvolutionKernel);
     }
+
+    public float[] getConvolutionKernel() {
+        return mConvolutionKernel;
+    }
 }
@@ -2,11 +2,10 @@ package com.xmly.media.gles.filter;
 
 import android.opengl.GLES20;
 
+import com.xmly.media.gles.QuadVertexBuffer;
 import com.xmly.media.gles.utils.OpenGlUtils;
-import com.xmly.media.gles.utils.TextureRotationUtil;
+import com.xmly.media.gles.utils.Rotation;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 
 /**
@@ -57,15 +56,8 @@ public class GPUImageMirrorFilter extends GPUImageFilter {
 
     public GPUImageMirrorFilter() {
         super(MIRROR_VERTEX_SHADER, MIRROR_FRAGMENT_SHADER);
-        mGLCubeBuffer = ByteBuffer.allocateDirect(TextureRotationUtil.CUBE.length * 4)
-                .order(ByteOrder.nativeOrder())
-                .asFloatBuffer();
-        mGLCubeBuffer.put(TextureRotationUtil.CUBE).position(0);
-
-        mGLTextureBuffer = ByteBuffer.allocateDirect(TextureRotationUtil.TEXTURE_NO_ROTATION.length * 4)
-                .order(ByteOrder.nativeOrder())
-                .asFloatBuffer();
-        mGLTextureBuffer.put(TextureRotationUtil.TEXTURE_NO_ROTATION).position(0);
+        mGLCubeBuffer = QuadVertexBuffer.getCubeBuffer();
+        mGLTextureBuffer = QuadVertexBuffer.getTextureBuffer(Rotation.NORMAL, false, false);
     }
 
     @Override
@@ -81,12 +73,9 @@ public class GPUImageMirrorFilter extends GPUImageFilter {
             return OpenGlUtils.NOT_INIT;
         }
 
-        mGLCubeBuffer.position(0);
-        GLES20.glVertexAttribPointer(mGLAttribPosition, 2, GLES20.GL_FLOAT, false, 0, mGLCubeBuffer);
+        setVertexAttribPointer(mGLAttribPosition, mGLCubeBuffer);
         GLES20.glEnableVertexAttribArray(mGLAttribPosition);
-        mGLTextureBuffer.position(0);
-        GLES20.glVertexAttribPointer(mGLAttribTextureCoordinate, 2, GLES20.GL_FLOAT, false, 0,
-                mGLTextureBuffer);
+        setVertexAttribPointer(mGLAttribTextureCoordinate, mGLTextureBuffer);
         GLES20.glEnableVertexAttribArray(mGLAttribTextureCoordinate);
         if (textureId != OpenGlUtils.NO_TEXTURE) {
             GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
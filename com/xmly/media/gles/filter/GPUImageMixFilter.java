@@ -48,7 +48,8 @@ public class GPUImageMixFilter extends GPUImageFilter {
             return;
         }
 
-        runOnDraw(new Runnable() {
+        //位图不由滤镜回收,被新位图替换的上传可以跳过
+        runOnDraw("setBitmap", new Runnable() {
             public void run() {
                 if (bitmap == null || bitmap.isRecycled()) {
                     return;
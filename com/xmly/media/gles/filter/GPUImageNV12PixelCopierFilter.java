@@ -0,0 +1,212 @@
+package com.xmly.media.gles.filter;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import com.xmly.media.camera.view.recorder.XMMediaRecorder;
+import com.xmly.media.gles.utils.OpenGlUtils;
+import com.xmly.media.gles.utils.YUVColorSpace;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Converts RGBA to 4:2:0 YUV on the GPU and reads it back in the encoder's layout, 1.5 bytes
+ * per pixel. Every RGBA texel of the target carries four bytes of the output:
+ * the Y plane fills the first height rows of width / 4 texels, the chroma planes follow,
+ * interleaved UV for NV12 or U then V for I420. Each plane is one draw into its own viewport,
+ * chroma is averaged over 2x2 pixels with one linear fetch per sample.
+ * The width must be a multiple of 4, the height a multiple of 2 for NV12 and 4 for I420.
+ */
+public class GPUImageNV12PixelCopierFilter extends GPUImagePixelCopierFilter {
+    private static final String TAG = "NV12PixelCopierFilter";
+    private static final int PLANE_Y = 0;
+    private static final int PLANE_UV = 1;
+    private static final int PLANE_U = 2;
+    private static final int PLANE_V = 3;
+
+    public static final String FRAGMENT_SHADER = "" +
+            "varying highp vec2 textureCoordinate;\n" +
+            "\n" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "uniform int plane;\n" +
+            "uniform mediump vec4 coefY;\n" +
+            "uniform mediump vec4 coefU;\n" +
+            "uniform mediump vec4 coefV;\n" +
+            "uniform mediump vec4 coefC;\n" +
+            "uniform highp vec2 texelStep;\n" +
+            "uniform highp float width;\n" +
+            "\n" +
+            "lowp vec4 rgb1(highp vec2 coordinate)\n" +
+            "{\n" +
+            "    return vec4(texture2D(inputImageTexture, coordinate).rgb, 1.0);\n" +
+            "}\n" +
+            "\n" +
+            "lowp float planar(highp float pos, highp vec2 coordinate)\n" +
+            "{\n" +
+            "    highp float b = floor(pos + 0.5);\n" +
+            "    highp float h = step(width * 0.5, b);\n" +
+            "    highp float col = b - h * width * 0.5;\n" +
+            "    highp vec2 c = vec2((2.0 * col + 1.0) * texelStep.x, coordinate.y + (2.0 * h - 1.0) * texelStep.y);\n" +
+            "    return dot(rgb1(c), coefC);\n" +
+            "}\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    highp vec2 tc = textureCoordinate;\n" +
+            "    if (plane == 0) {\n" +
+            "        highp float x = tc.x - 1.5 * texelStep.x;\n" +
+            "        gl_FragColor = vec4(dot(rgb1(vec2(x, tc.y)), coefY),\n" +
+            "                dot(rgb1(vec2(x + texelStep.x, tc.y)), coefY),\n" +
+            "                dot(rgb1(vec2(x + 2.0 * texelStep.x, tc.y)), coefY),\n" +
+            "                dot(rgb1(vec2(x + 3.0 * texelStep.x, tc.y)), coefY));\n" +
+            "    } else if (plane == 1) {\n" +
+            "        lowp vec4 c0 = rgb1(vec2(tc.x - texelStep.x, tc.y));\n" +
+            "        lowp vec4 c1 = rgb1(vec2(tc.x + texelStep.x, tc.y));\n" +
+            "        gl_FragColor = vec4(dot(c0, coefU), dot(c0, coefV), dot(c1, coefU), dot(c1, coefV));\n" +
+            "    } else {\n" +
+            "        highp float pos = tc.x * width - 2.0;\n" +
+            "        gl_FragColor = vec4(planar(pos, tc), planar(pos + 1.0, tc),\n" +
+            "                planar(pos + 2.0, tc), planar(pos + 3.0, tc));\n" +
+            "    }\n" +
+            "}\n";
+
+    private int mGLPlane;
+    private int mGLcoefY;
+    private int mGLcoefU;
+    private int mGLcoefV;
+    private int mGLcoefC;
+    private int mGLTexelStep;
+    private int mGLWidth;
+    private final int mFormat;
+    private volatile YUVColorSpace mColorSpace = YUVColorSpace.BT709_LIMITED;
+    private int mWidth;
+    private int mHeight;
+    private boolean mSizeSupported = false;
+
+    /**
+     * @param format {@link #FORMAT_NV12} or {@link #FORMAT_I420}
+     */
+    public GPUImageNV12PixelCopierFilter(XMMediaRecorder recorder, int format) {
+        super(recorder, NO_FILTER_VERTEX_SHADER, FRAGMENT_SHADER);
+        mFormat = format == FORMAT_I420 ? FORMAT_I420 : FORMAT_NV12;
+    }
+
+    public GPUImageNV12PixelCopierFilter(XMMediaRecorder recorder) {
+        this(recorder, FORMAT_NV12);
+    }
+
+    public static boolean isSizeSupported(int format, int width, int height) {
+        return width % 4 == 0 && height % (format == FORMAT_I420 ? 4 : 2) == 0;
+    }
+
+    private void initCoefYUVVec() {
+        setFloatVec4(mGLcoefY, mColorSpace.getCoefY());
+        setFloatVec4(mGLcoefU, mColorSpace.getCoefU());
+        setFloatVec4(mGLcoefV, mColorSpace.getCoefV());
+    }
+
+    /**
+     * Selects the YUV matrix and range, BT.709 limited range by default.
+     */
+    public void setColorSpace(YUVColorSpace colorSpace) {
+        mColorSpace = colorSpace;
+        if (isInitialized()) {
+            initCoefYUVVec();
+        }
+    }
+
+    public YUVColorSpace getColorSpace() {
+        return mColorSpace;
+    }
+
+    public int getFormat() {
+        return mFormat;
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        mGLPlane = GLES20.glGetUniformLocation(mGLProgId, "plane");
+        mGLcoefY = GLES20.glGetUniformLocation(mGLProgId, "coefY");
+        mGLcoefU = GLES20.glGetUniformLocation(mGLProgId, "coefU");
+        mGLcoefV = GLES20.glGetUniformLocation(mGLProgId, "coefV");
+        mGLcoefC = GLES20.glGetUniformLocation(mGLProgId, "coefC");
+        mGLTexelStep = GLES20.glGetUniformLocation(mGLProgId, "texelStep");
+        mGLWidth = GLES20.glGetUniformLocation(mGLProgId, "width");
+        initCoefYUVVec();
+    }
+
+    @Override
+    public void onOutputSizeChanged(final int width, final int height) {
+        mWidth = width;
+        mHeight = height;
+        mSizeSupported = isSizeSupported(mFormat, width, height);
+        if (!mSizeSupported) {
+            Log.e(TAG, "unsupported size " + width + "x" + height + ", readback disabled");
+        }
+        //每个RGBA纹素存4个字节,Y平面之后是H/2行的色度
+        super.onOutputSizeChanged(Math.max(width / 4, 1), Math.max(height * 3 / 2, 1));
+    }
+
+    private void drawPlane(int plane, int y, int height) {
+        GLES20.glViewport(0, y, mFrameWidth, height);
+        GLES20.glUniform1i(mGLPlane, plane);
+        if (plane == PLANE_U) {
+            GLES20.glUniform4fv(mGLcoefC, 1, mColorSpace.getCoefU(), 0);
+        } else if (plane == PLANE_V) {
+            GLES20.glUniform4fv(mGLcoefC, 1, mColorSpace.getCoefV(), 0);
+        }
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+    }
+
+    @Override
+    public int onDrawToTexture(final int textureId, final FloatBuffer cubeBuffer,
+                               final FloatBuffer textureBuffer) {
+        if (mFrameBuffers == null)
+            return OpenGlUtils.NO_TEXTURE;
+        if (!admitFrame())
+            return mFrameBufferTextures[0];
+
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffers[0]);
+        GLES20.glUseProgram(mGLProgId);
+        runPendingOnDrawTasks();
+        if (!isInitialized() || !mSizeSupported) {
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+            return OpenGlUtils.NOT_INIT;
+        }
+
+        setVertexAttribPointer(mGLAttribPosition, cubeBuffer);
+        GLES20.glEnableVertexAttribArray(mGLAttribPosition);
+        setVertexAttribPointer(mGLAttribTextureCoordinate, textureBuffer);
+        GLES20.glEnableVertexAttribArray(mGLAttribTextureCoordinate);
+        if (textureId != OpenGlUtils.NO_TEXTURE) {
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+            GLES20.glUniform1i(mGLUniformTexture, 0);
+        }
+        //纹理坐标可能上下翻转,偏移量的方向跟随纹理坐标
+        float stepY = textureBuffer.get(5) - textureBuffer.get(1);
+        GLES20.glUniform2f(mGLTexelStep, 1.0f / mWidth, stepY / mHeight);
+        GLES20.glUniform1f(mGLWidth, mWidth);
+        onDrawArraysPre();
+        drawPlane(PLANE_Y, 0, mHeight);
+        if (mFormat == FORMAT_I420) {
+            drawPlane(PLANE_U, mHeight, mHeight / 4);
+            drawPlane(PLANE_V, mHeight + mHeight / 4, mHeight / 4);
+        } else {
+            drawPlane(PLANE_UV, mHeight, mHeight / 2);
+        }
+        if (hasFrameSinks()) {
+            downloadImageToRecorderFromTexture(mFormat);
+        }
+        GLES20.glDisableVertexAttribArray(mGLAttribPosition);
+        GLES20.glDisableVertexAttribArray(mGLAttribTextureCoordinate);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GLES20.glUseProgram(0);
+        GLES20.glViewport(0, 0, mOutputWidth, mOutputHeight);
+        return mFrameBufferTextures[0];
+    }
+}
@@ -6,32 +6,64 @@ import android.opengl.GLES30;
 import android.os.Build;
 import android.util.Log;
 
+import com.xmly.media.camera.view.recorder.EncoderBackpressureController;
 import com.xmly.media.camera.view.recorder.XMMediaRecorder;
+import com.xmly.media.gles.sink.FrameFormat;
+import com.xmly.media.gles.sink.FrameSink;
+import com.xmly.media.gles.sink.NativeRecorderFrameSink;
 import com.xmly.media.gles.utils.OpenGlUtils;
 
+import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Created by sunyc on 19-3-21.
+ * Reads frames back through a ring of pixel pack buffers and hands them to its {@link FrameSink}s.
  */
 
 public class GPUImagePixelCopierFilter extends GPUImageFilter {
     private static final String TAG = "PixelCopierFilter";
     private static final int PIXEL_STRIDE = 4;//RGBA 4字节
-    private static final int PBO_BUFFER_NUM = 2;//pbo buffers的个数
-    protected static final int FORMAT_RGBA8888 = 1;
-    protected static final int FORMAT_YUY2 = 2;
+    public static final int MIN_PBO_BUFFER_NUM = 2;
+    public static final int MAX_PBO_BUFFER_NUM = 6;
+    private static final int SHRINK_FRAMES = 300;//连续多少帧没有等待才缩减pbo个数
+    private static final long LOSSLESS_WAIT_NS = 100000000L;//无损模式下单次等待fence的时长
+    protected static final int FORMAT_RGBA8888 = FrameFormat.RGBA8888;
+    protected static final int FORMAT_YUY2 = FrameFormat.YUY2;
+    public static final int FORMAT_NV12 = FrameFormat.NV12;
+    public static final int FORMAT_I420 = FrameFormat.I420;
     private final int mAlign = 8;//mAlign字节对齐
-    private int[] mPboBuffers;
+    private final int[] mPboBuffers = new int[MAX_PBO_BUFFER_NUM];
+    private final long[] mPboFences = new long[MAX_PBO_BUFFER_NUM];
+    private final long[] mPboPts = new long[MAX_PBO_BUFFER_NUM];
+    //已发起读取的pbo,按读取先后排列
+    private final ArrayDeque<Integer> mPendingPbos = new ArrayDeque<Integer>(MAX_PBO_BUFFER_NUM);
+    private final ArrayDeque<Integer> mFreePbos = new ArrayDeque<Integer>(MAX_PBO_BUFFER_NUM);
+    private int mPboCount = 0;
+    private int mMinPboCount = MIN_PBO_BUFFER_NUM;
+    private int mMaxPboCount = MAX_PBO_BUFFER_NUM;
     private int mPboSize;
     private int mRowStride;
-    private int mPboIndex = -1;
-    private int mPboNextIndex = -1;
-    private boolean mFirstBindPbo = true;
+    private int mFramesSinceStall = 0;
 
     private int mPboWidth;
     private int mPboHeight;
     protected XMMediaRecorder mNativeRecorder = null;
+    private final List<FrameSink> mSinks = new CopyOnWriteArrayList<FrameSink>();
+    private volatile long mPresentationTimeUs = -1L;
+    private EncoderBackpressureController mBackpressure = null;
+    private boolean mDropOldest = false;
+    private volatile boolean mLossless = false;
+    private int mLastFormat = FORMAT_RGBA8888;
+
+    private long mStallCount = 0;
+    private long mSkippedFrames = 0;
+    private long mMappedFrames = 0;
+    private long mTotalMapNanos = 0;
+    private long mMaxMapNanos = 0;
 
     public GPUImagePixelCopierFilter(XMMediaRecorder recorder) {
         this(recorder, NO_FILTER_VERTEX_SHADER, NO_FILTER_FRAGMENT_SHADER);
@@ -40,70 +72,343 @@ public class GPUImagePixelCopierFilter extends GPUImageFilter {
     public GPUImagePixelCopierFilter(XMMediaRecorder recorder, String vertexShader, String fragmentShader) {
         super(vertexShader, fragmentShader);
         mNativeRecorder = recorder;
+        if (recorder != null) {
+            mSinks.add(new NativeRecorderFrameSink(recorder));
+        }
+    }
+
+    /**
+     * Adds a consumer of the frames read back, may be called from any thread.
+     */
+    public void addFrameSink(FrameSink sink) {
+        if (sink != null && !mSinks.contains(sink)) {
+            mSinks.add(sink);
+        }
+    }
+
+    /**
+     * Removes and releases the sink, call it on the GL thread so no frame is being delivered.
+     */
+    public void removeFrameSink(FrameSink sink) {
+        if (mSinks.remove(sink)) {
+            sink.release();
+        }
+    }
+
+    protected boolean hasFrameSinks() {
+        return !mSinks.isEmpty();
     }
 
+    /**
+     * Sets the timestamp handed to the sinks with the next frame read back,
+     * frames without one are stamped with the time of the readback.
+     */
+    public void setPresentationTime(long ptsUs) {
+        mPresentationTimeUs = ptsUs;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
     private void destroyPboBuffers() {
-        if (mPboBuffers != null) {
-            GLES30.glDeleteBuffers(mPboBuffers.length, mPboBuffers, 0);
-            mPboBuffers = null;
+        for (int i = 0; i < mPboCount; i++) {
+            if (mPboFences[i] != 0) {
+                GLES30.glDeleteSync(mPboFences[i]);
+                mPboFences[i] = 0;
+            }
+        }
+        if (mPboCount > 0) {
+            GLES30.glDeleteBuffers(mPboCount, mPboBuffers, 0);
+            mPboCount = 0;
         }
+        mPendingPbos.clear();
+        mFreePbos.clear();
+        mFramesSinceStall = 0;
+    }
+
+    private void addPboBuffer() {
+        int index = mPboCount;
+        GLES30.glGenBuffers(1, mPboBuffers, index);
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPboBuffers[index]);
+        GLES30.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, mPboSize, null, GLES30.GL_STATIC_READ);
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        mPboFences[index] = 0;
+        mPboCount++;
+        mFreePbos.addLast(index);
+    }
+
+    /**
+     * Only the last allocated buffer can be removed, so the ring shrinks when that one is free.
+     */
+    private void removePboBuffer() {
+        int index = mPboCount - 1;
+        if (!mFreePbos.remove(index))
+            return;
+        GLES30.glDeleteBuffers(1, mPboBuffers, index);
+        mPboCount--;
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
         destroyPboBuffers();
+        for (FrameSink sink : mSinks) {
+            sink.release();
+        }
     }
 
     @Override
     public void onOutputSizeChanged(int width, int height) {
         super.onOutputSizeChanged(width, height);
 
-        if (mPboBuffers != null && (mPboWidth != width || mPboHeight != height)) {
+        if (mPboCount > 0 && (mPboWidth != width || mPboHeight != height)) {
             destroyPboBuffers();
         }
 
-        if (mPboBuffers == null) {
+        if (mPboCount == 0) {
             mRowStride = (width * PIXEL_STRIDE + (mAlign - 1)) & ~(mAlign - 1);
             mPboSize = mRowStride * height;
-            mPboBuffers = new int[PBO_BUFFER_NUM];
-
-            for(int i = 0; i < PBO_BUFFER_NUM; i++) {
-                GLES30.glGenBuffers(1, mPboBuffers, i);
-                GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPboBuffers[i]);
-                GLES30.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, mPboSize, null, GLES30.GL_STATIC_READ);
-                GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+            for (int i = 0; i < mMinPboCount; i++) {
+                addPboBuffer();
             }
         }
         mPboWidth = width;
         mPboHeight = height;
     }
 
+    /**
+     * Sets how many frames may be in flight between glReadPixels and the copy to the recorder.
+     * The ring starts at min and grows up to max while the GPU is behind, equal values fix the depth.
+     * Takes effect on the next size change.
+     */
+    public void setPboBufferRange(int min, int max) {
+        mMinPboCount = Math.max(MIN_PBO_BUFFER_NUM, Math.min(min, MAX_PBO_BUFFER_NUM));
+        mMaxPboCount = Math.max(mMinPboCount, Math.min(max, MAX_PBO_BUFFER_NUM));
+    }
+
+    /**
+     * Lets the controller drop frames while the encoder queue is backed up, null disables it.
+     */
+    public void setBackpressureController(EncoderBackpressureController controller) {
+        mBackpressure = controller;
+    }
+
+    /**
+     * In lossless mode no frame is skipped or dropped, the GL thread waits for the oldest readback
+     * when every buffer is busy. Used by offline export, where the recorder counts frames.
+     */
+    public void setLossless(boolean lossless) {
+        mLossless = lossless;
+    }
+
+    public boolean isLossless() {
+        return mLossless;
+    }
+
+    /**
+     * Called before anything is drawn or read back for the frame.
+     * @return false if the frame is dropped and must not be read back
+     */
+    protected boolean admitFrame() {
+        mDropOldest = false;
+        if (mLossless || mBackpressure == null || mNativeRecorder == null)
+            return true;
+
+        int decision = mBackpressure.onFrame();
+        mDropOldest = decision == EncoderBackpressureController.DROP_OLDEST;
+        return decision != EncoderBackpressureController.DROP_NEWEST;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private void dropOldestPbo() {
+        int index = mPendingPbos.removeFirst();
+        GLES30.glDeleteSync(mPboFences[index]);
+        mPboFences[index] = 0;
+        mFreePbos.addLast(index);
+        mBackpressure.onFrameDropped();
+    }
+
+    /**
+     * Blocks until the oldest pending readback is finished and hands it to the sinks.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private void waitOldestPbo(int format) {
+        int index = mPendingPbos.removeFirst();
+        int status;
+        do {
+            status = GLES30.glClientWaitSync(mPboFences[index], GLES30.GL_SYNC_FLUSH_COMMANDS_BIT, LOSSLESS_WAIT_NS);
+        } while (status == GLES30.GL_TIMEOUT_EXPIRED);
+        if (status == GLES30.GL_WAIT_FAILED) {
+            Log.w(TAG, "glClientWaitSync failed");
+        }
+        GLES30.glDeleteSync(mPboFences[index]);
+        mPboFences[index] = 0;
+        mapToSinks(index, format);
+        mFreePbos.addLast(index);
+    }
+
+    /**
+     * Hands every pending readback to the sinks, waiting for the GPU. Call on the GL thread
+     * before the recorder is stopped, otherwise the last frames are never delivered.
+     */
+    public void flushPendingFrames() {
+        while (!mPendingPbos.isEmpty()) {
+            waitOldestPbo(mLastFormat);
+        }
+    }
+
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
     protected void downloadImageToRecorderFromTexture(int format) {
-        if (mPboBuffers == null) {
+        if (mPboCount == 0) {
             Log.e(TAG, "mPboBuffers is null, downloadImageToRecorderFromTexture exit");
             return;
         }
+        mLastFormat = format;
 
-        mPboIndex = (mPboIndex + 1) % 2;
-        mPboNextIndex = (mPboIndex + 1) % 2;
-        GLES30.glPixelStorei(GLES30.GL_PACK_ALIGNMENT, mAlign);
-        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPboBuffers[mPboIndex]);
-        mNativeRecorder.glReadPixels(0, 0, mRowStride / PIXEL_STRIDE, mPboHeight, GLES30.GL_RGBA, GLES30.GL_UNSIGNED_BYTE);
+        if (mDropOldest && !mPendingPbos.isEmpty()) {
+            //编码器积压,最早一帧不再送编码器,不用等它读完
+            dropOldestPbo();
+        } else if (!mPendingPbos.isEmpty()) {
+            //先取回最早一帧已完成的数据,fence未完成时不等待
+            int index = mPendingPbos.peekFirst();
+            int status = GLES30.glClientWaitSync(mPboFences[index], GLES30.GL_SYNC_FLUSH_COMMANDS_BIT, 0);
+            if (status == GLES30.GL_TIMEOUT_EXPIRED) {
+                mStallCount++;
+                mFramesSinceStall = 0;
+            } else {
+                if (status == GLES30.GL_WAIT_FAILED) {
+                    Log.w(TAG, "glClientWaitSync failed");
+                }
+                mPendingPbos.removeFirst();
+                GLES30.glDeleteSync(mPboFences[index]);
+                mPboFences[index] = 0;
+                mapToSinks(index, format);
+                mFreePbos.addLast(index);
+                mFramesSinceStall++;
+            }
+        }
 
-        if (mFirstBindPbo) {//第一帧没有数据,退出
-            GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
-            mFirstBindPbo = false;
-            return;
+        if (mFreePbos.isEmpty()) {
+            if (mPboCount < mMaxPboCount) {
+                addPboBuffer();
+            } else if (mLossless) {
+                //无损模式不丢帧,等最早的一帧读完
+                mStallCount++;
+                waitOldestPbo(format);
+            } else {
+                //所有pbo都在等待GPU,丢弃当前帧
+                mSkippedFrames++;
+                return;
+            }
+        } else if (mFramesSinceStall > SHRINK_FRAMES && mPboCount > mMinPboCount) {
+            removePboBuffer();
+            mFramesSinceStall = 0;
+        }
+
+        int index = mFreePbos.removeFirst();
+        GLES30.glPixelStorei(GLES30.GL_PACK_ALIGNMENT, mAlign);
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPboBuffers[index]);
+        if (mNativeRecorder != null) {
+            mNativeRecorder.glReadPixels(0, 0, mRowStride / PIXEL_STRIDE, mPboHeight, GLES30.GL_RGBA, GLES30.GL_UNSIGNED_BYTE);
+        } else {
+            GLES30.glReadPixels(0, 0, mRowStride / PIXEL_STRIDE, mPboHeight, GLES30.GL_RGBA, GLES30.GL_UNSIGNED_BYTE, 0);
         }
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        mPboFences[index] = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        long pts = mPresentationTimeUs;
+        mPboPts[index] = pts >= 0 ? pts : System.nanoTime() / 1000L;
+        mPendingPbos.addLast(index);
+    }
 
-        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPboBuffers[mPboNextIndex]);
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private void mapToSinks(int index, int format) {
+        long start = System.nanoTime();
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPboBuffers[index]);
         int rowPadding = mRowStride - PIXEL_STRIDE * mPboWidth;//最好保证该值为0，方便像素数据拷贝
-        mNativeRecorder.glMapBufferRange_put(GLES30.GL_PIXEL_PACK_BUFFER, 0, mPboSize, GLES30.GL_MAP_READ_BIT,
-                mPboWidth, mPboHeight, PIXEL_STRIDE, rowPadding, format);
-        GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+        boolean javaSinks = false;
+        for (FrameSink sink : mSinks) {
+            if (sink instanceof NativeRecorderFrameSink) {
+                //native直接映射pbo,不经过java
+                ((NativeRecorderFrameSink) sink).putPixelPackBuffer(mPboSize, mPboWidth, mPboHeight, rowPadding, format);
+                GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+            } else {
+                javaSinks = true;
+            }
+        }
+        if (javaSinks) {
+            ByteBuffer frame = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER, 0, mPboSize, GLES30.GL_MAP_READ_BIT);
+            if (frame != null) {
+                int width = getImageWidth(format);
+                int height = getImageHeight(format);
+                for (FrameSink sink : mSinks) {
+                    if (!(sink instanceof NativeRecorderFrameSink)) {
+                        frame.clear();
+                        sink.onFrame(frame.asReadOnlyBuffer(), format, width, height, mRowStride, mPboPts[index]);
+                    }
+                }
+                GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+            } else {
+                Log.e(TAG, "glMapBufferRange failed");
+            }
+        }
         GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        long elapsed = System.nanoTime() - start;
+        mMappedFrames++;
+        mTotalMapNanos += elapsed;
+        mMaxMapNanos = Math.max(mMaxMapNanos, elapsed);
+    }
+
+    private int getImageWidth(int format) {
+        switch (format) {
+            case FORMAT_YUY2:
+                return mPboWidth * 2;
+            case FORMAT_NV12:
+            case FORMAT_I420:
+                return mPboWidth * 4;
+            default:
+                return mPboWidth;
+        }
+    }
+
+    private int getImageHeight(int format) {
+        if (format == FORMAT_NV12 || format == FORMAT_I420) {
+            return mPboHeight * 2 / 3;
+        }
+        return mPboHeight;
+    }
+
+    public int getPboBufferCount() {
+        return mPboCount;
+    }
+
+    /**
+     * @return frames whose oldest pending readback was not finished yet when checked
+     */
+    public long getStallCount() {
+        return mStallCount;
+    }
+
+    /**
+     * @return frames not read back because every buffer was still waiting for the GPU
+     */
+    public long getSkippedFrameCount() {
+        return mSkippedFrames;
+    }
+
+    /**
+     * @return frames handed to the sinks
+     */
+    public long getMappedFrameCount() {
+        return mMappedFrames;
+    }
+
+    /**
+     * @return mean time spent mapping a buffer and copying it to the recorder, in nanoseconds
+     */
+    public long getAverageMapLatencyNs() {
+        return mMappedFrames == 0 ? 0 : mTotalMapNanos / mMappedFrames;
+    }
+
+    public long getMaxMapLatencyNs() {
+        return mMaxMapNanos;
     }
 
     @Override
@@ -111,6 +416,8 @@ public class GPUImagePixelCopierFilter extends GPUImageFilter {
                                final FloatBuffer textureBuffer) {
         if (mFrameBuffers == null)
             return OpenGlUtils.NO_TEXTURE;
+        if (!admitFrame())
+            return mFrameBufferTextures[0];
 
         GLES20.glViewport(0, 0, mFrameWidth, mFrameHeight);
         GLES20.glUseProgram(0);
@@ -119,9 +426,12 @@ public class GPUImagePixelCopierFilter extends GPUImageFilter {
         // Attach texture to frame buffer
         GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER,
                 GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, textureId, 0);
-        if (mNativeRecorder != null) {
+        if (hasFrameSinks()) {
             downloadImageToRecorderFromTexture(FORMAT_RGBA8888);
         }
+        //恢复framebuffer自己的纹理,framebuffer会被归还到FrameBufferPool
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER,
+                GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, mFrameBufferTextures[0], 0);
         GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
         GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
         GLES20.glViewport(0, 0, mOutputWidth, mOutputHeight);
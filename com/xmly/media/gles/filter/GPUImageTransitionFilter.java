@@ -0,0 +1,135 @@
+package com.xmly.media.gles.filter;
+
+import android.opengl.GLES20;
+
+import com.xmly.media.gles.utils.XMFilterType;
+
+/**
+ * Image switch transitions sharing one program, the transition is chosen with a uniform.
+ */
+public class GPUImageTransitionFilter extends GPUImageImageSwitchFilter {
+    private static final String TAG = "GPUImageTransitionFilter";
+    public static final int TRANSITION_WIPE = 0;
+    public static final int TRANSITION_SLIDE = 1;
+    public static final int TRANSITION_ZOOM = 2;
+    public static final int TRANSITION_DISSOLVE = 3;
+    public static final int TRANSITION_BLINDS = 4;
+
+    public static final String FRAGMENT_SHADER = "" +
+            "varying highp vec4 g_position;\n" +
+            "varying highp vec2 textureCoordinate;\n" +
+            "varying highp vec2 textureCoordinate2;\n" +
+            "\n" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "uniform sampler2D inputImageTexture2;\n" +
+            "\n" +
+            "uniform int transition;\n" +
+            "uniform highp float progress;\n" +
+            "uniform highp float unitWidth;\n" +
+            "\n" +
+            "lowp vec4 from(highp vec2 coordinate)\n" +
+            "{\n" +
+            "    return texture2D(inputImageTexture, coordinate);\n" +
+            "}\n" +
+            "\n" +
+            "lowp vec4 to(highp vec2 coordinate)\n" +
+            "{\n" +
+            "    return texture2D(inputImageTexture2, vec2(coordinate.x, 1.0 - coordinate.y));\n" +
+            "}\n" +
+            "\n" +
+            "highp float rand(highp vec2 co)\n" +
+            "{\n" +
+            "    return fract(sin(dot(co, vec2(12.9898, 78.233))) * 43758.5453);\n" +
+            "}\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    highp vec2 uv = textureCoordinate;\n" +
+            "    if (transition == 1) {\n" +
+            "        if (uv.x < 1.0 - progress)\n" +
+            "            gl_FragColor = from(vec2(uv.x + progress, uv.y));\n" +
+            "        else\n" +
+            "            gl_FragColor = to(vec2(uv.x - (1.0 - progress), uv.y));\n" +
+            "    } else if (transition == 2) {\n" +
+            "        highp vec2 zoomed = (uv - 0.5) / (1.0 + progress) + 0.5;\n" +
+            "        gl_FragColor = mix(from(zoomed), to(uv), progress);\n" +
+            "    } else if (transition == 3) {\n" +
+            "        gl_FragColor = rand(uv) < progress ? to(uv) : from(uv);\n" +
+            "    } else if (transition == 4) {\n" +
+            "        gl_FragColor = mod(uv.x, unitWidth) < progress * unitWidth ? to(uv) : from(uv);\n" +
+            "    } else {\n" +
+            "        gl_FragColor = uv.x < progress ? to(uv) : from(uv);\n" +
+            "    }\n" +
+            "}";
+
+    private int mGLTransition;
+    private int mGLProgress;
+    private int mGLUnitWidth;
+    private int mTransitionType;
+    private float mUnitWidth = 0.1f;
+
+    public GPUImageTransitionFilter() {
+        this(TRANSITION_WIPE);
+    }
+
+    public GPUImageTransitionFilter(int transition) {
+        super(VERTEX_SHADER, FRAGMENT_SHADER);
+        mTransitionType = transition;
+    }
+
+    /**
+     * @return the transition implementing the filter type, -1 if it is not a catalog transition
+     */
+    public static int getTransition(XMFilterType type) {
+        switch (type) {
+            case FILTER_TRANSITION_WIPE:
+                return TRANSITION_WIPE;
+            case FILTER_TRANSITION_SLIDE:
+                return TRANSITION_SLIDE;
+            case FILTER_TRANSITION_ZOOM:
+                return TRANSITION_ZOOM;
+            case FILTER_TRANSITION_DISSOLVE:
+                return TRANSITION_DISSOLVE;
+            case FILTER_TRANSITION_BLINDS:
+                return TRANSITION_BLINDS;
+            default:
+                return -1;
+        }
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+
+        mGLTransition = GLES20.glGetUniformLocation(getProgram(), "transition");
+        mGLProgress = GLES20.glGetUniformLocation(getProgram(), "progress");
+        mGLUnitWidth = GLES20.glGetUniformLocation(getProgram(), "unitWidth");
+    }
+
+    @Override
+    public void onInitialized() {
+        super.onInitialized();
+        setTransitionType(mTransitionType);
+        setBlindsWinNumber(1.0f / mUnitWidth);
+    }
+
+    @Override
+    protected void onDrawArraysPre() {
+        super.onDrawArraysPre();
+        GLES20.glUniform1f(mGLProgress, updateTransition());
+    }
+
+    public void setTransitionType(final int transition) {
+        mTransitionType = transition;
+        setInteger(mGLTransition, transition);
+    }
+
+    public int getTransitionType() {
+        return mTransitionType;
+    }
+
+    public void setBlindsWinNumber(final float winNumber) {
+        mUnitWidth = 1.0f / winNumber;
+        setFloat(mGLUnitWidth, mUnitWidth);
+    }
+}
@@ -1,14 +1,13 @@
 package com.xmly.media.gles.filter;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 
 import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
 
+import com.xmly.media.gles.QuadVertexBuffer;
 import com.xmly.media.gles.utils.OpenGlUtils;
-import com.xmly.media.gles.utils.TextureRotationUtil;
+import com.xmly.media.gles.utils.Rotation;
 
 /**
  * Created by sunyc on 19-7-11.
@@ -81,10 +80,7 @@ public class GPUImageTwoInputFilter extends GPUImageFilter {
     public GPUImageTwoInputFilter(String vertexShader, String fragmentShader) {
         super(vertexShader, fragmentShader);
 
-        mTexture2CoordinatesBuffer = ByteBuffer.allocateDirect(TextureRotationUtil.TEXTURE_NO_ROTATION.length * 4)
-                .order(ByteOrder.nativeOrder())
-                .asFloatBuffer();
-        mTexture2CoordinatesBuffer.put(TextureRotationUtil.TEXTURE_NO_ROTATION).position(0);
+        mTexture2CoordinatesBuffer = QuadVertexBuffer.getTextureBuffer(Rotation.NORMAL, false, false);
     }
 
     @Override
@@ -108,9 +104,7 @@ public class GPUImageTwoInputFilter extends GPUImageFilter {
             GLES20.glUniform1i(mGLUniformTexture2, 3);
         }
 
-        mTexture2CoordinatesBuffer.position(0);
-        GLES20.glVertexAttribPointer(mGLAttribTextureCoordinate2, 2, GLES20.GL_FLOAT, false, 0,
-                mTexture2CoordinatesBuffer);
+        setVertexAttribPointer(mGLAttribTextureCoordinate2, mTexture2CoordinatesBuffer);
         GLES20.glEnableVertexAttribArray(mGLAttribTextureCoordinate2);
     }
 
@@ -0,0 +1,249 @@
+package com.xmly.media.gles.filter;
+
+import android.opengl.GLES20;
+
+import com.xmly.media.gles.utils.XMFilterType;
+
+/**
+ * The single-pass effects in one program, the active effect is chosen with a uniform.
+ * Switching between them with {@link #setFilterType} is a uniform write, no program is
+ * compiled or destroyed. The effects use the default parameters of their standalone filters.
+ */
+public class GPUImageUberFilter extends GPUImage3x3TextureSamplingFilter {
+    public static final int EFFECT_NONE = 0;
+    public static final int EFFECT_SKETCH = 1;
+    public static final int EFFECT_SEPIA = 2;
+    public static final int EFFECT_INVERT = 3;
+    public static final int EFFECT_VIGNETTE = 4;
+    public static final int EFFECT_LAPLACIAN = 5;
+    public static final int EFFECT_GLASS_SPHERE = 6;
+    public static final int EFFECT_MIRROR = 7;
+    public static final int EFFECT_CROSSHATCH = 8;
+
+    public static final String UBER_FRAGMENT_SHADER = "" +
+            "precision highp float;\n" +
+            "\n" +
+            "varying vec2 textureCoordinate;\n" +
+            "varying vec2 leftTextureCoordinate;\n" +
+            "varying vec2 rightTextureCoordinate;\n" +
+            "\n" +
+            "varying vec2 topTextureCoordinate;\n" +
+            "varying vec2 topLeftTextureCoordinate;\n" +
+            "varying vec2 topRightTextureCoordinate;\n" +
+            "\n" +
+            "varying vec2 bottomTextureCoordinate;\n" +
+            "varying vec2 bottomLeftTextureCoordinate;\n" +
+            "varying vec2 bottomRightTextureCoordinate;\n" +
+            "\n" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "uniform int effect;\n" +
+            "uniform float aspectRatio;\n" +
+            "uniform float crossHatchSpacing;\n" +
+            "\n" +
+            "const vec3 W = vec3(0.2125, 0.7154, 0.0721);\n" +
+            "const mat4 sepiaMatrix = mat4(0.3588, 0.7044, 0.1368, 0.0,\n" +
+            "        0.2990, 0.5870, 0.1140, 0.0,\n" +
+            "        0.2392, 0.4696, 0.0912, 0.0,\n" +
+            "        0.0, 0.0, 0.0, 1.0);\n" +
+            "const mat3 laplacianMatrix = mat3(0.5, 1.0, 0.5,\n" +
+            "        1.0, -6.0, 1.0,\n" +
+            "        0.5, 1.0, 0.5);\n" +
+            "const vec2 sphereCenter = vec2(0.5, 0.5);\n" +
+            "const float sphereRadius = 0.25;\n" +
+            "const float refractiveIndex = 0.71;\n" +
+            "const vec3 lightPosition = vec3(-0.5, 0.5, 1.0);\n" +
+            "const vec3 ambientLightPosition = vec3(0.0, 0.0, 1.0);\n" +
+            "const float lineWidth = 0.003;\n" +
+            "\n" +
+            "float luminance(vec2 coordinate)\n" +
+            "{\n" +
+            "    return dot(texture2D(inputImageTexture, coordinate).rgb, W);\n" +
+            "}\n" +
+            "\n" +
+            "vec4 sketch()\n" +
+            "{\n" +
+            "    float bottomLeftIntensity = luminance(bottomLeftTextureCoordinate);\n" +
+            "    float topRightIntensity = luminance(topRightTextureCoordinate);\n" +
+            "    float topLeftIntensity = luminance(topLeftTextureCoordinate);\n" +
+            "    float bottomRightIntensity = luminance(bottomRightTextureCoordinate);\n" +
+            "    float leftIntensity = luminance(leftTextureCoordinate);\n" +
+            "    float rightIntensity = luminance(rightTextureCoordinate);\n" +
+            "    float bottomIntensity = luminance(bottomTextureCoordinate);\n" +
+            "    float topIntensity = luminance(topTextureCoordinate);\n" +
+            "    float h = -topLeftIntensity - 2.0 * topIntensity - topRightIntensity + bottomLeftIntensity + 2.0 * bottomIntensity + bottomRightIntensity;\n" +
+            "    float v = -bottomLeftIntensity - 2.0 * leftIntensity - topLeftIntensity + bottomRightIntensity + 2.0 * rightIntensity + topRightIntensity;\n" +
+            "    float mag = 1.0 - length(vec2(h, v));\n" +
+            "    return vec4(vec3(mag), 1.0);\n" +
+            "}\n" +
+            "\n" +
+            "vec4 laplacian()\n" +
+            "{\n" +
+            "    vec4 centerColor = texture2D(inputImageTexture, textureCoordinate);\n" +
+            "    vec3 resultColor = texture2D(inputImageTexture, topLeftTextureCoordinate).rgb * laplacianMatrix[0][0]\n" +
+            "            + texture2D(inputImageTexture, topTextureCoordinate).rgb * laplacianMatrix[0][1]\n" +
+            "            + texture2D(inputImageTexture, topRightTextureCoordinate).rgb * laplacianMatrix[0][2];\n" +
+            "    resultColor += texture2D(inputImageTexture, leftTextureCoordinate).rgb * laplacianMatrix[1][0]\n" +
+            "            + centerColor.rgb * laplacianMatrix[1][1]\n" +
+            "            + texture2D(inputImageTexture, rightTextureCoordinate).rgb * laplacianMatrix[1][2];\n" +
+            "    resultColor += texture2D(inputImageTexture, bottomLeftTextureCoordinate).rgb * laplacianMatrix[2][0]\n" +
+            "            + texture2D(inputImageTexture, bottomTextureCoordinate).rgb * laplacianMatrix[2][1]\n" +
+            "            + texture2D(inputImageTexture, bottomRightTextureCoordinate).rgb * laplacianMatrix[2][2];\n" +
+            "    return vec4(resultColor + 0.5, centerColor.a);\n" +
+            "}\n" +
+            "\n" +
+            "vec4 vignette()\n" +
+            "{\n" +
+            "    vec3 rgb = texture2D(inputImageTexture, textureCoordinate).rgb;\n" +
+            "    float percent = smoothstep(0.3, 0.75, distance(textureCoordinate, vec2(0.5, 0.5)));\n" +
+            "    return vec4(mix(rgb, vec3(0.0), percent), 1.0);\n" +
+            "}\n" +
+            "\n" +
+            "vec4 glassSphere()\n" +
+            "{\n" +
+            "    vec2 textureCoordinateToUse = vec2(textureCoordinate.x, (textureCoordinate.y * aspectRatio + 0.5 - 0.5 * aspectRatio));\n" +
+            "    float distanceFromCenter = distance(sphereCenter, textureCoordinateToUse);\n" +
+            "    float checkForPresenceWithinSphere = step(distanceFromCenter, sphereRadius);\n" +
+            "    distanceFromCenter = distanceFromCenter / sphereRadius;\n" +
+            "    float normalizedDepth = sphereRadius * sqrt(1.0 - distanceFromCenter * distanceFromCenter);\n" +
+            "    vec3 sphereNormal = normalize(vec3(textureCoordinateToUse - sphereCenter, normalizedDepth));\n" +
+            "    vec3 refractedVector = 2.0 * refract(vec3(0.0, 0.0, -1.0), sphereNormal, refractiveIndex);\n" +
+            "    refractedVector.xy = -refractedVector.xy;\n" +
+            "    vec3 finalSphereColor = texture2D(inputImageTexture, (refractedVector.xy + 1.0) * 0.5).rgb;\n" +
+            "    float lightingIntensity = 2.5 * (1.0 - pow(clamp(dot(ambientLightPosition, sphereNormal), 0.0, 1.0), 0.25));\n" +
+            "    finalSphereColor += lightingIntensity;\n" +
+            "    lightingIntensity = clamp(dot(normalize(lightPosition), sphereNormal), 0.0, 1.0);\n" +
+            "    lightingIntensity = pow(lightingIntensity, 15.0);\n" +
+            "    finalSphereColor += vec3(0.8, 0.8, 0.8) * lightingIntensity;\n" +
+            "    return vec4(finalSphereColor, 1.0) * checkForPresenceWithinSphere;\n" +
+            "}\n" +
+            "\n" +
+            "vec4 crosshatch()\n" +
+            "{\n" +
+            "    float lum = luminance(textureCoordinate);\n" +
+            "    vec4 colorToDisplay = vec4(1.0, 1.0, 1.0, 1.0);\n" +
+            "    if (lum < 1.00 && mod(textureCoordinate.x + textureCoordinate.y, crossHatchSpacing) <= lineWidth)\n" +
+            "        colorToDisplay = vec4(0.0, 0.0, 0.0, 1.0);\n" +
+            "    if (lum < 0.75 && mod(textureCoordinate.x - textureCoordinate.y, crossHatchSpacing) <= lineWidth)\n" +
+            "        colorToDisplay = vec4(0.0, 0.0, 0.0, 1.0);\n" +
+            "    if (lum < 0.50 && mod(textureCoordinate.x + textureCoordinate.y - (crossHatchSpacing / 2.0), crossHatchSpacing) <= lineWidth)\n" +
+            "        colorToDisplay = vec4(0.0, 0.0, 0.0, 1.0);\n" +
+            "    if (lum < 0.3 && mod(textureCoordinate.x - textureCoordinate.y - (crossHatchSpacing / 2.0), crossHatchSpacing) <= lineWidth)\n" +
+            "        colorToDisplay = vec4(0.0, 0.0, 0.0, 1.0);\n" +
+            "    return colorToDisplay;\n" +
+            "}\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    if (effect == 1) {\n" +
+            "        gl_FragColor = sketch();\n" +
+            "    } else if (effect == 2) {\n" +
+            "        vec4 textureColor = texture2D(inputImageTexture, textureCoordinate);\n" +
+            "        gl_FragColor = textureColor * sepiaMatrix;\n" +
+            "    } else if (effect == 3) {\n" +
+            "        vec4 textureColor = texture2D(inputImageTexture, textureCoordinate);\n" +
+            "        gl_FragColor = vec4((1.0 - textureColor.rgb), textureColor.w);\n" +
+            "    } else if (effect == 4) {\n" +
+            "        gl_FragColor = vignette();\n" +
+            "    } else if (effect == 5) {\n" +
+            "        gl_FragColor = laplacian();\n" +
+            "    } else if (effect == 6) {\n" +
+            "        gl_FragColor = glassSphere();\n" +
+            "    } else if (effect == 7) {\n" +
+            "        gl_FragColor = texture2D(inputImageTexture, 1.0 - abs(1.0 - 2.0 * textureCoordinate));\n" +
+            "    } else if (effect == 8) {\n" +
+            "        gl_FragColor = crosshatch();\n" +
+            "    } else {\n" +
+            "        gl_FragColor = texture2D(inputImageTexture, textureCoordinate);\n" +
+            "    }\n" +
+            "}\n";
+
+    private static final float CROSSHATCH_SPACING = 0.03f;
+
+    private int mEffect;
+    private int mEffectLocation;
+    private int mAspectRatioLocation;
+    private int mCrossHatchSpacingLocation;
+
+    public GPUImageUberFilter() {
+        this(EFFECT_NONE);
+    }
+
+    public GPUImageUberFilter(int effect) {
+        super(UBER_FRAGMENT_SHADER);
+        mEffect = effect;
+    }
+
+    /**
+     * @return the effect implementing the filter type, -1 if it has no single-pass equivalent
+     */
+    public static int getEffect(XMFilterType type) {
+        switch (type) {
+            case NONE:
+                return EFFECT_NONE;
+            case FILTER_SKETCH:
+                return EFFECT_SKETCH;
+            case FILTER_SEPIA:
+                return EFFECT_SEPIA;
+            case FILTER_INVERT:
+                return EFFECT_INVERT;
+            case FILTER_VIGNETTE:
+                return EFFECT_VIGNETTE;
+            case FILTER_LAPLACIAN:
+                return EFFECT_LAPLACIAN;
+            case FILTER_GLASS_SPHERE:
+                return EFFECT_GLASS_SPHERE;
+            case FILTER_MIRROR:
+                return EFFECT_MIRROR;
+            case FILTER_CROSSHATCH:
+                return EFFECT_CROSSHATCH;
+            default:
+                return -1;
+        }
+    }
+
+    public static boolean isSupported(XMFilterType type) {
+        return getEffect(type) >= 0;
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        mEffectLocation = GLES20.glGetUniformLocation(getProgram(), "effect");
+        mAspectRatioLocation = GLES20.glGetUniformLocation(getProgram(), "aspectRatio");
+        mCrossHatchSpacingLocation = GLES20.glGetUniformLocation(getProgram(), "crossHatchSpacing");
+    }
+
+    @Override
+    public void onInitialized() {
+        super.onInitialized();
+        setEffect(mEffect);
+        setFloat(mCrossHatchSpacingLocation, CROSSHATCH_SPACING);
+    }
+
+    @Override
+    public void onOutputSizeChanged(int width, int height) {
+        super.onOutputSizeChanged(width, height);
+        setFloat(mAspectRatioLocation, (float) height / width);
+        setFloat(mCrossHatchSpacingLocation, Math.max(CROSSHATCH_SPACING, 1.0f / width));
+    }
+
+    public void setEffect(int effect) {
+        mEffect = effect;
+        setInteger(mEffectLocation, effect);
+    }
+
+    public int getEffect() {
+        return mEffect;
+    }
+
+    /**
+     * @return false if the type has no single-pass equivalent, the effect is left unchanged then
+     */
+    public boolean setFilterType(XMFilterType type) {
+        int effect = getEffect(type);
+        if (effect < 0)
+            return false;
+        setEffect(effect);
+        return true;
+    }
+}
@@ -0,0 +1,170 @@
+package com.xmly.media.gles.filter;
+
+import android.opengl.GLES20;
+
+/**
+ * Pending uniform values of one filter, one slot per uniform location.
+ * Setters copy into preallocated slots and mark them dirty, {@link #flush} uploads the dirty
+ * slots on the GL thread with the program bound. Once every uniform has been set once no
+ * further allocation happens, no matter how often the values change.
+ */
+final class GPUImageUniformTable {
+    static final int TYPE_INT = 0;
+    static final int TYPE_FLOAT = 1;
+    static final int TYPE_VEC2 = 2;
+    static final int TYPE_VEC3 = 3;
+    static final int TYPE_VEC4 = 4;
+    static final int TYPE_FLOAT_ARRAY = 5;
+    static final int TYPE_MAT3 = 6;
+    static final int TYPE_MAT4 = 7;
+    private static final int INITIAL_SLOTS = 8;
+
+    private int[] mLocations = new int[INITIAL_SLOTS];
+    private int[] mTypes = new int[INITIAL_SLOTS];
+    private int[] mCounts = new int[INITIAL_SLOTS];
+    private int[] mIntValues = new int[INITIAL_SLOTS];
+    private float[][] mValues = new float[INITIAL_SLOTS][];
+    private boolean[] mDirty = new boolean[INITIAL_SLOTS];
+    private int mSize = 0;
+    private boolean mHasDirty = false;
+
+    synchronized void setInt(int location, int value) {
+        int slot = slot(location, TYPE_INT, 0);
+        if (slot < 0)
+            return;
+        mIntValues[slot] = value;
+        markDirty(slot);
+    }
+
+    synchronized void setFloat(int location, float value) {
+        int slot = slot(location, TYPE_FLOAT, 1);
+        if (slot < 0)
+            return;
+        mValues[slot][0] = value;
+        markDirty(slot);
+    }
+
+    synchronized void setVec2(int location, float x, float y) {
+        int slot = slot(location, TYPE_VEC2, 2);
+        if (slot < 0)
+            return;
+        mValues[slot][0] = x;
+        mValues[slot][1] = y;
+        markDirty(slot);
+    }
+
+    /**
+     * @param count number of floats copied from values
+     */
+    synchronized void setFloats(int location, int type, float[] values, int count) {
+        int slot = slot(location, type, count);
+        if (slot < 0)
+            return;
+        System.arraycopy(values, 0, mValues[slot], 0, count);
+        mCounts[slot] = count;
+        markDirty(slot);
+    }
+
+    /**
+     * Uploads all dirty slots, must be called on the GL thread after glUseProgram.
+     */
+    synchronized void flush() {
+        if (!mHasDirty)
+            return;
+
+        for (int i = 0; i < mSize; i++) {
+            if (!mDirty[i])
+                continue;
+            mDirty[i] = false;
+            int location = mLocations[i];
+            float[] v = mValues[i];
+            switch (mTypes[i]) {
+                case TYPE_INT:
+                    GLES20.glUniform1i(location, mIntValues[i]);
+                    break;
+                case TYPE_FLOAT:
+                    GLES20.glUniform1f(location, v[0]);
+                    break;
+                case TYPE_VEC2:
+                    GLES20.glUniform2fv(location, 1, v, 0);
+                    break;
+                case TYPE_VEC3:
+                    GLES20.glUniform3fv(location, 1, v, 0);
+                    break;
+                case TYPE_VEC4:
+                    GLES20.glUniform4fv(location, 1, v, 0);
+                    break;
+                case TYPE_FLOAT_ARRAY:
+                    GLES20.glUniform1fv(location, mCounts[i], v, 0);
+                    break;
+                case TYPE_MAT3:
+                    GLES20.glUniformMatrix3fv(location, 1, false, v, 0);
+                    break;
+                case TYPE_MAT4:
+                    GLES20.glUniformMatrix4fv(location, 1, false, v, 0);
+                    break;
+                default:
+                    break;
+            }
+        }
+        mHasDirty = false;
+    }
+
+    /**
+     * Drops all slots, used when the uniform locations no longer belong to the bound program.
+     */
+    synchronized void clear() {
+        for (int i = 0; i < mSize; i++) {
+            mDirty[i] = false;
+        }
+        mSize = 0;
+        mHasDirty = false;
+    }
+
+    private void markDirty(int slot) {
+        mDirty[slot] = true;
+        mHasDirty = true;
+    }
+
+    private int slot(int location, int type, int capacity) {
+        if (location < 0)
+            return -1;
+
+        for (int i = 0; i < mSize; i++) {
+            if (mLocations[i] == location) {
+                mTypes[i] = type;
+                if (capacity > 0 && (mValues[i] == null || mValues[i].length < capacity))
+                    mValues[i] = new float[capacity];
+                return i;
+            }
+        }
+
+        if (mSize == mLocations.length) {
+            int size = mSize * 2;
+            mLocations = copyOf(mLocations, size);
+            mTypes = copyOf(mTypes, size);
+            mCounts = copyOf(mCounts, size);
+            mIntValues = copyOf(mIntValues, size);
+            boolean[] dirty = new boolean[size];
+            System.arraycopy(mDirty, 0, dirty, 0, mSize);
+            mDirty = dirty;
+            float[][] values = new float[size][];
+            System.arraycopy(mValues, 0, values, 0, mSize);
+            mValues = values;
+        }
+
+        int slot = mSize++;
+        mLocations[slot] = location;
+        mTypes[slot] = type;
+        mCounts[slot] = capacity;
+        if (capacity > 0 && (mValues[slot] == null || mValues[slot].length < capacity))
+            mValues[slot] = new float[capacity];
+        return slot;
+    }
+
+    private static int[] copyOf(int[] src, int size) {
+        int[] dst = new int[size];
+        System.arraycopy(src, 0, dst, 0, src.length);
+        return dst;
+    }
+}
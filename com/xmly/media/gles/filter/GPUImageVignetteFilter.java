@@ -103,4 +103,20 @@ public class GPUImageVignetteFilter extends GPUImageFilter {
         mVignetteEnd = vignetteEnd;
         setFloat(mVignetteEndLocation, mVignetteEnd);
     }
+
+    public PointF getVignetteCenter() {
+        return mVignetteCenter;
+    }
+
+    public float[] getVignetteColor() {
+        return mVignetteColor;
+    }
+
+    public float getVignetteStart() {
+        return mVignetteStart;
+    }
+
+    public float getVignetteEnd() {
+        return mVignetteEnd;
+    }
 }
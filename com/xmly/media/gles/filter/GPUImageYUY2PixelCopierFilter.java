@@ -4,6 +4,7 @@ import android.opengl.GLES20;
 
 import com.xmly.media.camera.view.recorder.XMMediaRecorder;
 import com.xmly.media.gles.utils.OpenGlUtils;
+import com.xmly.media.gles.utils.YUVColorSpace;
 
 import java.nio.FloatBuffer;
 
@@ -14,18 +15,6 @@ import java.nio.FloatBuffer;
 public class GPUImageYUY2PixelCopierFilter extends GPUImagePixelCopierFilter {
     private static final String TAG = "YUY2PixelCopierFilter";
 
-    private static final float[] coefYVec = new float[]{0.299f, 0.587f, 0.114f, 16f / 255f};
-    private static final float[] coefUVec = new float[]{-0.1687f, -0.3313f, 0.5f, 128f / 255f};
-    private static final float[] coefVVec = new float[]{0.5f, -0.4187f, -0.0813f, 128f / 255f};
-
-    private static final float[] coefYVec709 = new float[]{0.18259f, 0.61423f, 0.06201f, 16f / 255f};
-    private static final float[] coefUVec709 = new float[]{-0.10065f, -0.33857f, 0.43922f, 128f / 255f};
-    private static final float[] coefVVec709 = new float[]{0.43922f, -0.39894f, -0.04027f, 128f / 255f};
-
-    private static final float[] coefYVec601 = new float[]{0.25679f, 0.50413f, 0.09791f, 16f / 255f};
-    private static final float[] coefUVec601 = new float[]{-0.14822f, -0.29099f, 0.43922f, 128f / 255f};
-    private static final float[] coefVVec601 = new float[]{0.43922f, -0.36779f, -0.07142f, 128f / 255f};
-
     /**
      * From RGB to YUV
      *              Y = 0.299R + 0.587G + 0.114B
@@ -98,6 +87,7 @@ public class GPUImageYUY2PixelCopierFilter extends GPUImagePixelCopierFilter {
     private int mGLPerHalfTexel;
     private float sPerHalfTexel = -1;
     private int yuy2Pairs = -1;//yuy2数据量比rgba减半 (width - 1)/2,保证是偶数
+    private volatile YUVColorSpace mColorSpace = YUVColorSpace.BT709_LIMITED;
 
     public GPUImageYUY2PixelCopierFilter(XMMediaRecorder recorder) {
         this(recorder, NO_FILTER_VERTEX_SHADER, FRAGMENT_SHADER);
@@ -108,14 +98,23 @@ public class GPUImageYUY2PixelCopierFilter extends GPUImagePixelCopierFilter {
     }
 
     private void initCoefYUVVec() {
-        runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                GLES20.glUniform4fv(mGLcoefY, 1, coefYVec709, 0);
-                GLES20.glUniform4fv(mGLcoefU, 1, coefUVec709, 0);
-                GLES20.glUniform4fv(mGLcoefV, 1, coefVVec709, 0);
-            }
-        });
+        setFloatVec4(mGLcoefY, mColorSpace.getCoefY());
+        setFloatVec4(mGLcoefU, mColorSpace.getCoefU());
+        setFloatVec4(mGLcoefV, mColorSpace.getCoefV());
+    }
+
+    /**
+     * Selects the YUV matrix and range, BT.709 limited range by default.
+     */
+    public void setColorSpace(YUVColorSpace colorSpace) {
+        mColorSpace = colorSpace;
+        if (isInitialized()) {
+            initCoefYUVVec();
+        }
+    }
+
+    public YUVColorSpace getColorSpace() {
+        return mColorSpace;
     }
 
     @Override
@@ -134,7 +133,7 @@ public class GPUImageYUY2PixelCopierFilter extends GPUImagePixelCopierFilter {
         yuy2Pairs = (width + 1) / 2;
 
         sPerHalfTexel = 0.5f / (float) width;
-        runOnDraw(new Runnable() {
+        runOnDraw("perHalfTexel", new Runnable() {
             @Override
             public void run() {
                 GLES20.glUniform1f(mGLPerHalfTexel, sPerHalfTexel);
@@ -147,6 +146,8 @@ public class GPUImageYUY2PixelCopierFilter extends GPUImagePixelCopierFilter {
                                final FloatBuffer textureBuffer) {
         if (mFrameBuffers == null)
             return OpenGlUtils.NO_TEXTURE;
+        if (!admitFrame())
+            return mFrameBufferTextures[0];
 
         GLES20.glViewport(0, 0, mFrameWidth, mFrameHeight);
         GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffers[0]);
@@ -159,12 +160,9 @@ public class GPUImageYUY2PixelCopierFilter extends GPUImagePixelCopierFilter {
             return OpenGlUtils.NOT_INIT;
         }
 
-        cubeBuffer.position(0);
-        GLES20.glVertexAttribPointer(mGLAttribPosition, 2, GLES20.GL_FLOAT, false, 0, cubeBuffer);
+        setVertexAttribPointer(mGLAttribPosition, cubeBuffer);
         GLES20.glEnableVertexAttribArray(mGLAttribPosition);
-        textureBuffer.position(0);
-        GLES20.glVertexAttribPointer(mGLAttribTextureCoordinate, 2, GLES20.GL_FLOAT, false, 0,
-                textureBuffer);
+        setVertexAttribPointer(mGLAttribTextureCoordinate, textureBuffer);
         GLES20.glEnableVertexAttribArray(mGLAttribTextureCoordinate);
         if (textureId != OpenGlUtils.NO_TEXTURE) {
             GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
@@ -175,7 +173,7 @@ public class GPUImageYUY2PixelCopierFilter extends GPUImagePixelCopierFilter {
         }
         onDrawArraysPre();
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
-        if (mNativeRecorder != null) {
+        if (hasFrameSinks()) {
             downloadImageToRecorderFromTexture(FORMAT_YUY2);
         }
         GLES20.glDisableVertexAttribArray(mGLAttribPosition);
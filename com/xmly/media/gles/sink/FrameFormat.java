@@ -0,0 +1,66 @@
+package com.xmly.media.gles.sink;
+
+/**
+ * Layouts of the frames read back by the pixel copiers. The copiers pack every format into RGBA
+ * texels, so a frame is {@link #getRows} rows of {@link #getRowBytes} bytes, each row possibly
+ * followed by padding up to the row stride handed to the sink.
+ */
+public final class FrameFormat {
+    public static final int RGBA8888 = 1;
+    public static final int YUY2 = 2;
+    public static final int NV12 = 3;
+    public static final int I420 = 4;
+
+    private FrameFormat() {
+    }
+
+    /**
+     * @return bytes of pixel data in one row of the readback, without padding
+     */
+    public static int getRowBytes(int format, int width) {
+        switch (format) {
+            case YUY2:
+                return ((width + 1) / 2) * 4;
+            case NV12:
+            case I420:
+                return width;
+            default:
+                return width * 4;
+        }
+    }
+
+    /**
+     * @return rows in the readback, the chroma planes of 4:2:0 formats follow the luma rows
+     */
+    public static int getRows(int format, int height) {
+        switch (format) {
+            case NV12:
+            case I420:
+                return height * 3 / 2;
+            default:
+                return height;
+        }
+    }
+
+    /**
+     * @return size of a frame with the padding removed
+     */
+    public static int getFrameSize(int format, int width, int height) {
+        return getRowBytes(format, width) * getRows(format, height);
+    }
+
+    public static String getName(int format) {
+        switch (format) {
+            case RGBA8888:
+                return "rgba";
+            case YUY2:
+                return "yuyv422";
+            case NV12:
+                return "nv12";
+            case I420:
+                return "yuv420p";
+            default:
+                return "unknown";
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.xmly.media.gles.sink;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Consumer of the frames read back by a pixel copier. A copier may feed several sinks,
+ * each of them sees the same mapped buffer. Sinks are called on the GL thread that owns the copier.
+ */
+public interface FrameSink {
+    /**
+     * @param frame mapped frame memory, read only and valid until the call returns
+     * @param format one of the {@link FrameFormat} constants
+     * @param width image width in pixels
+     * @param height image height in pixels
+     * @param rowStride distance in bytes between the starts of two rows of frame
+     * @param ptsUs presentation time of the frame
+     */
+    void onFrame(ByteBuffer frame, int format, int width, int height, int rowStride, long ptsUs);
+
+    /**
+     * Called when the sink is removed from its copier or the copier is destroyed.
+     */
+    void release();
+}
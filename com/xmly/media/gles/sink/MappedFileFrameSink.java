@@ -0,0 +1,157 @@
+package com.xmly.media.gles.sink;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes frames back to back into a raw file with the row padding removed, e.g. for
+ * {@code ffplay -f rawvideo -pixel_format nv12 -video_size WxH}. The file is mapped a window of
+ * frames at a time, the row copies go straight from the mapped readback into the mapped file.
+ * Frames whose size differs from the first one are dropped. The file is only truncated on the
+ * first frame, when the copier is re-initialized the sink appends to it, or continues in a new
+ * file named name.1.ext, name.2.ext and so on when the frame size changed.
+ */
+public class MappedFileFrameSink implements FrameSink {
+    private static final String TAG = "MappedFileFrameSink";
+    private static final int DEFAULT_WINDOW_FRAMES = 32;
+    private final File mFile;
+    private File mCurrentFile;
+    private int mFileIndex = 0;
+    private final int mWindowFrames;
+    private RandomAccessFile mRandomAccessFile = null;
+    private FileChannel mChannel = null;
+    private MappedByteBuffer mWindow = null;
+    private long mWritten = 0;
+    private int mFrameSize = 0;
+    private int mFrameCount = 0;
+    private boolean mFailed = false;
+
+    public MappedFileFrameSink(File file, int windowFrames) {
+        mFile = file;
+        mCurrentFile = file;
+        mWindowFrames = Math.max(windowFrames, 1);
+    }
+
+    public MappedFileFrameSink(File file) {
+        this(file, DEFAULT_WINDOW_FRAMES);
+    }
+
+    private void open(int frameSize) throws IOException {
+        boolean append = mFrameSize == frameSize;
+        if (!append && mFrameSize != 0) {
+            //尺寸变了,换一个新文件继续写
+            mFileIndex++;
+            mCurrentFile = getRotatedFile(mFileIndex);
+        }
+        mRandomAccessFile = new RandomAccessFile(mCurrentFile, "rw");
+        if (!append) {
+            mRandomAccessFile.setLength(0);
+            mWritten = 0;
+        }
+        mChannel = mRandomAccessFile.getChannel();
+        mFrameSize = frameSize;
+        mapWindow();
+    }
+
+    private File getRotatedFile(int index) {
+        String name = mFile.getName();
+        int dot = name.lastIndexOf('.');
+        String rotated = dot > 0
+                ? name.substring(0, dot) + "." + index + name.substring(dot)
+                : name + "." + index;
+        return new File(mFile.getParentFile(), rotated);
+    }
+
+    private void mapWindow() throws IOException {
+        mWindow = mChannel.map(FileChannel.MapMode.READ_WRITE, mWritten, (long) mFrameSize * mWindowFrames);
+    }
+
+    @Override
+    public void onFrame(ByteBuffer frame, int format, int width, int height, int rowStride, long ptsUs) {
+        if (mFailed)
+            return;
+
+        int rowBytes = FrameFormat.getRowBytes(format, width);
+        int rows = FrameFormat.getRows(format, height);
+        try {
+            if (mChannel == null) {
+                open(rowBytes * rows);
+                Log.i(TAG, "writing " + FrameFormat.getName(format) + " " + width + "x" + height + " to " + mCurrentFile);
+            } else if (rowBytes * rows != mFrameSize) {
+                Log.w(TAG, "frame size changed, frame dropped");
+                return;
+            }
+            if (mWindow.remaining() < mFrameSize) {
+                mapWindow();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "map " + mCurrentFile + " failed", e);
+            mFailed = true;
+            closeQuietly();
+            return;
+        }
+
+        ByteBuffer src = frame.duplicate();
+        for (int row = 0; row < rows; row++) {
+            src.limit(row * rowStride + rowBytes);
+            src.position(row * rowStride);
+            mWindow.put(src);
+        }
+        mWritten += mFrameSize;
+        mFrameCount++;
+    }
+
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @return bytes written to {@link #getCurrentFile()}
+     */
+    public long getBytesWritten() {
+        return mWritten;
+    }
+
+    /**
+     * @return the file frames currently go to, differs from the given one after a size change
+     */
+    public File getCurrentFile() {
+        return mCurrentFile;
+    }
+
+    private void closeQuietly() {
+        try {
+            if (mChannel != null) {
+                mChannel.close();
+            }
+            if (mRandomAccessFile != null) {
+                mRandomAccessFile.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        mWindow = null;
+        mChannel = null;
+        mRandomAccessFile = null;
+    }
+
+    @Override
+    public void release() {
+        if (mChannel != null) {
+            try {
+                mWindow.force();
+                //去掉最后一个映射窗口未写满的部分
+                mChannel.truncate(mWritten);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        closeQuietly();
+    }
+}
@@ -0,0 +1,126 @@
+package com.xmly.media.gles.sink;
+
+import android.annotation.TargetApi;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.util.Log;
+
+import com.xmly.media.camera.view.recorder.XMMediaRecorder;
+import com.xmly.media.gles.soft.ColorConverter;
+import com.xmly.media.gles.utils.YUVColorSpace;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Sends frames to the native encoder. Fed by a pixel copier the recorder maps the pixel pack
+ * buffer itself through {@link #putPixelPackBuffer}, so the frame never crosses into Java.
+ * Frames from other sources go through {@link #onFrame}. The recorder only takes RGBA there, so
+ * YUY2, NV12 and I420 frames, e.g. replayed captures, are converted on the CPU first with the
+ * colour space set by {@link #setColorSpace}, BT.709 limited range like the copiers by default.
+ */
+public class NativeRecorderFrameSink implements FrameSink {
+    private static final String TAG = "NativeRecorderFrameSink";
+    private static final int PIXEL_STRIDE = 4;
+    private final XMMediaRecorder mRecorder;
+    private byte[] mData = null;
+    //YUV帧去掉行填充后的数据
+    private byte[] mYuv = null;
+    private YUVColorSpace mColorSpace = YUVColorSpace.BT709_LIMITED;
+    private ColorConverter mConverter = null;
+
+    public NativeRecorderFrameSink(XMMediaRecorder recorder) {
+        mRecorder = recorder;
+    }
+
+    /**
+     * @param colorSpace colour space the YUV frames handed to {@link #onFrame} were encoded with
+     */
+    public synchronized void setColorSpace(YUVColorSpace colorSpace) {
+        mColorSpace = colorSpace;
+        if (mConverter != null) {
+            mConverter.setColorSpace(colorSpace);
+        }
+    }
+
+    public XMMediaRecorder getRecorder() {
+        return mRecorder;
+    }
+
+    /**
+     * Copies the pixel pack buffer bound on the calling thread to the encoder.
+     * @param size bytes of the buffer to map
+     * @param texelWidth width of the readback in RGBA texels
+     * @param rows height of the readback
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    public void putPixelPackBuffer(int size, int texelWidth, int rows, int rowPadding, int format) {
+        mRecorder.glMapBufferRange_put(GLES30.GL_PIXEL_PACK_BUFFER, 0, size, GLES30.GL_MAP_READ_BIT,
+                texelWidth, rows, PIXEL_STRIDE, rowPadding, format);
+    }
+
+    @Override
+    public synchronized void onFrame(ByteBuffer frame, int format, int width, int height, int rowStride, long ptsUs) {
+        if (format == FrameFormat.RGBA8888) {
+            int size = rowStride * height;
+            if (mData == null || mData.length != size) {
+                mData = new byte[size];
+            }
+            frame.position(0);
+            frame.get(mData, 0, Math.min(size, frame.remaining()));
+            mRecorder.put(mData, width, height, PIXEL_STRIDE, rowStride - width * PIXEL_STRIDE, 0, false, false);
+            return;
+        }
+
+        if (format != FrameFormat.YUY2 && format != FrameFormat.NV12 && format != FrameFormat.I420) {
+            Log.e(TAG, "unsupported format " + FrameFormat.getName(format) + ", frame dropped");
+            return;
+        }
+        packYuv(frame, format, width, height, rowStride);
+        int size = width * height * PIXEL_STRIDE;
+        if (mData == null || mData.length != size) {
+            mData = new byte[size];
+        }
+        if (mConverter == null) {
+            mConverter = new ColorConverter(mColorSpace);
+        }
+        switch (format) {
+            case FrameFormat.YUY2:
+                mConverter.yuy2ToRgba(mYuv, width, height, mData);
+                break;
+            case FrameFormat.NV12:
+                mConverter.nv12ToRgba(mYuv, width, height, mData);
+                break;
+            default:
+                mConverter.i420ToRgba(mYuv, width, height, mData);
+                break;
+        }
+        mRecorder.put(mData, width, height, PIXEL_STRIDE, 0, 0, false, false);
+    }
+
+    /**
+     * Copies the rows of frame into mYuv without the padding after each row.
+     */
+    private void packYuv(ByteBuffer frame, int format, int width, int height, int rowStride) {
+        int rowBytes = FrameFormat.getRowBytes(format, width);
+        int rows = FrameFormat.getRows(format, height);
+        if (mYuv == null || mYuv.length != rowBytes * rows) {
+            mYuv = new byte[rowBytes * rows];
+        }
+        ByteBuffer src = frame.duplicate();
+        for (int row = 0; row < rows; row++) {
+            src.limit(row * rowStride + rowBytes);
+            src.position(row * rowStride);
+            src.get(mYuv, row * rowBytes, rowBytes);
+        }
+    }
+
+    @Override
+    public synchronized void release() {
+        mData = null;
+        mYuv = null;
+        if (mConverter != null) {
+            mConverter.release();
+            mConverter = null;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.xmly.media.gles.sink;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Keeps the last frames in a ring of preallocated direct buffers, the oldest frame is overwritten
+ * once the ring is full. Frames are stored with the row padding removed. Readers on other threads
+ * copy a frame out with {@link #readLatest}.
+ */
+public class RingFrameSink implements FrameSink {
+    private final ByteBuffer[] mSlots;
+    private final long[] mPts;
+    private int mFormat = 0;
+    private int mWidth = 0;
+    private int mHeight = 0;
+    private int mFrameSize = 0;
+    private long mFrameCount = 0;
+
+    public RingFrameSink(int capacity) {
+        mSlots = new ByteBuffer[Math.max(capacity, 1)];
+        mPts = new long[mSlots.length];
+    }
+
+    @Override
+    public synchronized void onFrame(ByteBuffer frame, int format, int width, int height, int rowStride, long ptsUs) {
+        int rowBytes = FrameFormat.getRowBytes(format, width);
+        int rows = FrameFormat.getRows(format, height);
+        if (format != mFormat || width != mWidth || height != mHeight) {
+            //格式或尺寸变化,之前的帧作废
+            mFormat = format;
+            mWidth = width;
+            mHeight = height;
+            mFrameSize = rowBytes * rows;
+            mFrameCount = 0;
+            for (int i = 0; i < mSlots.length; i++) {
+                if (mSlots[i] != null && mSlots[i].capacity() < mFrameSize) {
+                    mSlots[i] = null;
+                }
+            }
+        }
+
+        int slot = (int) (mFrameCount % mSlots.length);
+        if (mSlots[slot] == null) {
+            mSlots[slot] = ByteBuffer.allocateDirect(mFrameSize).order(ByteOrder.nativeOrder());
+        }
+        ByteBuffer dst = mSlots[slot];
+        dst.clear();
+        ByteBuffer src = frame.duplicate();
+        for (int row = 0; row < rows; row++) {
+            src.limit(row * rowStride + rowBytes);
+            src.position(row * rowStride);
+            dst.put(src);
+        }
+        mPts[slot] = ptsUs;
+        mFrameCount++;
+    }
+
+    /**
+     * Copies the newest frame into dst, which needs {@link #getFrameSize()} bytes remaining.
+     * @return the presentation time of the frame, -1 if there is no frame or dst is too small
+     */
+    public synchronized long readLatest(ByteBuffer dst) {
+        return read(0, dst);
+    }
+
+    /**
+     * @param age 0 for the newest frame, 1 for the one before, up to {@link #getCount()} - 1
+     * @return the presentation time of the frame, -1 if there is no such frame or dst is too small
+     */
+    public synchronized long read(int age, ByteBuffer dst) {
+        if (age < 0 || age >= getCount() || dst.remaining() < mFrameSize)
+            return -1;
+
+        int slot = (int) ((mFrameCount - 1 - age) % mSlots.length);
+        ByteBuffer src = mSlots[slot].duplicate();
+        src.position(0);
+        src.limit(mFrameSize);
+        dst.put(src);
+        return mPts[slot];
+    }
+
+    /**
+     * @return frames currently held
+     */
+    public synchronized int getCount() {
+        return (int) Math.min(mFrameCount, mSlots.length);
+    }
+
+    /**
+     * @return frames received since the last format change
+     */
+    public synchronized long getFrameCount() {
+        return mFrameCount;
+    }
+
+    public synchronized int getFrameSize() {
+        return mFrameSize;
+    }
+
+    public synchronized int getFormat() {
+        return mFormat;
+    }
+
+    public synchronized int getWidth() {
+        return mWidth;
+    }
+
+    public synchronized int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public synchronized void release() {
+        for (int i = 0; i < mSlots.length; i++) {
+            mSlots[i] = null;
+        }
+        mFrameCount = 0;
+    }
+}
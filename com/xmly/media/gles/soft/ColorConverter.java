@@ -0,0 +1,481 @@
+package com.xmly.media.gles.soft;
+
+import com.xmly.media.gles.utils.YUVColorSpace;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Colour conversion, scaling and rotation of frames on the CPU, using the same coefficients as
+ * the pixel copier shaders. Byte layouts match the copiers: RGBA8888, YUY2 as Y0 U0 Y1 V0 with the
+ * chroma of the left pixel, NV12 and I420 with the chroma averaged over 2x2 pixels.
+ * <p>
+ * The default kernels work in 16.16 fixed point and may differ from the shaders by one.
+ * {@link #setReference(boolean)} switches to float kernels that repeat the shader arithmetic,
+ * to check the coefficient tables against a readback. Frames of at least
+ * {@link #PARALLEL_THRESHOLD} pixels are split into bands of rows processed on a fork-join pool.
+ */
+public class ColorConverter {
+    private static final String TAG = "ColorConverter";
+    public static final int PARALLEL_THRESHOLD = 320 * 240;
+    private static final int BAND_ROWS = 16;
+    private static final int SHIFT = 16;
+    private static final int ONE = 1 << SHIFT;
+    private static final int HALF = 1 << (SHIFT - 1);
+
+    private final ForkJoinPool mPool;
+    private volatile YUVColorSpace mColorSpace;
+    private volatile boolean mReference = false;
+    //定点系数,顺序r g b和常数项
+    private int[] mFixY;
+    private int[] mFixU;
+    private int[] mFixV;
+    //YUV到RGB的逆矩阵,每行三个系数和常数项
+    private float[] mInverse;
+    private int[] mFixInverse;
+
+    public ColorConverter(YUVColorSpace colorSpace) {
+        this(colorSpace, Runtime.getRuntime().availableProcessors());
+    }
+
+    public ColorConverter(YUVColorSpace colorSpace, int parallelism) {
+        mPool = new ForkJoinPool(Math.max(1, parallelism));
+        setColorSpace(colorSpace);
+    }
+
+    public synchronized void setColorSpace(YUVColorSpace colorSpace) {
+        mColorSpace = colorSpace;
+        mFixY = toFixed(colorSpace.getCoefY());
+        mFixU = toFixed(colorSpace.getCoefU());
+        mFixV = toFixed(colorSpace.getCoefV());
+        mInverse = invert(colorSpace);
+        mFixInverse = new int[12];
+        for (int i = 0; i < 12; i++) {
+            //常数项按0~255的取值范围缩放
+            float scale = (i % 4 == 3) ? 255.0f * ONE : ONE;
+            mFixInverse[i] = Math.round(mInverse[i] * scale);
+        }
+    }
+
+    public YUVColorSpace getColorSpace() {
+        return mColorSpace;
+    }
+
+    /**
+     * @param reference true to use the float kernels that repeat the shader arithmetic
+     */
+    public void setReference(boolean reference) {
+        mReference = reference;
+    }
+
+    public void release() {
+        mPool.shutdown();
+    }
+
+    private static int[] toFixed(float[] coef) {
+        return new int[]{Math.round(coef[0] * ONE), Math.round(coef[1] * ONE),
+                Math.round(coef[2] * ONE), Math.round(coef[3] * 255.0f * ONE)};
+    }
+
+    /**
+     * Inverts rgb -> yuv of the colour space into rows of r, g, b = m * (y, u, v) + c, values in [0, 1].
+     */
+    private static float[] invert(YUVColorSpace colorSpace) {
+        float[] y = colorSpace.getCoefY();
+        float[] u = colorSpace.getCoefU();
+        float[] v = colorSpace.getCoefV();
+        double a = y[0], b = y[1], c = y[2];
+        double d = u[0], e = u[1], f = u[2];
+        double g = v[0], h = v[1], k = v[2];
+        double det = a * (e * k - f * h) - b * (d * k - f * g) + c * (d * h - e * g);
+        double[] m = {
+                (e * k - f * h) / det, (c * h - b * k) / det, (b * f - c * e) / det,
+                (f * g - d * k) / det, (a * k - c * g) / det, (c * d - a * f) / det,
+                (d * h - e * g) / det, (b * g - a * h) / det, (a * e - b * d) / det};
+        float[] inverse = new float[12];
+        for (int row = 0; row < 3; row++) {
+            double m0 = m[row * 3], m1 = m[row * 3 + 1], m2 = m[row * 3 + 2];
+            inverse[row * 4] = (float) m0;
+            inverse[row * 4 + 1] = (float) m1;
+            inverse[row * 4 + 2] = (float) m2;
+            inverse[row * 4 + 3] = (float) -(m0 * y[3] + m1 * u[3] + m2 * v[3]);
+        }
+        return inverse;
+    }
+
+    static int clamp(int v) {
+        return v < 0 ? 0 : (v > 255 ? 255 : v);
+    }
+
+    /**
+     * The conversion a unorm8 render target applies to a shader output.
+     */
+    static int toByte(float v) {
+        return clamp((int) Math.floor(v * 255.0f + 0.5f));
+    }
+
+    private static int fixDot(int[] c, int r, int g, int b) {
+        return clamp((c[0] * r + c[1] * g + c[2] * b + c[3] + HALF) >> SHIFT);
+    }
+
+    private static int floatDot(float[] c, float r, float g, float b) {
+        return toByte(c[0] * r + c[1] * g + c[2] * b + c[3]);
+    }
+
+    /**
+     * NV21 as delivered by the camera preview, chroma is upsampled by repetition.
+     * @param rgba receives width * height * 4 bytes
+     */
+    public void nv21ToRgba(byte[] nv21, int width, int height, byte[] rgba) {
+        int size = width * height;
+        yuv420ToRgba(nv21, width, height, rgba, size + 1, size, 2, (width + 1) & ~1);
+    }
+
+    /**
+     * NV12 as read back by the NV12 copier, chroma is upsampled by repetition.
+     * @param rgba receives width * height * 4 bytes
+     */
+    public void nv12ToRgba(byte[] nv12, int width, int height, byte[] rgba) {
+        int size = width * height;
+        yuv420ToRgba(nv12, width, height, rgba, size, size + 1, 2, (width + 1) & ~1);
+    }
+
+    /**
+     * @param rgba receives width * height * 4 bytes, width and height must be even
+     */
+    public void i420ToRgba(byte[] i420, int width, int height, byte[] rgba) {
+        int size = width * height;
+        yuv420ToRgba(i420, width, height, rgba, size, size + size / 4, 1, width / 2);
+    }
+
+    /**
+     * @param uBase index of the first u sample
+     * @param vBase index of the first v sample
+     * @param step distance between two chroma samples of a row, 2 when u and v are interleaved
+     * @param chromaStride distance between two chroma rows
+     */
+    private void yuv420ToRgba(final byte[] yuv, final int width, final int height, final byte[] rgba,
+                              final int uBase, final int vBase, final int step, final int chromaStride) {
+        final boolean reference = mReference;
+        final float[] inverse;
+        final int[] fix;
+        synchronized (this) {
+            inverse = mInverse;
+            fix = mFixInverse;
+        }
+        run(height, width * height, new RowKernel() {
+            @Override
+            public void rows(int first, int last) {
+                for (int row = first; row < last; row++) {
+                    int yIndex = row * width;
+                    int cRow = (row >> 1) * chromaStride;
+                    int out = yIndex * 4;
+                    for (int x = 0; x < width; x++) {
+                        int c = cRow + (x >> 1) * step;
+                        putRgba(rgba, out, yuv[yIndex + x] & 0xff, yuv[uBase + c] & 0xff, yuv[vBase + c] & 0xff,
+                                reference, inverse, fix);
+                        out += 4;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * YUY2 as read back by the YUY2 copier, both pixels of a pair use its chroma.
+     * @param yuy2 ((width + 1) / 2) * 4 bytes per row
+     * @param rgba receives width * height * 4 bytes
+     */
+    public void yuy2ToRgba(final byte[] yuy2, final int width, final int height, final byte[] rgba) {
+        final boolean reference = mReference;
+        final float[] inverse;
+        final int[] fix;
+        synchronized (this) {
+            inverse = mInverse;
+            fix = mFixInverse;
+        }
+        run(height, width * height, new RowKernel() {
+            @Override
+            public void rows(int first, int last) {
+                int pairs = (width + 1) / 2;
+                for (int row = first; row < last; row++) {
+                    int in = row * pairs * 4;
+                    int out = row * width * 4;
+                    for (int x = 0; x < width; x++) {
+                        int pair = in + (x >> 1) * 4;
+                        putRgba(rgba, out, yuy2[pair + (x & 1) * 2] & 0xff, yuy2[pair + 1] & 0xff, yuy2[pair + 3] & 0xff,
+                                reference, inverse, fix);
+                        out += 4;
+                    }
+                }
+            }
+        });
+    }
+
+    private static void putRgba(byte[] rgba, int out, int y, int u, int v,
+                                boolean reference, float[] inverse, int[] fix) {
+        if (reference) {
+            float fy = y / 255.0f, fu = u / 255.0f, fv = v / 255.0f;
+            rgba[out] = (byte) floatDot(inverse, fy, fu, fv);
+            rgba[out + 1] = (byte) toByte(inverse[4] * fy + inverse[5] * fu + inverse[6] * fv + inverse[7]);
+            rgba[out + 2] = (byte) toByte(inverse[8] * fy + inverse[9] * fu + inverse[10] * fv + inverse[11]);
+        } else {
+            rgba[out] = (byte) clamp((fix[0] * y + fix[1] * u + fix[2] * v + fix[3] + HALF) >> SHIFT);
+            rgba[out + 1] = (byte) clamp((fix[4] * y + fix[5] * u + fix[6] * v + fix[7] + HALF) >> SHIFT);
+            rgba[out + 2] = (byte) clamp((fix[8] * y + fix[9] * u + fix[10] * v + fix[11] + HALF) >> SHIFT);
+        }
+        rgba[out + 3] = (byte) 0xff;
+    }
+
+    /**
+     * @param yuy2 receives ((width + 1) / 2) * 4 bytes per row
+     */
+    public void rgbaToYuy2(final byte[] rgba, final int width, final int height, final byte[] yuy2) {
+        final boolean reference = mReference;
+        final int[][] fix = getFixedCoefs();
+        final YUVColorSpace cs = mColorSpace;
+        run(height, width * height, new RowKernel() {
+            @Override
+            public void rows(int first, int last) {
+                int pairs = (width + 1) / 2;
+                for (int row = first; row < last; row++) {
+                    int in = row * width * 4;
+                    int out = row * pairs * 4;
+                    for (int i = 0; i < pairs; i++) {
+                        int left = in + i * 8;
+                        int right = (2 * i + 1 < width) ? left + 4 : left;
+                        int r0 = rgba[left] & 0xff, g0 = rgba[left + 1] & 0xff, b0 = rgba[left + 2] & 0xff;
+                        int r1 = rgba[right] & 0xff, g1 = rgba[right + 1] & 0xff, b1 = rgba[right + 2] & 0xff;
+                        if (reference) {
+                            float fr = r0 / 255.0f, fg = g0 / 255.0f, fb = b0 / 255.0f;
+                            yuy2[out] = (byte) floatDot(cs.getCoefY(), fr, fg, fb);
+                            yuy2[out + 1] = (byte) floatDot(cs.getCoefU(), fr, fg, fb);
+                            yuy2[out + 2] = (byte) floatDot(cs.getCoefY(), r1 / 255.0f, g1 / 255.0f, b1 / 255.0f);
+                            yuy2[out + 3] = (byte) floatDot(cs.getCoefV(), fr, fg, fb);
+                        } else {
+                            yuy2[out] = (byte) fixDot(fix[0], r0, g0, b0);
+                            yuy2[out + 1] = (byte) fixDot(fix[1], r0, g0, b0);
+                            yuy2[out + 2] = (byte) fixDot(fix[0], r1, g1, b1);
+                            yuy2[out + 3] = (byte) fixDot(fix[2], r0, g0, b0);
+                        }
+                        out += 4;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @param nv12 receives width * height * 3 / 2 bytes, width and height must be even
+     */
+    public void rgbaToNv12(byte[] rgba, int width, int height, byte[] nv12) {
+        rgbaTo420(rgba, width, height, nv12, true);
+    }
+
+    /**
+     * @param i420 receives width * height * 3 / 2 bytes, width and height must be even
+     */
+    public void rgbaToI420(byte[] rgba, int width, int height, byte[] i420) {
+        rgbaTo420(rgba, width, height, i420, false);
+    }
+
+    private synchronized int[][] getFixedCoefs() {
+        return new int[][]{mFixY, mFixU, mFixV};
+    }
+
+    private void rgbaTo420(final byte[] rgba, final int width, final int height, final byte[] out,
+                           final boolean interleaved) {
+        final boolean reference = mReference;
+        final int[][] fix = getFixedCoefs();
+        final YUVColorSpace cs = mColorSpace;
+        //按行对划分,每对行产出一行色度
+        run(height / 2, width * height, new RowKernel() {
+            @Override
+            public void rows(int first, int last) {
+                int chromaWidth = width / 2;
+                int uBase = width * height;
+                int vBase = uBase + chromaWidth * (height / 2);
+                for (int pair = first; pair < last; pair++) {
+                    int row0 = pair * 2;
+                    for (int row = row0; row < row0 + 2; row++) {
+                        int in = row * width * 4;
+                        int y = row * width;
+                        for (int x = 0; x < width; x++, in += 4) {
+                            int r = rgba[in] & 0xff, g = rgba[in + 1] & 0xff, b = rgba[in + 2] & 0xff;
+                            out[y + x] = (byte) (reference
+                                    ? floatDot(cs.getCoefY(), r / 255.0f, g / 255.0f, b / 255.0f)
+                                    : fixDot(fix[0], r, g, b));
+                        }
+                    }
+                    int top = row0 * width * 4;
+                    int bottom = top + width * 4;
+                    for (int cx = 0; cx < chromaWidth; cx++) {
+                        int p = cx * 8;
+                        int r = (rgba[top + p] & 0xff) + (rgba[top + p + 4] & 0xff)
+                                + (rgba[bottom + p] & 0xff) + (rgba[bottom + p + 4] & 0xff);
+                        int g = (rgba[top + p + 1] & 0xff) + (rgba[top + p + 5] & 0xff)
+                                + (rgba[bottom + p + 1] & 0xff) + (rgba[bottom + p + 5] & 0xff);
+                        int b = (rgba[top + p + 2] & 0xff) + (rgba[top + p + 6] & 0xff)
+                                + (rgba[bottom + p + 2] & 0xff) + (rgba[bottom + p + 6] & 0xff);
+                        int u, v;
+                        if (reference) {
+                            float fr = r / 1020.0f, fg = g / 1020.0f, fb = b / 1020.0f;
+                            u = floatDot(cs.getCoefU(), fr, fg, fb);
+                            v = floatDot(cs.getCoefV(), fr, fg, fb);
+                        } else {
+                            //四个像素之和,多出的两位在系数相乘后移掉
+                            u = clamp((fix[1][0] * r + fix[1][1] * g + fix[1][2] * b + 4 * fix[1][3] + 4 * HALF) >> (SHIFT + 2));
+                            v = clamp((fix[2][0] * r + fix[2][1] * g + fix[2][2] * b + 4 * fix[2][3] + 4 * HALF) >> (SHIFT + 2));
+                        }
+                        if (interleaved) {
+                            int c = uBase + pair * width + cx * 2;
+                            out[c] = (byte) u;
+                            out[c + 1] = (byte) v;
+                        } else {
+                            out[uBase + pair * chromaWidth + cx] = (byte) u;
+                            out[vBase + pair * chromaWidth + cx] = (byte) v;
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Bilinear scaling of each plane of an I420 frame, all sizes must be even.
+     */
+    public void scaleI420(byte[] src, int srcWidth, int srcHeight, byte[] dst, int dstWidth, int dstHeight) {
+        int srcLuma = srcWidth * srcHeight;
+        int dstLuma = dstWidth * dstHeight;
+        int srcChroma = srcLuma / 4;
+        int dstChroma = dstLuma / 4;
+        scalePlane(src, 0, srcWidth, srcHeight, dst, 0, dstWidth, dstHeight);
+        scalePlane(src, srcLuma, srcWidth / 2, srcHeight / 2, dst, dstLuma, dstWidth / 2, dstHeight / 2);
+        scalePlane(src, srcLuma + srcChroma, srcWidth / 2, srcHeight / 2,
+                dst, dstLuma + dstChroma, dstWidth / 2, dstHeight / 2);
+    }
+
+    private void scalePlane(final byte[] src, final int srcOffset, final int srcWidth, final int srcHeight,
+                            final byte[] dst, final int dstOffset, final int dstWidth, final int dstHeight) {
+        //像素中心对齐,16.16定点步长
+        final long stepX = ((long) srcWidth << SHIFT) / dstWidth;
+        final long stepY = ((long) srcHeight << SHIFT) / dstHeight;
+        run(dstHeight, dstWidth * dstHeight, new RowKernel() {
+            @Override
+            public void rows(int first, int last) {
+                for (int row = first; row < last; row++) {
+                    long fy = Math.max(row * stepY + stepY / 2 - HALF, 0);
+                    int y0 = Math.min((int) (fy >> SHIFT), srcHeight - 1);
+                    int y1 = Math.min(y0 + 1, srcHeight - 1);
+                    int wy = (int) (fy & (ONE - 1));
+                    int line0 = srcOffset + y0 * srcWidth;
+                    int line1 = srcOffset + y1 * srcWidth;
+                    int out = dstOffset + row * dstWidth;
+                    for (int x = 0; x < dstWidth; x++) {
+                        long fx = Math.max(x * stepX + stepX / 2 - HALF, 0);
+                        int x0 = Math.min((int) (fx >> SHIFT), srcWidth - 1);
+                        int x1 = Math.min(x0 + 1, srcWidth - 1);
+                        int wx = (int) (fx & (ONE - 1));
+                        long top = (src[line0 + x0] & 0xff) * (long) (ONE - wx) + (src[line0 + x1] & 0xff) * (long) wx;
+                        long bottom = (src[line1 + x0] & 0xff) * (long) (ONE - wx) + (src[line1 + x1] & 0xff) * (long) wx;
+                        long value = top * (ONE - wy) + bottom * wy;
+                        dst[out + x] = (byte) ((value + (1L << (2 * SHIFT - 1))) >> (2 * SHIFT));
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Rotates an I420 frame clockwise, the flips are applied to the source before rotating,
+     * as the rotate_degrees and flip arguments of {@code XMMediaRecorder.put}.
+     * The output is height x width for 90 and 270 degrees.
+     */
+    public void rotateI420(byte[] src, int width, int height, byte[] dst, int degrees,
+                           boolean flipHorizontal, boolean flipVertical) {
+        int luma = width * height;
+        int chroma = luma / 4;
+        rotatePlane(src, 0, width, height, dst, 0, degrees, flipHorizontal, flipVertical);
+        rotatePlane(src, luma, width / 2, height / 2, dst, luma, degrees, flipHorizontal, flipVertical);
+        rotatePlane(src, luma + chroma, width / 2, height / 2, dst, luma + chroma, degrees,
+                flipHorizontal, flipVertical);
+    }
+
+    private void rotatePlane(final byte[] src, final int srcOffset, final int width, final int height,
+                             final byte[] dst, final int dstOffset, int degrees,
+                             final boolean flipHorizontal, final boolean flipVertical) {
+        final int rotation = ((degrees % 360) + 360) % 360 / 90;
+        final boolean swap = (rotation & 1) != 0;
+        final int dstWidth = swap ? height : width;
+        final int dstHeight = swap ? width : height;
+        run(dstHeight, width * height, new RowKernel() {
+            @Override
+            public void rows(int first, int last) {
+                for (int row = first; row < last; row++) {
+                    int out = dstOffset + row * dstWidth;
+                    for (int x = 0; x < dstWidth; x++) {
+                        //目标像素对应到翻转后的源图坐标
+                        int sx, sy;
+                        switch (rotation) {
+                            case 1:
+                                sx = row;
+                                sy = height - 1 - x;
+                                break;
+                            case 2:
+                                sx = width - 1 - x;
+                                sy = height - 1 - row;
+                                break;
+                            case 3:
+                                sx = width - 1 - row;
+                                sy = x;
+                                break;
+                            default:
+                                sx = x;
+                                sy = row;
+                                break;
+                        }
+                        if (flipHorizontal)
+                            sx = width - 1 - sx;
+                        if (flipVertical)
+                            sy = height - 1 - sy;
+                        dst[out + x] = src[srcOffset + sy * width + sx];
+                    }
+                }
+            }
+        });
+    }
+
+    private interface RowKernel {
+        void rows(int first, int last);
+    }
+
+    private void run(int rows, int pixels, RowKernel kernel) {
+        if (pixels < PARALLEL_THRESHOLD || mPool.getParallelism() == 1) {
+            kernel.rows(0, rows);
+            return;
+        }
+        mPool.invoke(new RowTask(kernel, 0, rows));
+    }
+
+    private static class RowTask extends RecursiveAction {
+        private final RowKernel mKernel;
+        private final int mFirst;
+        private final int mLast;
+
+        RowTask(RowKernel kernel, int first, int last) {
+            mKernel = kernel;
+            mFirst = first;
+            mLast = last;
+        }
+
+        @Override
+        protected void compute() {
+            if (mLast - mFirst > BAND_ROWS) {
+                int mid = (mFirst + mLast) >>> 1;
+                invokeAll(new RowTask(mKernel, mFirst, mid), new RowTask(mKernel, mid, mLast));
+                return;
+            }
+            mKernel.rows(mFirst, mLast);
+        }
+    }
+}
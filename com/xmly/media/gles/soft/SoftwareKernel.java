@@ -0,0 +1,105 @@
+package com.xmly.media.gles.soft;
+
+/**
+ * CPU implementation of a single filter pass.
+ * Pixels are packed ARGB_8888, the same layout as {@link android.graphics.Bitmap#getPixels}.
+ * A kernel is invoked concurrently for disjoint tiles of the same frame, so
+ * {@link #process} must only write inside its own tile and keep no per-call state in fields.
+ */
+abstract class SoftwareKernel {
+    /**
+     * Called once per frame before any tile is processed, reads the current filter parameters.
+     */
+    void prepare(int width, int height) {
+    }
+
+    abstract void process(int[] src, int[] dst, int width, int height,
+                          int left, int top, int right, int bottom);
+
+    static int toByte(float v) {
+        int c = (int) (v * 255.0f + 0.5f);
+        return c < 0 ? 0 : (c > 255 ? 255 : c);
+    }
+
+    static int pack(float r, float g, float b, float a) {
+        return (toByte(a) << 24) | (toByte(r) << 16) | (toByte(g) << 8) | toByte(b);
+    }
+
+    static float red(int c) {
+        return ((c >> 16) & 0xff) / 255.0f;
+    }
+
+    static float green(int c) {
+        return ((c >> 8) & 0xff) / 255.0f;
+    }
+
+    static float blue(int c) {
+        return (c & 0xff) / 255.0f;
+    }
+
+    static float alpha(int c) {
+        return (c >>> 24) / 255.0f;
+    }
+
+    static float smoothstep(float edge0, float edge1, float x) {
+        float t = (x - edge0) / (edge1 - edge0);
+        t = t < 0.0f ? 0.0f : (t > 1.0f ? 1.0f : t);
+        return t * t * (3.0f - 2.0f * t);
+    }
+
+    static float fract(float x) {
+        return x - (float) Math.floor(x);
+    }
+
+    /**
+     * Bilinear texture lookup with GL_CLAMP_TO_EDGE semantics, (u, v) in normalized coordinates.
+     */
+    static void sample(int[] src, int width, int height, float u, float v, float[] out) {
+        float x = u * width - 0.5f;
+        float y = v * height - 0.5f;
+        int x0 = (int) Math.floor(x);
+        int y0 = (int) Math.floor(y);
+        float fx = x - x0;
+        float fy = y - y0;
+        int x1 = clampIndex(x0 + 1, width);
+        int y1 = clampIndex(y0 + 1, height);
+        x0 = clampIndex(x0, width);
+        y0 = clampIndex(y0, height);
+
+        int c00 = src[y0 * width + x0];
+        int c10 = src[y0 * width + x1];
+        int c01 = src[y1 * width + x0];
+        int c11 = src[y1 * width + x1];
+        float w00 = (1.0f - fx) * (1.0f - fy);
+        float w10 = fx * (1.0f - fy);
+        float w01 = (1.0f - fx) * fy;
+        float w11 = fx * fy;
+        out[0] = red(c00) * w00 + red(c10) * w10 + red(c01) * w01 + red(c11) * w11;
+        out[1] = green(c00) * w00 + green(c10) * w10 + green(c01) * w01 + green(c11) * w11;
+        out[2] = blue(c00) * w00 + blue(c10) * w10 + blue(c01) * w01 + blue(c11) * w11;
+        out[3] = alpha(c00) * w00 + alpha(c10) * w10 + alpha(c01) * w01 + alpha(c11) * w11;
+    }
+
+    static int clampIndex(int i, int size) {
+        return i < 0 ? 0 : (i >= size ? size - 1 : i);
+    }
+
+    /**
+     * Base class for kernels whose output pixel only depends on the input pixel at the same position.
+     */
+    abstract static class PointKernel extends SoftwareKernel {
+        @Override
+        final void process(int[] src, int[] dst, int width, int height,
+                           int left, int top, int right, int bottom) {
+            for (int y = top; y < bottom; y++) {
+                float v = (y + 0.5f) / height;
+                int offset = y * width;
+                for (int x = left; x < right; x++) {
+                    dst[offset + x] = apply(src[offset + x], (x + 0.5f) / width, v);
+                }
+            }
+        }
+
+        abstract int apply(int color, float u, float v);
+    }
+}
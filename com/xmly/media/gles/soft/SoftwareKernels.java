@@ -0,0 +1,538 @@
+package com.xmly.media.gles.soft;
+
+import android.graphics.PointF;
+
+import com.xmly.media.gles.filter.GPUImage3x3TextureSamplingFilter;
+import com.xmly.media.gles.filter.GPUImageBeautyFilter;
+import com.xmly.media.gles.filter.GPUImageBrightnessFilter;
+import com.xmly.media.gles.filter.GPUImageColorInvertFilter;
+import com.xmly.media.gles.filter.GPUImageColorMatrixFilter;
+import com.xmly.media.gles.filter.GPUImageCrosshatchFilter;
+import com.xmly.media.gles.filter.GPUImageFilter;
+import com.xmly.media.gles.filter.GPUImageFissionFilter;
+import com.xmly.media.gles.filter.GPUImageGlassSphereFilter;
+import com.xmly.media.gles.filter.GPUImageGrayscaleFilter;
+import com.xmly.media.gles.filter.GPUImageHueFilter;
+import com.xmly.media.gles.filter.GPUImageLaplacianFilter;
+import com.xmly.media.gles.filter.GPUImageMirrorFilter;
+import com.xmly.media.gles.filter.GPUImageSketchFilter;
+import com.xmly.media.gles.filter.GPUImageVignetteFilter;
+
+/**
+ * CPU ports of the fragment shaders in {@link com.xmly.media.gles.filter}.
+ * Each kernel keeps a reference to its filter and reads the parameters in {@link SoftwareKernel#prepare},
+ * so setters called on the filter take effect on the next frame just like on the GPU path.
+ */
+final class SoftwareKernels {
+    private static final float LUMINANCE_R = 0.2125f;
+    private static final float LUMINANCE_G = 0.7154f;
+    private static final float LUMINANCE_B = 0.0721f;
+
+    private SoftwareKernels() {
+    }
+
+    /**
+     * @return the kernel for this filter, or null if the filter has no CPU implementation
+     */
+    static SoftwareKernel create(GPUImageFilter filter) {
+        if (filter instanceof GPUImageSketchFilter) {
+            return new SketchKernel();
+        } else if (filter instanceof GPUImageColorMatrixFilter) {
+            return new ColorMatrixKernel((GPUImageColorMatrixFilter) filter);
+        } else if (filter instanceof GPUImageBrightnessFilter) {
+            return new BrightnessKernel((GPUImageBrightnessFilter) filter);
+        } else if (filter instanceof GPUImageHueFilter) {
+            return new HueKernel((GPUImageHueFilter) filter);
+        } else if (filter instanceof GPUImageGrayscaleFilter) {
+            return new GrayscaleKernel();
+        } else if (filter instanceof GPUImageColorInvertFilter) {
+            return new ColorInvertKernel();
+        } else if (filter instanceof GPUImageVignetteFilter) {
+            return new VignetteKernel((GPUImageVignetteFilter) filter);
+        } else if (filter instanceof GPUImageCrosshatchFilter) {
+            return new CrosshatchKernel((GPUImageCrosshatchFilter) filter);
+        } else if (filter instanceof GPUImageLaplacianFilter) {
+            return new LaplacianKernel((GPUImageLaplacianFilter) filter);
+        } else if (filter instanceof GPUImageMirrorFilter) {
+            return new MirrorKernel();
+        } else if (filter instanceof GPUImageFissionFilter) {
+            return new FissionKernel();
+        } else if (filter instanceof GPUImageGlassSphereFilter) {
+            return new GlassSphereKernel((GPUImageGlassSphereFilter) filter);
+        } else if (filter instanceof GPUImageBeautyFilter) {
+            return new BeautyKernel((GPUImageBeautyFilter) filter);
+        } else if (filter instanceof GPUImage3x3TextureSamplingFilter) {
+            return null;
+        } else if (filter.getClass() == GPUImageFilter.class) {
+            return new CopyKernel();
+        }
+        return null;
+    }
+
+    static final class CopyKernel extends SoftwareKernel {
+        @Override
+        void process(int[] src, int[] dst, int width, int height,
+                     int left, int top, int right, int bottom) {
+            for (int y = top; y < bottom; y++) {
+                System.arraycopy(src, y * width + left, dst, y * width + left, right - left);
+            }
+        }
+    }
+
+    static final class ColorMatrixKernel extends SoftwareKernel.PointKernel {
+        private final GPUImageColorMatrixFilter mFilter;
+        private final float[] mMatrix = new float[16];
+        private float mIntensity;
+
+        ColorMatrixKernel(GPUImageColorMatrixFilter filter) {
+            mFilter = filter;
+        }
+
+        @Override
+        void prepare(int width, int height) {
+            System.arraycopy(mFilter.getColorMatrix(), 0, mMatrix, 0, 16);
+            mIntensity = mFilter.getIntensity();
+        }
+
+        @Override
+        int apply(int color, float u, float v) {
+            float r = red(color), g = green(color), b = blue(color), a = alpha(color);
+            float[] m = mMatrix;
+            // textureColor * colorMatrix, the matrix is uploaded column major
+            float or = r * m[0] + g * m[1] + b * m[2] + a * m[3];
+            float og = r * m[4] + g * m[5] + b * m[6] + a * m[7];
+            float ob = r * m[8] + g * m[9] + b * m[10] + a * m[11];
+            float oa = r * m[12] + g * m[13] + b * m[14] + a * m[15];
+            float i = mIntensity;
+            return pack(i * or + (1.0f - i) * r, i * og + (1.0f - i) * g,
+                    i * ob + (1.0f - i) * b, i * oa + (1.0f - i) * a);
+        }
+    }
+
+    static final class BrightnessKernel extends SoftwareKernel.PointKernel {
+        private final GPUImageBrightnessFilter mFilter;
+        private float mBrightness;
+
+        BrightnessKernel(GPUImageBrightnessFilter filter) {
+            mFilter = filter;
+        }
+
+        @Override
+        void prepare(int width, int height) {
+            mBrightness = mFilter.getBrightness();
+        }
+
+        @Override
+        int apply(int color, float u, float v) {
+            return pack(red(color) + mBrightness, green(color) + mBrightness,
+                    blue(color) + mBrightness, alpha(color));
+        }
+    }
+
+    static final class HueKernel extends SoftwareKernel.PointKernel {
+        private final GPUImageHueFilter mFilter;
+        private float mHueAdjust;
+
+        HueKernel(GPUImageHueFilter filter) {
+            mFilter = filter;
+        }
+
+        @Override
+        void prepare(int width, int height) {
+            mHueAdjust = (mFilter.getHue() % 360.0f) * (float) Math.PI / 180.0f;
+        }
+
+        @Override
+        int apply(int color, float u, float v) {
+            float r = red(color), g = green(color), b = blue(color);
+            float yPrime = 0.299f * r + 0.587f * g + 0.114f * b;
+            float i = 0.595716f * r - 0.274453f * g - 0.321263f * b;
+            float q = 0.211456f * r - 0.522591f * g + 0.31135f * b;
+
+            double hue = Math.atan2(q, i) - mHueAdjust;
+            double chroma = Math.sqrt(i * i + q * q);
+            q = (float) (chroma * Math.sin(hue));
+            i = (float) (chroma * Math.cos(hue));
+
+            return pack(yPrime + 0.9563f * i + 0.6210f * q,
+                    yPrime - 0.2721f * i - 0.6474f * q,
+                    yPrime - 1.1070f * i + 1.7046f * q,
+                    alpha(color));
+        }
+    }
+
+    static final class GrayscaleKernel extends SoftwareKernel.PointKernel {
+        @Override
+        int apply(int color, float u, float v) {
+            float l = red(color) * LUMINANCE_R + green(color) * LUMINANCE_G + blue(color) * LUMINANCE_B;
+            return pack(l, l, l, alpha(color));
+        }
+    }
+
+    static final class ColorInvertKernel extends SoftwareKernel.PointKernel {
+        @Override
+        int apply(int color, float u, float v) {
+            return (color & 0xff000000) | (~color & 0x00ffffff);
+        }
+    }
+
+    static final class VignetteKernel extends SoftwareKernel.PointKernel {
+        private final GPUImageVignetteFilter mFilter;
+        private float mCenterX;
+        private float mCenterY;
+        private float mColorR;
+        private float mColorG;
+        private float mColorB;
+        private float mStart;
+        private float mEnd;
+
+        VignetteKernel(GPUImageVignetteFilter filter) {
+            mFilter = filter;
+        }
+
+        @Override
+        void prepare(int width, int height) {
+            PointF center = mFilter.getVignetteCenter();
+            float[] color = mFilter.getVignetteColor();
+            mCenterX = center.x;
+            mCenterY = center.y;
+            mColorR = color[0];
+            mColorG = color[1];
+            mColorB = color[2];
+            mStart = mFilter.getVignetteStart();
+            mEnd = mFilter.getVignetteEnd();
+        }
+
+        @Override
+        int apply(int color, float u, float v) {
+            float dx = u - mCenterX;
+            float dy = v - mCenterY;
+            float percent = smoothstep(mStart, mEnd, (float) Math.sqrt(dx * dx + dy * dy));
+            float r = red(color), g = green(color), b = blue(color);
+            return pack(r + (mColorR - r) * percent, g + (mColorG - g) * percent,
+                    b + (mColorB - b) * percent, 1.0f);
+        }
+    }
+
+    static final class CrosshatchKernel extends SoftwareKernel.PointKernel {
+        private static final int BLACK = 0xff000000;
+        private static final int WHITE = 0xffffffff;
+        private final GPUImageCrosshatchFilter mFilter;
+        private float mSpacing;
+        private float mLineWidth;
+
+        CrosshatchKernel(GPUImageCrosshatchFilter filter) {
+            mFilter = filter;
+        }
+
+        @Override
+        void prepare(int width, int height) {
+            mSpacing = mFilter.getCrossHatchSpacing();
+            mLineWidth = mFilter.getLineWidth();
+        }
+
+        private float mod(float x) {
+            return x - mSpacing * (float) Math.floor(x / mSpacing);
+        }
+
+        @Override
+        int apply(int color, float u, float v) {
+            float l = red(color) * LUMINANCE_R + green(color) * LUMINANCE_G + blue(color) * LUMINANCE_B;
+            float half = mSpacing / 2.0f;
+            if (l < 1.00f && mod(u + v) <= mLineWidth)
+                return BLACK;
+            if (l < 0.75f && mod(u - v) <= mLineWidth)
+                return BLACK;
+            if (l < 0.50f && mod(u + v - half) <= mLineWidth)
+                return BLACK;
+            if (l < 0.3f && mod(u - v - half) <= mLineWidth)
+                return BLACK;
+            return WHITE;
+        }
+    }
+
+    static final class LaplacianKernel extends SoftwareKernel {
+        private final GPUImageLaplacianFilter mFilter;
+        private final float[] mKernel = new float[9];
+        private float mTexelWidth;
+        private float mTexelHeight;
+
+        LaplacianKernel(GPUImageLaplacianFilter filter) {
+            mFilter = filter;
+        }
+
+        @Override
+        void prepare(int width, int height) {
+            System.arraycopy(mFilter.getConvolutionKernel(), 0, mKernel, 0, 9);
+            mTexelWidth = mFilter.getLineSize() / width;
+            mTexelHeight = mFilter.getLineSize() / height;
+        }
+
+        @Override
+        void process(int[] src, int[] dst, int width, int height,
+                     int left, int top, int right, int bottom) {
+            float[] c = new float[4];
+            for (int y = top; y < bottom; y++) {
+                float v = (y + 0.5f) / height;
+                for (int x = left; x < right; x++) {
+                    float u = (x + 0.5f) / width;
+                    float r = 0.5f, g = 0.5f, b = 0.5f;
+                    for (int row = 0; row < 3; row++) {
+                        for (int col = 0; col < 3; col++) {
+                            float k = mKernel[row * 3 + col];
+                            sample(src, width, height, u + (col - 1) * mTexelWidth,
+                                    v + (row - 1) * mTexelHeight, c);
+                            r += c[0] * k;
+                            g += c[1] * k;
+                            b += c[2] * k;
+                        }
+                    }
+                    dst[y * width + x] = pack(r, g, b, alpha(src[y * width + x]));
+                }
+            }
+        }
+    }
+
+    /**
+     * {@link GPUImageSketchFilter} is a grayscale pass followed by a sobel pass, both done here at once.
+     */
+    static final class SketchKernel extends SoftwareKernel {
+        private static float luminance(int[] src, int width, int height, int x, int y) {
+            int color = src[clampIndex(y, height) * width + clampIndex(x, width)];
+            return red(color) * LUMINANCE_R + green(color) * LUMINANCE_G + blue(color) * LUMINANCE_B;
+        }
+
+        @Override
+        void process(int[] src, int[] dst, int width, int height,
+                     int left, int top, int right, int bottom) {
+            for (int y = top; y < bottom; y++) {
+                for (int x = left; x < right; x++) {
+                    float tl = luminance(src, width, height, x - 1, y - 1);
+                    float t = luminance(src, width, height, x, y - 1);
+                    float tr = luminance(src, width, height, x + 1, y - 1);
+                    float l = luminance(src, width, height, x - 1, y);
+                    float r = luminance(src, width, height, x + 1, y);
+                    float bl = luminance(src, width, height, x - 1, y + 1);
+                    float b = luminance(src, width, height, x, y + 1);
+                    float br = luminance(src, width, height, x + 1, y + 1);
+                    float h = -tl - 2.0f * t - tr + bl + 2.0f * b + br;
+                    float v = -bl - 2.0f * l - tl + br + 2.0f * r + tr;
+                    float mag = 1.0f - (float) Math.sqrt(h * h + v * v);
+                    dst[y * width + x] = pack(mag, mag, mag, 1.0f);
+                }
+            }
+        }
+    }
+
+    static final class MirrorKernel extends SoftwareKernel {
+        @Override
+        void process(int[] src, int[] dst, int width, int height,
+                     int left, int top, int right, int bottom) {
+            float[] c = new float[4];
+            for (int y = top; y < bottom; y++) {
+                float v = (y + 0.5f) / height;
+                v = v < 0.5f ? 2.0f * v : 2.0f - 2.0f * v;
+                for (int x = left; x < right; x++) {
+                    float u = (x + 0.5f) / width;
+                    u = u < 0.5f ? 2.0f * u : 2.0f - 2.0f * u;
+                    sample(src, width, height, u, v, c);
+                    dst[y * width + x] = pack(c[0], c[1], c[2], c[3]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Same schedule as {@link GPUImageFissionFilter}: 3x3 tiles for DURATION seconds, then 2x2.
+     */
+    static final class FissionKernel extends SoftwareKernel {
+        private static final int FPS = 25;
+        private static final float DURATION = 3.0f;
+        private int mStep = 0;
+        private int mNum = 2;
+
+        @Override
+        void prepare(int width, int height) {
+            if (mStep < DURATION * FPS) {
+                mStep++;
+                mNum = 3;
+            } else if (mStep < DURATION * FPS * 2) {
+                mStep++;
+                mNum = 2;
+            } else {
+                mStep = 0;
+            }
+        }
+
+        @Override
+        void process(int[] src, int[] dst, int width, int height,
+                     int left, int top, int right, int bottom) {
+            float[] c = new float[4];
+            for (int y = top; y < bottom; y++) {
+                float v = fract((y + 0.5f) / height * mNum);
+                for (int x = left; x < right; x++) {
+                    float u = fract((x + 0.5f) / width * mNum);
+                    sample(src, width, height, u, v, c);
+                    dst[y * width + x] = pack(c[0], c[1], c[2], c[3]);
+                }
+            }
+        }
+    }
+
+    static final class GlassSphereKernel extends SoftwareKernel {
+        private static final float[] LIGHT = normalize(-0.5f, 0.5f, 1.0f);
+        private final GPUImageGlassSphereFilter mFilter;
+        private float mCenterX;
+        private float mCenterY;
+        private float mRadius;
+        private float mAspectRatio;
+        private float mRefractiveIndex;
+
+        GlassSphereKernel(GPUImageGlassSphereFilter filter) {
+            mFilter = filter;
+        }
+
+        private static float[] normalize(float x, float y, float z) {
+            float len = (float) Math.sqrt(x * x + y * y + z * z);
+            return new float[] {x / len, y / len, z / len};
+        }
+
+        @Override
+        void prepare(int width, int height) {
+            PointF center = mFilter.getCenter();
+            mCenterX = center.x;
+            mCenterY = center.y;
+            mRadius = mFilter.getRadius();
+            mAspectRatio = (float) height / width;
+            mRefractiveIndex = mFilter.getRefractiveIndex();
+        }
+
+        @Override
+        void process(int[] src, int[] dst, int width, int height,
+                     int left, int top, int right, int bottom) {
+            float[] c = new float[4];
+            float eta = mRefractiveIndex;
+            for (int y = top; y < bottom; y++) {
+                float v = (y + 0.5f) / height;
+                float vToUse = v * mAspectRatio + 0.5f - 0.5f * mAspectRatio;
+                for (int x = left; x < right; x++) {
+                    float u = (x + 0.5f) / width;
+                    float dx = u - mCenterX;
+                    float dy = vToUse - mCenterY;
+                    float distance = (float) Math.sqrt(dx * dx + dy * dy);
+                    if (distance > mRadius) {
+                        dst[y * width + x] = 0;
+                        continue;
+                    }
+                    distance = distance / mRadius;
+                    float depth = mRadius * (float) Math.sqrt(1.0f - distance * distance);
+                    float len = (float) Math.sqrt(dx * dx + dy * dy + depth * depth);
+                    float nx = dx / len, ny = dy / len, nz = depth / len;
+
+                    // refract(vec3(0.0, 0.0, -1.0), n, eta)
+                    float cosI = -nz;
+                    float k = 1.0f - eta * eta * (1.0f - cosI * cosI);
+                    float rx = 0.0f, ry = 0.0f;
+                    if (k >= 0.0f) {
+                        float s = eta * cosI + (float) Math.sqrt(k);
+                        rx = -s * nx;
+                        ry = -s * ny;
+                    }
+                    rx = -2.0f * rx;
+                    ry = -2.0f * ry;
+                    sample(src, width, height, (rx + 1.0f) * 0.5f, (ry + 1.0f) * 0.5f, c);
+
+                    float ambient = nz < 0.0f ? 0.0f : (nz > 1.0f ? 1.0f : nz);
+                    float lighting = 2.5f * (1.0f - (float) Math.pow(ambient, 0.25f));
+                    float specular = LIGHT[0] * nx + LIGHT[1] * ny + LIGHT[2] * nz;
+                    specular = specular < 0.0f ? 0.0f : (specular > 1.0f ? 1.0f : specular);
+                    specular = 0.8f * (float) Math.pow(specular, 15.0f);
+                    dst[y * width + x] = pack(c[0] + lighting + specular, c[1] + lighting + specular,
+                            c[2] + lighting + specular, 1.0f);
+                }
+            }
+        }
+    }
+
+    /**
+     * Approximation of the beauty shader: a 20 tap blur on the green channel gives a high pass
+     * mask that is sharpened with hard light and used to lift skin tones, weighted by luminance.
+     */
+    static final class BeautyKernel extends SoftwareKernel {
+        private static final int[] OFFSETS = {
+                0, -10, 0, 10, -10, 0, 10, 0,
+                5, -8, 5, 8, -5, 8, -5, -8,
+                8, -5, 8, 5, -8, 5, -8, -5,
+                0, -6, 0, 6, 6, 0, -6, 0,
+                -4, -4, -4, 4, 4, -4, 4, 4
+        };
+        private final GPUImageBeautyFilter mFilter;
+        private float mParams;
+        private float mStepX;
+        private float mStepY;
+
+        BeautyKernel(GPUImageBeautyFilter filter) {
+            mFilter = filter;
+        }
+
+        @Override
+        void prepare(int width, int height) {
+            switch (mFilter.getBeautyLevel()) {
+                case 1:
+                    mParams = 1.0f;
+                    break;
+                case 2:
+                    mParams = 0.8f;
+                    break;
+                case 3:
+                    mParams = 0.6f;
+                    break;
+                case 4:
+                    mParams = 0.4f;
+                    break;
+                default:
+                    mParams = 0.33f;
+                    break;
+            }
+            mStepX = 2.0f / width;
+            mStepY = 2.0f / height;
+        }
+
+        private static float hardLight(float c) {
+            return c <= 0.5f ? c * c * 2.0f : 1.0f - ((1.0f - c) * (1.0f - c) * 2.0f);
+        }
+
+        @Override
+        void process(int[] src, int[] dst, int width, int height,
+                     int left, int top, int right, int bottom) {
+            float[] c = new float[4];
+            for (int y = top; y < bottom; y++) {
+                float v = (y + 0.5f) / height;
+                for (int x = left; x < right; x++) {
+                    float u = (x + 0.5f) / width;
+                    int center = src[y * width + x];
+                    float r = red(center), g = green(center), b = blue(center);
+
+                    float sum = g * 20.0f;
+                    for (int i = 0; i < OFFSETS.length; i += 2) {
+                        sample(src, width, height, u + OFFSETS[i] * mStepX, v + OFFSETS[i + 1] * mStepY, c);
+                        sum += i < 24 ? c[1] : c[1] * 2.0f;
+                    }
+                    float highPass = g - sum / 48.0f + 0.5f;
+                    for (int i = 0; i < 5; i++) {
+                        highPass = hardLight(highPass);
+                    }
+
+                    float luminance = 0.299f * r + 0.587f * g + 0.114f * b;
+                    float a = (float) Math.pow(luminance, mParams);
+                    float sr = r + (r - highPass) * a * 0.1f;
+                    float sg = g + (g - highPass) * a * 0.1f;
+                    float sb = b + (b - highPass) * a * 0.1f;
+                    dst[y * width + x] = pack(sr + (Math.max(sr, r) - sr) * a,
+                            sg + (Math.max(sg, g) - sg) * a,
+                            sb + (Math.max(sb, b) - sb) * a, 1.0f);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.xmly.media.gles.soft;
+
+import android.util.Log;
+
+import com.xmly.media.gles.filter.GPUImageFilter;
+import com.xmly.media.gles.filter.GPUImageFilterGroup;
+import com.xmly.media.gles.filter.GPUImageSketchFilter;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.WeakHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs a {@link GPUImageFilter} or {@link GPUImageFilterGroup} graph on the CPU.
+ * Each pass is split into tiles that are processed on a fork-join pool, so the same filter
+ * objects used by the GL renderers can be rendered on machines without OpenGL ES 2.0.
+ * Filters without a CPU kernel are skipped and logged once.
+ */
+public class SoftwareRenderer {
+    private static final String TAG = "SoftwareRenderer";
+    private static final int TILE_SIZE = 64;
+
+    private final ForkJoinPool mPool;
+    private final WeakHashMap<GPUImageFilter, SoftwareKernel> mKernels = new WeakHashMap<GPUImageFilter, SoftwareKernel>();
+    private final WeakHashMap<GPUImageFilter, Boolean> mUnsupported = new WeakHashMap<GPUImageFilter, Boolean>();
+    private final List<SoftwareKernel> mPasses = new ArrayList<SoftwareKernel>();
+    private int[] mScratch0 = null;
+    private int[] mScratch1 = null;
+    private int[] mInput = null;
+    private int[] mOutput = null;
+
+    public SoftwareRenderer() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public SoftwareRenderer(int parallelism) {
+        mPool = new ForkJoinPool(Math.max(1, parallelism));
+    }
+
+    /**
+     * Renders ARGB_8888 pixels through the filter graph, src and dst may be the same array.
+     */
+    public synchronized void render(GPUImageFilter filter, int[] src, int[] dst, int width, int height) {
+        int size = width * height;
+        if (src.length < size || dst.length < size) {
+            Log.e(TAG, "render: buffer too small for " + width + "x" + height);
+            return;
+        }
+
+        mPasses.clear();
+        collectPasses(filter);
+        if (mPasses.isEmpty()) {
+            if (src != dst)
+                System.arraycopy(src, 0, dst, 0, size);
+            return;
+        }
+
+        if (mScratch0 == null || mScratch0.length < size) {
+            mScratch0 = new int[size];
+            mScratch1 = new int[size];
+        }
+
+        int[] in = src;
+        if (src == dst) {
+            System.arraycopy(src, 0, mScratch1, 0, size);
+            in = mScratch1;
+        }
+        int passes = mPasses.size();
+        for (int i = 0; i < passes; i++) {
+            int[] out = (i == passes - 1) ? dst : (in == mScratch0 ? mScratch1 : mScratch0);
+            SoftwareKernel kernel = mPasses.get(i);
+            kernel.prepare(width, height);
+            int tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+            int tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+            mPool.invoke(new TileTask(kernel, in, out, width, height, tilesX, 0, tilesX * tilesY));
+            in = out;
+        }
+    }
+
+    /**
+     * Renders tightly packed RGBA8888 pixels, the layout produced by glReadPixels.
+     */
+    public synchronized void render(GPUImageFilter filter, ByteBuffer src, ByteBuffer dst, int width, int height) {
+        int size = width * height;
+        if (src.capacity() < size * 4 || dst.capacity() < size * 4) {
+            Log.e(TAG, "render: buffer too small for " + width + "x" + height);
+            return;
+        }
+        if (mInput == null || mInput.length < size) {
+            mInput = new int[size];
+            mOutput = new int[size];
+        }
+
+        for (int i = 0; i < size; i++) {
+            int p = i * 4;
+            mInput[i] = ((src.get(p + 3) & 0xff) << 24) | ((src.get(p) & 0xff) << 16)
+                    | ((src.get(p + 1) & 0xff) << 8) | (src.get(p + 2) & 0xff);
+        }
+        render(filter, mInput, mOutput, width, height);
+        for (int i = 0; i < size; i++) {
+            int p = i * 4;
+            int c = mOutput[i];
+            dst.put(p, (byte) (c >> 16));
+            dst.put(p + 1, (byte) (c >> 8));
+            dst.put(p + 2, (byte) c);
+            dst.put(p + 3, (byte) (c >>> 24));
+        }
+    }
+
+    public void release() {
+        mPool.shutdown();
+        synchronized (this) {
+            mKernels.clear();
+            mUnsupported.clear();
+            mScratch0 = null;
+            mScratch1 = null;
+            mInput = null;
+            mOutput = null;
+        }
+    }
+
+    private void collectPasses(GPUImageFilter filter) {
+        if (filter == null)
+            return;
+
+        if (filter instanceof GPUImageFilterGroup && !(filter instanceof GPUImageSketchFilter)) {
+            for (GPUImageFilter child : ((GPUImageFilterGroup) filter).getFilters()) {
+                collectPasses(child);
+            }
+            return;
+        }
+
+        SoftwareKernel kernel = mKernels.get(filter);
+        if (kernel == null && !mUnsupported.containsKey(filter)) {
+            kernel = SoftwareKernels.create(filter);
+            if (kernel != null) {
+                mKernels.put(filter, kernel);
+            } else {
+                mUnsupported.put(filter, Boolean.TRUE);
+                Log.w(TAG, "no software kernel for " + filter.getClass().getSimpleName() + ", skipped");
+            }
+        }
+        if (kernel != null && !(kernel instanceof SoftwareKernels.CopyKernel))
+            mPasses.add(kernel);
+    }
+
+    private static class TileTask extends RecursiveAction {
+        private final SoftwareKernel mKernel;
+        private final int[] mSrc;
+        private final int[] mDst;
+        private final int mWidth;
+        private final int mHeight;
+        private final int mTilesX;
+        private final int mFirst;
+        private final int mLast;
+
+        TileTask(SoftwareKernel kernel, int[] src, int[] dst, int width, int height,
+                 int tilesX, int first, int last) {
+            mKernel = kernel;
+            mSrc = src;
+            mDst = dst;
+            mWidth = width;
+            mHeight = height;
+            mTilesX = tilesX;
+            mFirst = first;
+            mLast = last;
+        }
+
+        @Override
+        protected void compute() {
+            if (mLast - mFirst > 1) {
+                int mid = (mFirst + mLast) >>> 1;
+                invokeAll(new TileTask(mKernel, mSrc, mDst, mWidth, mHeight, mTilesX, mFirst, mid),
+                        new TileTask(mKernel, mSrc, mDst, mWidth, mHeight, mTilesX, mid, mLast));
+                return;
+            }
+            int left = (mFirst % mTilesX) * TILE_SIZE;
+            int top = (mFirst / mTilesX) * TILE_SIZE;
+            mKernel.process(mSrc, mDst, mWidth, mHeight, left, top,
+                    Math.min(left + TILE_SIZE, mWidth), Math.min(top + TILE_SIZE, mHeight));
+        }
+    }
+}
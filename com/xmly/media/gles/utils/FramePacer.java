@@ -0,0 +1,212 @@
+package com.xmly.media.gles.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Releases frames at their presentation time. Deadlines are computed from one anchor, the wall
+ * time and timestamp of the first frame, so rounding and oversleeping never accumulate. The
+ * calling thread parks until shortly before the deadline and spins the rest, parkNanos alone
+ * oversleeps by up to a scheduler tick. A speed change or a jump in the timestamps moves the
+ * anchor, as does falling further behind than the maximum lag, so a stall is not followed by a
+ * burst of frames. Time comes from a {@link Clock}, tests pass one they advance themselves.
+ */
+public class FramePacer {
+    public static final float MIN_SPEED = 0.25f;
+    public static final float MAX_SPEED = 4.0f;
+    public static final long DEFAULT_SPIN_NS = TimeUnit.MICROSECONDS.toNanos(300);
+    public static final long DEFAULT_LATE_NS = TimeUnit.MILLISECONDS.toNanos(2);
+    public static final long DEFAULT_MAX_LAG_NS = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final long MAX_GAP_US = TimeUnit.SECONDS.toMicros(5);
+
+    public interface Clock {
+        long nanoTime();
+
+        /**
+         * Blocks for about ns, may return early.
+         */
+        void parkNanos(long ns);
+    }
+
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void parkNanos(long ns) {
+            LockSupport.parkNanos(ns);
+        }
+    };
+
+    private final Clock mClock;
+    private volatile float mSpeed = 1.0f;
+    private long mSpinNs = DEFAULT_SPIN_NS;
+    private long mLateNs = DEFAULT_LATE_NS;
+    private long mMaxLagNs = DEFAULT_MAX_LAG_NS;
+
+    //锚点:某一帧的时间戳和它的墙钟截止时间,后续截止时间都从这里算
+    private boolean mAnchored = false;
+    private long mAnchorNs;
+    private long mAnchorPtsUs;
+    private float mAnchorSpeed;
+    private long mLastPtsUs;
+    private long mLastDeadlineNs;
+    private long mLastIntervalUs = 0;
+    private boolean mRebaseRequested = false;
+
+    private volatile long mFrames = 0;
+    private volatile long mLateFrames = 0;
+    private volatile long mResyncs = 0;
+    private volatile long mMaxLatenessNs = 0;
+    private volatile long mTotalJitterNs = 0;
+
+    public FramePacer() {
+        this(SYSTEM_CLOCK);
+    }
+
+    public FramePacer(Clock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * @param speed playback rate, clamped to [{@link #MIN_SPEED}, {@link #MAX_SPEED}]
+     */
+    public void setSpeed(float speed) {
+        mSpeed = Math.max(MIN_SPEED, Math.min(speed, MAX_SPEED));
+    }
+
+    public float getSpeed() {
+        return mSpeed;
+    }
+
+    /**
+     * @param spinNs time before a deadline that is busy waited, 0 to only park
+     */
+    public void setSpinThreshold(long spinNs) {
+        mSpinNs = Math.max(spinNs, 0);
+    }
+
+    /**
+     * @param lateNs lateness from which a frame counts as late
+     * @param maxLagNs lateness from which the pacer gives up the deadlines and starts over
+     */
+    public void setTolerance(long lateNs, long maxLagNs) {
+        mLateNs = Math.max(lateNs, 0);
+        mMaxLagNs = Math.max(maxLagNs, mLateNs);
+    }
+
+    /**
+     * Forgets the anchor and the statistics, the next frame is released at once.
+     */
+    public void reset() {
+        mAnchored = false;
+        mRebaseRequested = false;
+        mLastIntervalUs = 0;
+        mFrames = 0;
+        mLateFrames = 0;
+        mResyncs = 0;
+        mMaxLatenessNs = 0;
+        mTotalJitterNs = 0;
+    }
+
+    /**
+     * The next timestamp does not follow the previous one, as after a loop or a seek. It is
+     * released one frame interval after the previous frame.
+     */
+    public void rebase() {
+        mRebaseRequested = true;
+    }
+
+    /**
+     * Blocks the calling thread until the frame with the given timestamp is due.
+     * @return how late the frame was released, in ns
+     */
+    public long awaitPresentation(long ptsUs) {
+        float speed = mSpeed;
+        if (!mAnchored) {
+            anchor(mClock.nanoTime(), ptsUs, speed);
+        } else {
+            long deltaUs = ptsUs - mLastPtsUs;
+            if (mRebaseRequested || deltaUs < 0 || deltaUs > MAX_GAP_US) {
+                //时间戳不连续,接在上一帧之后一个帧间隔
+                anchor(mLastDeadlineNs + (long) (mLastIntervalUs * 1000L / (double) mAnchorSpeed), ptsUs, speed);
+                mRebaseRequested = false;
+            } else {
+                mLastIntervalUs = deltaUs;
+                if (speed != mAnchorSpeed) {
+                    anchor(mLastDeadlineNs + (long) (deltaUs * 1000L / (double) speed), ptsUs, speed);
+                }
+            }
+        }
+
+        long deadline = mAnchorNs + (long) ((ptsUs - mAnchorPtsUs) * 1000L / (double) mAnchorSpeed);
+        long remaining;
+        while ((remaining = deadline - mClock.nanoTime()) > mSpinNs) {
+            mClock.parkNanos(remaining - mSpinNs);
+        }
+        long now = mClock.nanoTime();
+        while (now < deadline) {
+            now = mClock.nanoTime();
+        }
+
+        long lateness = now - deadline;
+        if (lateness > mMaxLagNs) {
+            //落后太多,从当前帧重新开始计时,不连续补帧
+            anchor(now, ptsUs, mAnchorSpeed);
+            deadline = now;
+            mResyncs++;
+        }
+        mLastPtsUs = ptsUs;
+        mLastDeadlineNs = deadline;
+
+        mFrames++;
+        mTotalJitterNs += lateness;
+        if (lateness > mLateNs) {
+            mLateFrames++;
+        }
+        if (lateness > mMaxLatenessNs) {
+            mMaxLatenessNs = lateness;
+        }
+        return lateness;
+    }
+
+    private void anchor(long ns, long ptsUs, float speed) {
+        mAnchorNs = ns;
+        mAnchorPtsUs = ptsUs;
+        mAnchorSpeed = speed;
+        mLastPtsUs = ptsUs;
+        mAnchored = true;
+    }
+
+    public long getFrameCount() {
+        return mFrames;
+    }
+
+    /**
+     * @return frames released later than the late tolerance
+     */
+    public long getLateFrameCount() {
+        return mLateFrames;
+    }
+
+    /**
+     * @return times the pacer fell behind by more than the maximum lag and started over
+     */
+    public long getResyncCount() {
+        return mResyncs;
+    }
+
+    public long getMaxLatenessNs() {
+        return mMaxLatenessNs;
+    }
+
+    /**
+     * @return mean lateness of the released frames, in ns
+     */
+    public long getMeanJitterNs() {
+        long frames = mFrames;
+        return frames == 0 ? 0 : mTotalJitterNs / frames;
+    }
+}
@@ -21,6 +21,7 @@ import android.graphics.Bitmap.Config;
 import android.hardware.Camera.Size;
 import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
+import android.opengl.GLES30;
 import android.opengl.GLUtils;
 import android.util.Log;
 
@@ -133,6 +134,14 @@ public class OpenGlUtils {
     }
 
     public static int loadProgram(final String strVSource, final String strFSource) {
+        return loadProgram(strVSource, strFSource, false);
+    }
+
+    /**
+     * @param retrievable true to ask the driver to keep the binary for glGetProgramBinary, which
+     *                    some drivers only do when the hint is set before linking, OpenGL ES 3.0 only
+     */
+    public static int loadProgram(final String strVSource, final String strFSource, final boolean retrievable) {
         int iVShader;
         int iFShader;
         int iProgId;
@@ -152,6 +161,9 @@ public class OpenGlUtils {
 
         GLES20.glAttachShader(iProgId, iVShader);
         GLES20.glAttachShader(iProgId, iFShader);
+        if (retrievable) {
+            GLES30.glProgramParameteri(iProgId, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GLES20.GL_TRUE);
+        }
 
         GLES20.glLinkProgram(iProgId);
 
@@ -165,6 +177,18 @@ public class OpenGlUtils {
         return iProgId;
     }
 
+    /**
+     * Like {@link #loadProgram} but goes through the {@link ProgramCache} of the calling thread,
+     * the program must be given back with {@link #releaseProgram}.
+     */
+    public static int acquireProgram(final String strVSource, final String strFSource) {
+        return ProgramCache.getInstance().acquire(strVSource, strFSource);
+    }
+
+    public static void releaseProgram(final int iProgId) {
+        ProgramCache.getInstance().release(iProgId);
+    }
+
     public static float rnd(final float min, final float max) {
         float fRandNum = (float) Math.random();
         return min + (max - min) * fRandNum;
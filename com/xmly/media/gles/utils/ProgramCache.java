@@ -0,0 +1,399 @@
+package com.xmly.media.gles.utils;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of linked programs keyed by a hash of (vertex, fragment) source.
+ * Released programs stay linked in memory up to {@link #setMaxIdlePrograms}, so switching back
+ * to a filter costs no compile. A program is handed to one user at a time because uniform
+ * values are program state. When a disk directory is set and the {@link ProgramCompiler}
+ * supports it, program binaries are persisted and loaded with glProgramBinary on the next
+ * start, falling back to a normal compile if the driver rejects them.
+ * Each GL thread has its own cache through {@link #getInstance()}, a thread whose context shares
+ * objects with another one can use that thread's cache through {@link #setInstance}.
+ */
+public class ProgramCache {
+    private static final String TAG = "ProgramCache";
+    private static final int MAGIC = 0x58505247;
+    private static final String SUFFIX = ".bin";
+    //磁盘缓存的key要跨进程稳定,不能依赖默认字符集
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    public static final int DEFAULT_MAX_IDLE_PROGRAMS = 16;
+
+    private static final ThreadLocal<ProgramCache> sCaches = new ThreadLocal<ProgramCache>() {
+        @Override
+        protected ProgramCache initialValue() {
+            return new ProgramCache(new GLProgramCompiler());
+        }
+    };
+
+    /**
+     * Creates, persists and deletes programs. Replaced in tests to run the cache without a GPU.
+     */
+    public interface ProgramCompiler {
+        /**
+         * @return the linked program, 0 on failure
+         */
+        int compile(String vertexSource, String fragmentSource);
+
+        /**
+         * @param format receives the binary format at index 0
+         * @return the program binary, null if not supported
+         */
+        byte[] getBinary(int program, int[] format);
+
+        /**
+         * @return the linked program, 0 if the binary was rejected
+         */
+        int loadBinary(int format, byte[] binary);
+
+        void delete(int program);
+
+        /**
+         * @return a string identifying the driver, binaries are not reused when it changes
+         */
+        String getSignature();
+    }
+
+    private static class Entry {
+        final String key;
+        final int program;
+
+        Entry(String key, int program) {
+            this.key = key;
+            this.program = program;
+        }
+    }
+
+    private final ProgramCompiler mCompiler;
+    private final HashMap<Integer, Entry> mPrograms = new HashMap<Integer, Entry>();
+    //空闲的program,按释放先后排列,队首最久未使用
+    private final LinkedHashMap<Integer, Entry> mIdle = new LinkedHashMap<Integer, Entry>();
+    private File mDiskDir = null;
+    private int mMaxIdlePrograms = DEFAULT_MAX_IDLE_PROGRAMS;
+    private String mSignature = null;
+    private int mHits = 0;
+    private int mDiskHits = 0;
+    private int mMisses = 0;
+
+    public ProgramCache(ProgramCompiler compiler) {
+        mCompiler = compiler;
+    }
+
+    /**
+     * @return the cache of the calling GL thread
+     */
+    public static ProgramCache getInstance() {
+        return sCaches.get();
+    }
+
+    /**
+     * Makes the calling thread use cache, e.g. a worker compiling for the render thread in a
+     * shared context, so its programs are released into the cache that acquired them.
+     * @param cache null to go back to a cache of the calling thread's own
+     */
+    public static void setInstance(ProgramCache cache) {
+        if (cache == null) {
+            sCaches.remove();
+        } else {
+            sCaches.set(cache);
+        }
+    }
+
+    /**
+     * Enables the disk layer, null disables it.
+     */
+    public synchronized void setDiskCacheDir(File dir) {
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "can not create " + dir + ", disk cache disabled");
+            dir = null;
+        }
+        mDiskDir = dir;
+    }
+
+    public synchronized void setMaxIdlePrograms(int max) {
+        mMaxIdlePrograms = max;
+        trimIdle();
+    }
+
+    /**
+     * Returns a linked program for the sources, the caller must give it back with {@link #release}.
+     * @return the program, 0 if it could not be compiled
+     */
+    public synchronized int acquire(String vertexSource, String fragmentSource) {
+        String key = key(vertexSource, fragmentSource);
+        Entry idle = null;
+        for (Entry entry : mIdle.values()) {
+            if (entry.key.equals(key)) {
+                idle = entry;
+            }
+        }
+        if (idle != null) {
+            mHits++;
+            mIdle.remove(idle.program);
+            return idle.program;
+        }
+
+        int program = loadFromDisk(key);
+        if (program != 0) {
+            mDiskHits++;
+        } else {
+            mMisses++;
+            program = mCompiler.compile(vertexSource, fragmentSource);
+            if (program == 0)
+                return 0;
+            saveToDisk(key, program);
+        }
+        mPrograms.put(program, new Entry(key, program));
+        return program;
+    }
+
+    /**
+     * Gives back a program from {@link #acquire}. Programs unknown to the cache are deleted.
+     */
+    public synchronized void release(int program) {
+        if (program == 0)
+            return;
+        Entry entry = mPrograms.get(program);
+        if (entry == null) {
+            mCompiler.delete(program);
+            return;
+        }
+        mIdle.put(program, entry);
+        trimIdle();
+    }
+
+    /**
+     * Deletes the idle programs and forgets the others. Call before the context is destroyed.
+     */
+    public synchronized void clear() {
+        for (Entry entry : mIdle.values()) {
+            mCompiler.delete(entry.program);
+        }
+        mIdle.clear();
+        mPrograms.clear();
+        mSignature = null;
+    }
+
+    public synchronized int getHitCount() {
+        return mHits;
+    }
+
+    public synchronized int getDiskHitCount() {
+        return mDiskHits;
+    }
+
+    public synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    public synchronized int getProgramCount() {
+        return mPrograms.size();
+    }
+
+    public synchronized int getIdleProgramCount() {
+        return mIdle.size();
+    }
+
+    private void trimIdle() {
+        Iterator<Map.Entry<Integer, Entry>> it = mIdle.entrySet().iterator();
+        while (mIdle.size() > mMaxIdlePrograms && it.hasNext()) {
+            Entry entry = it.next().getValue();
+            it.remove();
+            mPrograms.remove(entry.program);
+            mCompiler.delete(entry.program);
+        }
+    }
+
+    private String key(String vertexSource, String fragmentSource) {
+        if (mSignature == null) {
+            mSignature = mCompiler.getSignature();
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(mSignature.getBytes(UTF_8));
+            digest.update((byte) 0);
+            digest.update(vertexSource.getBytes(UTF_8));
+            digest.update((byte) 0);
+            digest.update(fragmentSource.getBytes(UTF_8));
+            byte[] hash = digest.digest();
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return mSignature + "\u0000" + vertexSource + "\u0000" + fragmentSource;
+        }
+    }
+
+    private File diskFile(String key) {
+        if (mDiskDir == null && GPUImageParams.context != null) {
+            setDiskCacheDir(new File(GPUImageParams.context.getCacheDir(), "program_cache"));
+        }
+        if (mDiskDir == null || key.length() != 40)
+            return null;
+        return new File(mDiskDir, key + SUFFIX);
+    }
+
+    private int loadFromDisk(String key) {
+        File file = diskFile(key);
+        if (file == null || !file.isFile())
+            return 0;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            if (in.readInt() != MAGIC)
+                throw new IOException("bad magic");
+            int format = in.readInt();
+            int length = in.readInt();
+            if (length <= 0 || length > file.length())
+                throw new IOException("bad length " + length);
+            byte[] binary = new byte[length];
+            in.readFully(binary);
+            int program = mCompiler.loadBinary(format, binary);
+            if (program == 0)
+                throw new IOException("binary rejected");
+            return program;
+        } catch (IOException e) {
+            Log.w(TAG, "drop " + file.getName() + ": " + e.getMessage());
+            file.delete();
+            return 0;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private void saveToDisk(String key, int program) {
+        File file = diskFile(key);
+        if (file == null || file.isFile())
+            return;
+        int[] format = new int[1];
+        byte[] binary = mCompiler.getBinary(program, format);
+        if (binary == null || binary.length == 0)
+            return;
+
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(tmp));
+            out.writeInt(MAGIC);
+            out.writeInt(format[0]);
+            out.writeInt(binary.length);
+            out.write(binary);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file))
+                throw new IOException("rename failed");
+        } catch (IOException e) {
+            Log.w(TAG, "save " + file.getName() + " failed: " + e.getMessage());
+            tmp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Compiles with {@link OpenGlUtils#loadProgram}, uses program binaries on OpenGL ES 3.0 and newer.
+     */
+    public static class GLProgramCompiler implements ProgramCompiler {
+        private Boolean mBinarySupported = null;
+
+        private boolean isBinarySupported() {
+            if (mBinarySupported == null) {
+                String version = GLES20.glGetString(GLES20.GL_VERSION);
+                boolean es3 = version != null && version.startsWith("OpenGL ES ")
+                        && version.length() > 10 && version.charAt(10) >= '3';
+                int[] formats = new int[1];
+                if (es3) {
+                    GLES20.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, formats, 0);
+                }
+                mBinarySupported = es3 && formats[0] > 0;
+            }
+            return mBinarySupported;
+        }
+
+        @Override
+        public int compile(String vertexSource, String fragmentSource) {
+            return OpenGlUtils.loadProgram(vertexSource, fragmentSource, isBinarySupported());
+        }
+
+        @Override
+        public byte[] getBinary(int program, int[] format) {
+            if (!isBinarySupported())
+                return null;
+            int[] length = new int[1];
+            GLES20.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, length, 0);
+            if (length[0] <= 0)
+                return null;
+            ByteBuffer buffer = ByteBuffer.allocateDirect(length[0]).order(ByteOrder.nativeOrder());
+            IntBuffer formatBuffer = IntBuffer.allocate(1);
+            GLES30.glGetProgramBinary(program, length[0], IntBuffer.allocate(1), formatBuffer, buffer);
+            if (GLES20.glGetError() != GLES20.GL_NO_ERROR)
+                return null;
+            byte[] binary = new byte[length[0]];
+            buffer.position(0);
+            buffer.get(binary);
+            format[0] = formatBuffer.get(0);
+            return binary;
+        }
+
+        @Override
+        public int loadBinary(int format, byte[] binary) {
+            if (!isBinarySupported())
+                return 0;
+            int program = GLES20.glCreateProgram();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(binary.length).order(ByteOrder.nativeOrder());
+            buffer.put(binary).position(0);
+            GLES30.glProgramBinary(program, format, buffer, binary.length);
+            int[] link = new int[1];
+            GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, link, 0);
+            if (link[0] <= 0) {
+                GLES20.glDeleteProgram(program);
+                return 0;
+            }
+            return program;
+        }
+
+        @Override
+        public void delete(int program) {
+            GLES20.glDeleteProgram(program);
+        }
+
+        @Override
+        public String getSignature() {
+            return GLES20.glGetString(GLES20.GL_VENDOR) + "/" + GLES20.glGetString(GLES20.GL_RENDERER)
+                    + "/" + GLES20.glGetString(GLES20.GL_VERSION);
+        }
+    }
+}
@@ -51,10 +51,48 @@ public class TextureRotationUtil {
             1.0f, 1.0f,
     };
 
+    /**
+     * Number of rotation/flip combinations, see {@link #getRotationIndex}.
+     */
+    public static final int ROTATION_COUNT = 16;
+
+    private static final float[][] sRotations = new float[ROTATION_COUNT][];
+
+    static {
+        for (Rotation rotation : Rotation.values()) {
+            for (int flip = 0; flip < 4; flip++) {
+                boolean flipHorizontal = (flip & 2) != 0;
+                boolean flipVertical = (flip & 1) != 0;
+                sRotations[getRotationIndex(rotation, flipHorizontal, flipVertical)] =
+                        createRotation(rotation, flipHorizontal, flipVertical);
+            }
+        }
+    }
+
     private TextureRotationUtil() {}
 
+    public static int getRotationIndex(final Rotation rotation, final boolean flipHorizontal,
+                                       final boolean flipVertical) {
+        return rotation.ordinal() * 4 + (flipHorizontal ? 2 : 0) + (flipVertical ? 1 : 0);
+    }
+
+    /**
+     * @return the precomputed coordinates, shared between callers and must not be modified
+     */
+    public static float[] getRotation(final int index) {
+        return sRotations[index];
+    }
+
+    /**
+     * @return the precomputed coordinates, shared between callers and must not be modified
+     */
     public static float[] getRotation(final Rotation rotation, final boolean flipHorizontal,
                                       final boolean flipVertical) {
+        return sRotations[getRotationIndex(rotation, flipHorizontal, flipVertical)];
+    }
+
+    private static float[] createRotation(final Rotation rotation, final boolean flipHorizontal,
+                                          final boolean flipVertical) {
         float[] rotatedTex;
         switch (rotation) {
             case ROTATION_90:
@@ -71,6 +109,7 @@ public class TextureRotationUtil {
                 rotatedTex = TEXTURE_NO_ROTATION;
                 break;
         }
+        rotatedTex = rotatedTex.clone();
         if (flipHorizontal) {
             rotatedTex = new float[]{
                     flip(rotatedTex[0]), rotatedTex[1],
@@ -0,0 +1,106 @@
+package com.xmly.media.gles.utils;
+
+/**
+ * Computes the progress of a transition from presentation timestamps, so its length does not
+ * depend on how often it is drawn. The transition starts at the first timestamp passed to
+ * {@link #update} after {@link #start()}.
+ */
+public class TransitionEngine {
+    public static final long DEFAULT_DURATION_US = 700000L;
+
+    public enum Easing {
+        LINEAR, EASE_IN, EASE_OUT, EASE_IN_OUT;
+
+        public float apply(float t) {
+            switch (this) {
+                case EASE_IN:
+                    return t * t;
+                case EASE_OUT:
+                    return t * (2.0f - t);
+                case EASE_IN_OUT:
+                    return t * t * (3.0f - 2.0f * t);
+                default:
+                    return t;
+            }
+        }
+    }
+
+    public interface OnTransitionListener {
+        /**
+         * Called from {@link #update} on the render thread when the transition reaches its end.
+         */
+        void onTransitionCompleted();
+    }
+
+    private long mDurationUs = DEFAULT_DURATION_US;
+    private Easing mEasing = Easing.LINEAR;
+    private OnTransitionListener mListener = null;
+    private long mStartUs = -1L;
+    private boolean mRunning = false;
+    private float mProgress = 1.0f;
+
+    public void setDuration(long durationUs) {
+        mDurationUs = Math.max(durationUs, 0L);
+    }
+
+    public long getDuration() {
+        return mDurationUs;
+    }
+
+    public void setEasing(Easing easing) {
+        mEasing = easing == null ? Easing.LINEAR : easing;
+    }
+
+    public Easing getEasing() {
+        return mEasing;
+    }
+
+    public void setListener(OnTransitionListener l) {
+        mListener = l;
+    }
+
+    public void start() {
+        mStartUs = -1L;
+        mRunning = true;
+        mProgress = 0.0f;
+    }
+
+    /**
+     * Ends the transition without notifying the listener.
+     */
+    public void cancel() {
+        mRunning = false;
+        mProgress = 1.0f;
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * @param ptsUs presentation time of the frame being drawn
+     * @return the eased progress between 0 and 1
+     */
+    public float update(long ptsUs) {
+        if (!mRunning)
+            return mProgress;
+
+        if (mStartUs < 0 || ptsUs < mStartUs) {
+            //第一帧或时间戳回退,从当前帧重新开始
+            mStartUs = ptsUs;
+        }
+        float t = mDurationUs == 0 ? 1.0f : (float) (ptsUs - mStartUs) / mDurationUs;
+        if (t >= 1.0f) {
+            mRunning = false;
+            mProgress = 1.0f;
+            if (mListener != null) mListener.onTransitionCompleted();
+            return mProgress;
+        }
+        mProgress = mEasing.apply(t);
+        return mProgress;
+    }
+
+    public float getProgress() {
+        return mProgress;
+    }
+}
@@ -19,7 +19,12 @@ public enum XMFilterType {
     FILTER_CROSSHATCH(11),
     FILTER_FISSION(12),
     FILTER_BLINDS(13),
-    FILTER_FADE_IN_OUT(14);
+    FILTER_FADE_IN_OUT(14),
+    FILTER_TRANSITION_WIPE(15),
+    FILTER_TRANSITION_SLIDE(16),
+    FILTER_TRANSITION_ZOOM(17),
+    FILTER_TRANSITION_DISSOLVE(18),
+    FILTER_TRANSITION_BLINDS(19);
 
     private final int value;
 
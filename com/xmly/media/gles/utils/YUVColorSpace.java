@@ -0,0 +1,55 @@
+package com.xmly.media.gles.utils;
+
+/**
+ * RGB to YUV coefficients, each vector is applied to (r, g, b, 1) with values in [0, 1].
+ */
+public enum YUVColorSpace {
+    BT601_LIMITED(
+            new float[]{0.25679f, 0.50413f, 0.09791f, 16f / 255f},
+            new float[]{-0.14822f, -0.29099f, 0.43922f, 128f / 255f},
+            new float[]{0.43922f, -0.36779f, -0.07142f, 128f / 255f}),
+    BT601_FULL(
+            new float[]{0.299f, 0.587f, 0.114f, 0f},
+            new float[]{-0.168736f, -0.331264f, 0.5f, 128f / 255f},
+            new float[]{0.5f, -0.418688f, -0.081312f, 128f / 255f}),
+    BT709_LIMITED(
+            new float[]{0.18259f, 0.61423f, 0.06201f, 16f / 255f},
+            new float[]{-0.10065f, -0.33857f, 0.43922f, 128f / 255f},
+            new float[]{0.43922f, -0.39894f, -0.04027f, 128f / 255f}),
+    BT709_FULL(
+            new float[]{0.2126f, 0.7152f, 0.0722f, 0f},
+            new float[]{-0.114572f, -0.385428f, 0.5f, 128f / 255f},
+            new float[]{0.5f, -0.454153f, -0.045847f, 128f / 255f});
+
+    private final float[] mCoefY;
+    private final float[] mCoefU;
+    private final float[] mCoefV;
+
+    YUVColorSpace(float[] coefY, float[] coefU, float[] coefV) {
+        mCoefY = coefY;
+        mCoefU = coefU;
+        mCoefV = coefV;
+    }
+
+    public static YUVColorSpace of(boolean bt709, boolean fullRange) {
+        if (bt709) {
+            return fullRange ? BT709_FULL : BT709_LIMITED;
+        }
+        return fullRange ? BT601_FULL : BT601_LIMITED;
+    }
+
+    /**
+     * The returned arrays are shared and must not be modified.
+     */
+    public float[] getCoefY() {
+        return mCoefY;
+    }
+
+    public float[] getCoefU() {
+        return mCoefU;
+    }
+
+    public float[] getCoefV() {
+        return mCoefV;
+    }
+}
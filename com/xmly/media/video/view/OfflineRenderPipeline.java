@@ -0,0 +1,244 @@
+package com.xmly.media.video.view;
+
+import com.xmly.media.camera.view.recorder.XMMediaRecorder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Paces offline export between the decoder thread, the GL thread and the encoder without sleeps.
+ * The decoder surface holds one frame, so the decoder may only release its next output buffer
+ * once the renderer has drawn the previous one, and the encoder input queue is bounded by
+ * maxEncoderQueue. The renderer signals every drawn frame, so the decoder wakes up as soon as its
+ * slot is free. The native encoder queue reports no progress, while it is full the decoder
+ * re-checks it every millisecond. Secondary decoders, as for picture in picture, wait here for
+ * the main decoder to reach their position. Renderers that read frames back also report how
+ * many reached the encoder, so an export can wait for the last ones before stopping it.
+ */
+public class OfflineRenderPipeline {
+    private static final long ENCODER_RECHECK_NS = TimeUnit.MILLISECONDS.toNanos(1);
+    private final ReentrantLock mLock = new ReentrantLock();
+    //渲染线程每画完一帧或主解码位置前进时通知
+    private final Condition mProgress = mLock.newCondition();
+    private final int mMaxEncoderQueue;
+    private XMMediaRecorder mRecorder = null;
+    private long mRenderedFrames = 0;
+    //上一帧交给解码surface时已渲染的帧数
+    private long mRenderedAtSubmit = -1;
+    private long mPosition = 0;
+    private boolean mStopRequested = false;
+    private long mWaitNs = 0;
+    private long mSubmittedFrames = 0;
+    private long mDeliveredFrames = 0;
+
+    public OfflineRenderPipeline(int maxEncoderQueue) {
+        mMaxEncoderQueue = maxEncoderQueue;
+    }
+
+    public void setRecorder(XMMediaRecorder recorder) {
+        mLock.lock();
+        try {
+            mRecorder = recorder;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Starts a new export.
+     */
+    public void reset() {
+        mLock.lock();
+        try {
+            mRenderedAtSubmit = -1;
+            mPosition = 0;
+            mStopRequested = false;
+            mWaitNs = 0;
+            mSubmittedFrames = 0;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Called by the renderer after each drawn frame, on the GL thread.
+     */
+    public void onFrameRendered() {
+        mLock.lock();
+        try {
+            mRenderedFrames++;
+            mProgress.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Called by the renderer with the total of frames its readback handed to the encoder.
+     */
+    public void onFramesDelivered(long total) {
+        mLock.lock();
+        try {
+            if (total != mDeliveredFrames) {
+                mDeliveredFrames = total;
+                mProgress.signalAll();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public long getDeliveredFrames() {
+        mLock.lock();
+        try {
+            return mDeliveredFrames;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until the renderer reported at least total delivered frames, or timeoutMs passed.
+     * @return true when the frames were delivered
+     */
+    public boolean awaitDelivered(long total, long timeoutMs) {
+        mLock.lock();
+        try {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            while (mDeliveredFrames < total && remaining > 0 && !mStopRequested) {
+                remaining = mProgress.awaitNanos(remaining);
+            }
+            return mDeliveredFrames >= total;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Blocks the decoder thread until the previous frame was drawn and the encoder has room for
+     * another one, then takes the slot for the frame about to be released.
+     * @return false when {@link #requestStop()} ended the wait
+     */
+    public boolean awaitFrameSlot() {
+        mLock.lock();
+        try {
+            long start = System.nanoTime();
+            while (!mStopRequested) {
+                if (mRenderedAtSubmit >= 0 && mRenderedFrames <= mRenderedAtSubmit) {
+                    mProgress.awaitUninterruptibly();
+                } else if (mRecorder != null && mRecorder.queue_sizes() > mMaxEncoderQueue) {
+                    try {
+                        mProgress.awaitNanos(ENCODER_RECHECK_NS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                } else {
+                    break;
+                }
+            }
+            mWaitNs += System.nanoTime() - start;
+            if (mStopRequested) {
+                mStopRequested = false;
+                return false;
+            }
+            mRenderedAtSubmit = mRenderedFrames;
+            mSubmittedFrames++;
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Publishes the position of the main decoder, in ms.
+     */
+    public void setPosition(long position) {
+        mLock.lock();
+        try {
+            mPosition = position;
+            mProgress.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public long getPosition() {
+        mLock.lock();
+        try {
+            return mPosition;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until the main decoder reached position, the next signal or timeoutMs passed.
+     * Callers loop and check their own stop flag between calls.
+     * @return true when the position was reached
+     */
+    public boolean awaitPosition(long position, long timeoutMs) {
+        mLock.lock();
+        try {
+            if (mPosition < position) {
+                mProgress.awaitNanos(TimeUnit.MILLISECONDS.toNanos(timeoutMs));
+            }
+            return mPosition >= position;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Ends the current wait of the decoder thread and wakes every waiter up.
+     */
+    public void requestStop() {
+        mLock.lock();
+        try {
+            mStopRequested = true;
+            mProgress.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Wakes the waiters up to re-check their own state.
+     */
+    public void wakeUp() {
+        mLock.lock();
+        try {
+            mProgress.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return time the decoder thread spent waiting in {@link #awaitFrameSlot()} since reset
+     */
+    public long getWaitTimeNs() {
+        mLock.lock();
+        try {
+            return mWaitNs;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public long getSubmittedFrames() {
+        mLock.lock();
+        try {
+            return mSubmittedFrames;
+        } finally {
+            mLock.unlock();
+        }
+    }
+}
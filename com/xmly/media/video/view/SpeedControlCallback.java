@@ -3,6 +3,7 @@ package com.xmly.media.video.view;
 import android.util.Log;
 
 import com.xmly.media.camera.view.recorder.XMMediaRecorder;
+import com.xmly.media.gles.utils.FramePacer;
 import com.xmly.media.gles.utils.XMFilterType;
 
 import java.util.ArrayList;
@@ -14,18 +15,15 @@ import java.util.ArrayList;
 public class SpeedControlCallback implements XMDecoder.FrameCallback {
     private static final String TAG = "SpeedControlCallback";
     private static final int MAX_QUEUE_SIZE = 3;
-    private static final int POLLING_TIME = 10; //ms
-    private static final boolean CHECK_SLEEP_TIME = false;
     private static final long ONE_MILLION = 1000000L;
     private XMDecoderRenderer mRenderer = null;
     private XMMediaRecorder mRecorder = null;
-    private long mPrevPresentUsec;
-    private long mPrevMonoUsec;
+    private final FramePacer mPacer = new FramePacer();
+    private long mPacedFrames;
     private long mFixedFrameDurationUsec;
     private boolean mLoopReset;
-    private int mPrevFrameNum;
-    private volatile boolean mIsStopRequested = false;
-    private long mCurrentPosition = 0l;
+    private boolean mFirstFrame;
+    private final OfflineRenderPipeline mPipeline = new OfflineRenderPipeline(MAX_QUEUE_SIZE);
 
     private XMFilterType mType = XMFilterType.NONE;
     private int index = 0;
@@ -46,14 +44,14 @@ public class SpeedControlCallback implements XMDecoder.FrameCallback {
     };
 
     public void init() {
-        mPrevPresentUsec = 0l;
-        mPrevMonoUsec = 0l;
+        mPacer.reset();
+        mPacedFrames = 0l;
         mLoopReset = false;
-        mPrevFrameNum = -1;
+        mFirstFrame = true;
         index = 0;
         mSegmentArray = null;
         mType = XMFilterType.NONE;
-        stop(false);
+        mPipeline.reset();
     }
 
     public void setSegmentArray(ArrayList<XMDecoderView.Segment> list) {
@@ -62,114 +60,76 @@ public class SpeedControlCallback implements XMDecoder.FrameCallback {
 
     public void setRecorder(XMMediaRecorder recorder) {
         mRecorder = recorder;
+        mPipeline.setRecorder(recorder);
     }
 
     public void setRenderer(XMDecoderRenderer renderer) {
+        if (mRenderer != null && mRenderer != renderer) {
+            mRenderer.setOfflinePipeline(null);
+        }
         mRenderer = renderer;
+        //滤镜切换频繁,单pass滤镜共用一个program
+        if (mRenderer != null) {
+            mRenderer.setUberShaderEnabled(true);
+            mRenderer.setOfflinePipeline(mPipeline);
+        }
+    }
+
+    public OfflineRenderPipeline getPipeline() {
+        return mPipeline;
     }
 
     public void setFixedPlaybackRate(int fps) {
         mFixedFrameDurationUsec = (ONE_MILLION / fps);
     }
 
-    @Override
-    public void preRender(long presentationTimeUsec) {
-        if (mPrevMonoUsec == 0) {
-            mPrevMonoUsec = System.nanoTime() / 1000;
-            mPrevPresentUsec = presentationTimeUsec;
-        } else {
-            long frameDelta;
-            if (mLoopReset) {
-                mPrevPresentUsec = presentationTimeUsec - ONE_MILLION / 30;
-                mLoopReset = false;
-            }
-
-            if (mFixedFrameDurationUsec != 0) {
-                frameDelta = mFixedFrameDurationUsec;
-            } else {
-                frameDelta = presentationTimeUsec - mPrevPresentUsec;
-            }
-
-            if (frameDelta < 0) {
-                Log.w(TAG, "Weird, video times went backward");
-                frameDelta = 0;
-            } else if (frameDelta == 0) {
-                Log.i(TAG, "Warning: current frame and previous frame had same timestamp");
-            } else if (frameDelta > 10 * ONE_MILLION) {
-                Log.i(TAG, "Inter-frame pause was " + (frameDelta / ONE_MILLION) +
-                        "sec, capping at 5 sec");
-                frameDelta = 5 * ONE_MILLION;
-            }
+    /**
+     * @param speed real-time playback rate, from {@link FramePacer#MIN_SPEED} to {@link FramePacer#MAX_SPEED}
+     */
+    public void setPlaybackSpeed(float speed) {
+        mPacer.setSpeed(speed);
+    }
 
-            long desiredUsec = mPrevMonoUsec + frameDelta;  // when we want to wake up
-            long nowUsec = System.nanoTime() / 1000;
-            while (nowUsec < (desiredUsec - 100)) {
-                long sleepTimeUsec = desiredUsec - nowUsec;
-                if (sleepTimeUsec > 500000) {
-                    sleepTimeUsec = 500000;
-                }
-
-                try {
-                    if (CHECK_SLEEP_TIME) {
-                        long startNsec = System.nanoTime();
-                        Thread.sleep(sleepTimeUsec / 1000, (int) (sleepTimeUsec % 1000) * 1000);
-                        long actualSleepNsec = System.nanoTime() - startNsec;
-                        Log.d(TAG, "sleep=" + sleepTimeUsec + " actual=" + (actualSleepNsec/1000) +
-                                " diff=" + (Math.abs(actualSleepNsec / 1000 - sleepTimeUsec)) +
-                                " (usec)");
-                    } else {
-                        Thread.sleep(sleepTimeUsec / 1000, (int) (sleepTimeUsec % 1000) * 1000);
-                    }
-                } catch (InterruptedException ie) {
-                }
-
-                nowUsec = System.nanoTime() / 1000;
-            }
+    public FramePacer getPacer() {
+        return mPacer;
+    }
 
-            mPrevMonoUsec += frameDelta;
-            mPrevPresentUsec += frameDelta;
+    @Override
+    public void preRender(long presentationTimeUsec) {
+        long ptsUs = presentationTimeUsec;
+        if (mFixedFrameDurationUsec != 0) {
+            ptsUs = mPacedFrames * mFixedFrameDurationUsec;
         }
+        mPacedFrames++;
+        if (mLoopReset) {
+            mPacer.rebase();
+            mLoopReset = false;
+        }
+        mPacer.awaitPresentation(ptsUs);
     }
 
     @Override
     public void stop(boolean stop) {
-        synchronized (this) {
-            mIsStopRequested = stop;
+        if (stop) {
+            mPipeline.requestStop();
         }
     }
 
     public long getCurrentPosition() {
-            return mCurrentPosition;
-    }
-
-    private void setCurrentPosition(long pos) {
-        synchronized (this) {
-            mCurrentPosition = pos;
-        }
+        return mPipeline.getPosition();
     }
 
     @Override
     public void offlineRender(long position) {
-        setCurrentPosition(position);
-        if (mPrevFrameNum == -1) {
-            mPrevFrameNum = mRenderer.getDrawFrameNums();
+        mPipeline.setPosition(position);
+        //等上一帧画完且编码队列有空位,渲染线程画完一帧时立即唤醒
+        if (!mPipeline.awaitFrameSlot()) {
+            Log.i(TAG, "stop is requested, break");
+        }
+        if (mFirstFrame) {
+            mFirstFrame = false;
             index = 0;
         } else {
-            int curNum = mRenderer.getDrawFrameNums();
-            while (curNum <= mPrevFrameNum || mRecorder.queue_sizes() > MAX_QUEUE_SIZE) {
-                try {
-                    Thread.sleep(POLLING_TIME, 0);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-                curNum = mRenderer.getDrawFrameNums();
-                if (mIsStopRequested) {
-                    stop(false);
-                    Log.i(TAG, "stop is requested, break");
-                    break;
-                }
-            }
-            mPrevFrameNum = curNum;
 
             XMFilterType preType = mType;
             if (mSegmentArray != null && index < mSegmentArray.size()) {
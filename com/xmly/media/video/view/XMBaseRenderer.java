@@ -4,6 +4,7 @@ import android.annotation.TargetApi;
 import android.app.ActivityManager;
 import android.content.Context;
 import android.content.pm.ConfigurationInfo;
+import android.graphics.Bitmap;
 import android.graphics.PixelFormat;
 import android.graphics.SurfaceTexture;
 import android.opengl.GLES20;
@@ -12,11 +13,16 @@ import android.os.Build;
 import android.util.Log;
 import android.util.SparseArray;
 
+import com.xmly.media.gles.FrameBufferPool;
+import com.xmly.media.gles.QuadVertexBuffer;
+import com.xmly.media.gles.RenderCommandQueue;
+import com.xmly.media.gles.SnapshotReader;
 import com.xmly.media.gles.filter.GPUImageFilter;
 import com.xmly.media.camera.view.recorder.IXMCameraRecorderListener;
 import com.xmly.media.camera.view.recorder.XMMediaRecorder;
 import com.xmly.media.gles.utils.GPUImageParams;
 import com.xmly.media.gles.utils.OpenGlUtils;
+import com.xmly.media.gles.utils.ProgramCache;
 import com.xmly.media.gles.utils.Rotation;
 import com.xmly.media.gles.utils.TextureRotationUtil;
 import com.xmly.media.gles.utils.XMFilterType;
@@ -24,8 +30,7 @@ import com.xmly.media.gles.utils.XMFilterType;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.concurrent.Future;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -46,12 +51,20 @@ class XMBaseRenderer implements GLSurfaceView.Renderer, SurfaceTexture.OnFrameAv
     protected GLSurfaceView mGLSurfaceView = null;
     protected SurfaceTexture mSurfaceTexture = null;
     protected int mGLTextureId = OpenGlUtils.NO_TEXTURE;
-    protected final Queue<Runnable> mRunOnDraw;
+    protected final RenderCommandQueue mRunOnDraw;
+    //合并连续调用的事件key
+    protected static final String CMD_SET_FILTER = "setFilter";
+    protected static final String CMD_SET_PIP_RECT = "setPipRect";
+    protected static final String CMD_SET_LOGO = "setLogo";
+    //每帧执行事件的时间预算,超出的留到下一帧
+    protected volatile long mCommandBudgetNs = DEFAULT_COMMAND_BUDGET_NS;
+    public static final long DEFAULT_COMMAND_BUDGET_NS = 4000000L;
     protected boolean updateTexImage = false;
     protected int mOutputWidth;
     protected int mOutputHeight;
     protected IXMCameraRecorderListener mListener;
     protected volatile boolean mGPUCopierEnable = false;
+    protected final SnapshotReader mSnapshotReader = new SnapshotReader();
 
     protected static final float CUBE[] = {
             -1.0f, -1.0f,
@@ -71,15 +84,8 @@ class XMBaseRenderer implements GLSurfaceView.Renderer, SurfaceTexture.OnFrameAv
                 .asFloatBuffer();
         mGLTextureBuffer.put(TextureRotationUtil.TEXTURE_NO_ROTATION).position(0);
 
-        mDefaultGLCubeBuffer = ByteBuffer.allocateDirect(CUBE.length * 4)
-                .order(ByteOrder.nativeOrder())
-                .asFloatBuffer();
-        mDefaultGLCubeBuffer.put(CUBE).position(0);
-
-        mDefaultGLTextureBuffer = ByteBuffer.allocateDirect(TextureRotationUtil.TEXTURE_NO_ROTATION.length * 4)
-                .order(ByteOrder.nativeOrder())
-                .asFloatBuffer();
-        mDefaultGLTextureBuffer.put(TextureRotationUtil.getRotation(Rotation.ROTATION_180, true, false)).position(0);
+        mDefaultGLCubeBuffer = QuadVertexBuffer.getCubeBuffer();
+        mDefaultGLTextureBuffer = QuadVertexBuffer.getTextureBuffer(Rotation.ROTATION_180, true, false);
     }
 
     private boolean supportsOpenGLES2(final Context context) {
@@ -96,7 +102,7 @@ class XMBaseRenderer implements GLSurfaceView.Renderer, SurfaceTexture.OnFrameAv
         }
         GPUImageParams.context = context;
         mRecorder = recorder;
-        mRunOnDraw = new LinkedList<Runnable>();
+        mRunOnDraw = new RenderCommandQueue();
         initBuffer();
     }
 
@@ -116,6 +122,11 @@ class XMBaseRenderer implements GLSurfaceView.Renderer, SurfaceTexture.OnFrameAv
 
     @Override
     public void onSurfaceCreated(GL10 gl, EGLConfig config) {
+        //EGL上下文重建后,之前缓存的framebuffer、program和VBO已失效
+        FrameBufferPool.getInstance().clear();
+        ProgramCache.getInstance().clear();
+        QuadVertexBuffer.getInstance().clear();
+        mSnapshotReader.onContextLost();
         GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1);
         GLES20.glDisable(GLES20.GL_DEPTH_TEST);
     }
@@ -145,6 +156,10 @@ class XMBaseRenderer implements GLSurfaceView.Renderer, SurfaceTexture.OnFrameAv
         mGPUCopierEnable = enable;
     }
 
+    public boolean isGPUCopierEnabled() {
+        return mGPUCopierEnable;
+    }
+
     protected void initFilters() {
         for (int i = 0; i < mFilterArrays.size(); i++) {
             if (mFilterArrays.get(i) != null) {
@@ -180,6 +195,33 @@ class XMBaseRenderer implements GLSurfaceView.Renderer, SurfaceTexture.OnFrameAv
         mSurfaceTexture = null;
 
         releaseFilters();
+        mSnapshotReader.release();
+    }
+
+    /**
+     * 异步截图,在渲染线程读取,在后台线程压缩,不阻塞渲染
+     * @param stage 截取滤镜前,滤镜后或最终输出的画面
+     * @param width 截图宽度,为0时使用该阶段的大小
+     * @param format PNG或JPEG
+     * @param listener 在后台线程回调,可为null
+     * @return 压缩后的图片数据
+     */
+    public Future<byte[]> takeSnapshot(SnapshotReader.Stage stage, int width, int height,
+                                       Bitmap.CompressFormat format, int quality,
+                                       SnapshotReader.OnSnapshotListener listener) {
+        Future<byte[]> future = mSnapshotReader.requestSnapshot(stage, width, height, format, quality, listener);
+        requestRender();
+        return future;
+    }
+
+    /**
+     * 在onDrawFrame最后调用,把读取完成的截图交给后台线程压缩
+     */
+    protected void pollSnapshots() {
+        mSnapshotReader.poll();
+        if (mSnapshotReader.hasPendingSnapshots()) {
+            requestRender();
+        }
     }
 
     protected void requestRender() {
@@ -245,26 +287,33 @@ class XMBaseRenderer implements GLSurfaceView.Renderer, SurfaceTexture.OnFrameAv
         return coordinate == 0.0f ? distance : 1 - distance;
     }
 
-    protected void cleanAll(Queue<Runnable> queue) {
-        synchronized (queue) {
-            while (!queue.isEmpty()) {
-                queue.poll();
-            }
-        }
+    protected void cleanAll(RenderCommandQueue queue) {
+        queue.clear();
     }
 
-    protected void runAll(Queue<Runnable> queue) {
-        synchronized (queue) {
-            while (!queue.isEmpty()) {
-                queue.poll().run();
-            }
+    protected void runAll(RenderCommandQueue queue) {
+        if (queue.drain(mCommandBudgetNs)) {
+            //预算用完,剩余事件在下一帧执行
+            requestRender();
         }
     }
 
-    protected void runOnDraw(Queue<Runnable> queue, final Runnable runnable) {
-        synchronized (queue) {
-            queue.add(runnable);
-        }
+    protected void runOnDraw(RenderCommandQueue queue, final Runnable runnable) {
+        queue.post(runnable);
+    }
+
+    /**
+     * 同一key只执行最后添加的事件,用于滑杆等连续调用
+     */
+    protected void runOnDraw(RenderCommandQueue queue, Object key, final Runnable runnable) {
+        queue.post(key, runnable);
+    }
+
+    /**
+     * @param budgetNs 每帧执行事件的时间预算,RenderCommandQueue.NO_BUDGET为不限制
+     */
+    public void setCommandBudget(long budgetNs) {
+        mCommandBudgetNs = budgetNs;
     }
 
     public final class RenderIndex {
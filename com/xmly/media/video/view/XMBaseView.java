@@ -6,6 +6,7 @@ import android.util.Log;
 
 import com.xmly.media.camera.view.CameraView;
 import com.xmly.media.camera.view.recorder.IXMCameraRecorderListener;
+import com.xmly.media.camera.view.recorder.OnFramesDroppedListener;
 import com.xmly.media.camera.view.recorder.XMMediaRecorder;
 import com.xmly.media.camera.view.recorder.XMMediaRecorderParams;
 import com.xmly.media.gles.utils.XMFilterType;
@@ -32,6 +33,12 @@ class XMBaseView {
         onInit();
         mRecorder = new XMMediaRecorder(useSoftEncoder, hasAudio, hasVideo);
         mRecorder.setListener(onXMPlayerRecorderListener);
+        mRecorder.setOnFramesDroppedListener(new OnFramesDroppedListener() {
+            @Override
+            public void onFramesDropped(int droppedFrames, int totalFrames) {
+                Log.w(TAG, "onFramesDropped " + droppedFrames + "/" + totalFrames);
+            }
+        });
         onInitialized();
     }
 
@@ -41,6 +48,12 @@ class XMBaseView {
     public void onInitialized() {
     }
 
+    /**
+     * Called when the recorder reports an error, also before it started.
+     */
+    protected void onRecorderFailed() {
+    }
+
     public XMBaseView(Context context) {
         mContext = context;
     }
@@ -128,6 +141,7 @@ class XMBaseView {
         @Override
         public void onRecorderError() {
             Log.e(TAG, "onRecorderError");
+            onRecorderFailed();
             stop();
             synchronized (this) {
                 setStatus(false);
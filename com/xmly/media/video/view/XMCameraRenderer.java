@@ -4,13 +4,19 @@ import android.annotation.TargetApi;
 import android.content.Context;
 import android.hardware.Camera;
 import android.graphics.SurfaceTexture;
+import android.opengl.EGL14;
 import android.opengl.GLES20;
 import android.os.Build;
 
+import com.xmly.media.gles.QuadVertexBuffer;
+import com.xmly.media.gles.RenderCommandQueue;
+import com.xmly.media.gles.SnapshotReader;
 import com.xmly.media.gles.filter.GPUImageCameraInputFilter;
 import com.xmly.media.gles.filter.GPUImageFilter;
 import com.xmly.media.gles.filter.GPUImageFilterFactory;
+import com.xmly.media.gles.filter.GPUImageFilterPreparer;
 import com.xmly.media.gles.filter.GPUImageYUY2PixelCopierFilter;
+import com.xmly.media.camera.view.recorder.EncoderBackpressureController;
 import com.xmly.media.camera.view.recorder.XMMediaRecorder;
 import com.xmly.media.gles.utils.OpenGlUtils;
 import com.xmly.media.gles.utils.Rotation;
@@ -21,8 +27,6 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-import java.util.LinkedList;
-import java.util.Queue;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -36,7 +40,7 @@ public class XMCameraRenderer extends XMBaseRenderer {
     private static final String TAG = "XMCameraRenderer";
     private FloatBuffer mGLCameraTextureBuffer;
     private XMFilterType mFilterType = XMFilterType.NONE;
-    private final Queue<Runnable> mCameraRunOnDraw;
+    private final RenderCommandQueue mCameraRunOnDraw;
     private int mCameraPreviewWidth = 960;
     private int mCameraPreviewHeight = 540;
     private int mCameraOutputWidth = 960;
@@ -45,6 +49,9 @@ public class XMCameraRenderer extends XMBaseRenderer {
     private Rotation mRotation = Rotation.NORMAL;
     private boolean mFlipHorizontal = false;
     private boolean mFlipVertical = false;
+    private volatile GPUImageFilterPreparer mFilterPreparer = null;
+    private GPUImageFilterPreparer.OnFilterPreparedListener mFilterChangedListener = null;
+    private final EncoderBackpressureController mBackpressure;
 
     private void initBuffer() {
         mGLCameraTextureBuffer = ByteBuffer.allocateDirect(TextureRotationUtil.TEXTURE_NO_ROTATION.length * 4)
@@ -61,9 +68,12 @@ public class XMCameraRenderer extends XMBaseRenderer {
         mFilterArrays.put(RenderIndex.RotateIndex, GPUImageFilterFactory.CreateFilter(XMFilterType.NONE));
         mFilterArrays.put(RenderIndex.FilterIndex, GPUImageFilterFactory.CreateFilter(mFilterType));
         mFilterArrays.put(RenderIndex.DisplayIndex, GPUImageFilterFactory.CreateFilter(XMFilterType.NONE));
-        mFilterArrays.put(RenderIndex.DownloadIndex, new GPUImageYUY2PixelCopierFilter(mRecorder));
+        mBackpressure = new EncoderBackpressureController(mRecorder);
+        GPUImageYUY2PixelCopierFilter copier = new GPUImageYUY2PixelCopierFilter(mRecorder);
+        copier.setBackpressureController(mBackpressure);
+        mFilterArrays.put(RenderIndex.DownloadIndex, copier);
 
-        mCameraRunOnDraw = new LinkedList<Runnable>();
+        mCameraRunOnDraw = new RenderCommandQueue();
         initBuffer();
     }
 
@@ -71,6 +81,15 @@ public class XMCameraRenderer extends XMBaseRenderer {
     public void onSurfaceCreated(final GL10 unused, final EGLConfig config) {
         super.onSurfaceCreated(unused, config);
         initFilters();
+        releaseFilterPreparer();
+        GPUImageFilterPreparer preparer = new GPUImageFilterPreparer(EGL14.eglGetCurrentContext());
+        preparer.setListener(new GPUImageFilterPreparer.OnFilterPreparedListener() {
+            @Override
+            public void onFilterPrepared(XMFilterType type) {
+                requestRender();
+            }
+        });
+        mFilterPreparer = preparer;
     }
 
     @Override
@@ -89,6 +108,7 @@ public class XMCameraRenderer extends XMBaseRenderer {
     public void onDrawFrame(final GL10 gl) {
         super.onDrawFrame(gl);
         runAll(mCameraRunOnDraw);
+        swapPreparedFilter();
 
         if (mSurfaceTexture != null) {
             float[] mtx = new float[16];
@@ -99,27 +119,35 @@ public class XMCameraRenderer extends XMBaseRenderer {
                 ((GPUImageCameraInputFilter) mFilterArrays.get(RenderIndex.CameraIndex)).setTextureTransformMatrix(mtx);
                 cameraTex = mFilterArrays.get(RenderIndex.CameraIndex).onDrawToTexture(mGLTextureId, mDefaultGLCubeBuffer, mGLCameraTextureBuffer);
             }
+            //相机输出是水平镜像的,由滤镜阶段翻转回来
+            mSnapshotReader.onStage(SnapshotReader.Stage.PRE_FILTER, cameraTex, mCameraOutputWidth, mCameraOutputHeight,
+                    mDefaultGLCubeBuffer, QuadVertexBuffer.getTextureBuffer(Rotation.NORMAL, true, true));
 
-            mDefaultGLTextureBuffer.put(TextureRotationUtil.getRotation(Rotation.NORMAL, true, false)).position(0);
+            mDefaultGLTextureBuffer = QuadVertexBuffer.getTextureBuffer(Rotation.NORMAL, true, false);
             if (mFilterArrays.get(RenderIndex.FilterIndex) != null) {
                 cameraTex = mFilterArrays.get(RenderIndex.FilterIndex).onDrawToTexture(cameraTex, mDefaultGLCubeBuffer, mDefaultGLTextureBuffer);
             }
+            mSnapshotReader.onStage(SnapshotReader.Stage.POST_FILTER, cameraTex, mCameraOutputWidth, mCameraOutputHeight,
+                    mDefaultGLCubeBuffer, QuadVertexBuffer.getTextureBuffer(Rotation.NORMAL, false, true));
 
-            mDefaultGLTextureBuffer.put(TextureRotationUtil.getRotation(Rotation.NORMAL, false, false)).position(0);
+            mDefaultGLTextureBuffer = QuadVertexBuffer.getTextureBuffer(Rotation.NORMAL, false, false);
             if (mFilterArrays.get(RenderIndex.RotateIndex) != null) {
                 cameraTex = mFilterArrays.get(RenderIndex.RotateIndex).onDrawToTexture(cameraTex, mDefaultGLCubeBuffer, mDefaultGLTextureBuffer);
             }
+            mSnapshotReader.onStage(SnapshotReader.Stage.FINAL, cameraTex, mCameraOutputWidth, mCameraOutputHeight,
+                    mDefaultGLCubeBuffer, QuadVertexBuffer.getTextureBuffer(Rotation.NORMAL, false, true));
 
             if (mFilterArrays.get(RenderIndex.DisplayIndex) != null) {
                 mFilterArrays.get(RenderIndex.DisplayIndex).onDraw(cameraTex, mDefaultGLCubeBuffer, mGLTextureBuffer);
             }
 
             if (mGPUCopierEnable) {
-                mDefaultGLTextureBuffer.put(TextureRotationUtil.getRotation(Rotation.NORMAL, false, true)).position(0);
+                mDefaultGLTextureBuffer = QuadVertexBuffer.getTextureBuffer(Rotation.NORMAL, false, true);
                 if (mFilterArrays.get(RenderIndex.DownloadIndex) != null) {
                     mFilterArrays.get(RenderIndex.DownloadIndex).onDrawToTexture(cameraTex, mDefaultGLCubeBuffer, mDefaultGLTextureBuffer);
                 }
             }
+            pollSnapshots();
         }
 
         synchronized (this) {
@@ -193,6 +221,26 @@ public class XMCameraRenderer extends XMBaseRenderer {
         requestRender();
     }
 
+    @Override
+    public void enableGPUCopier(boolean enable) {
+        if (enable) {
+            runOnDraw(mCameraRunOnDraw, new Runnable() {
+                @Override
+                public void run() {
+                    mBackpressure.reset();
+                }
+            });
+        }
+        super.enableGPUCopier(enable);
+    }
+
+    /**
+     * 调整编码队列积压时的丢帧策略
+     */
+    public EncoderBackpressureController getBackpressureController() {
+        return mBackpressure;
+    }
+
     public int getCameraOutputWidth() {
         return mCameraOutputWidth;
     }
@@ -201,9 +249,23 @@ public class XMCameraRenderer extends XMBaseRenderer {
         return mCameraOutputHeight;
     }
 
+    /**
+     * 新滤镜生效后在GL线程回调
+     */
+    public void setOnFilterChangedListener(GPUImageFilterPreparer.OnFilterPreparedListener l) {
+        mFilterChangedListener = l;
+    }
+
     @Override
     public void setFilter(final XMFilterType filtertype) {
-        runOnDraw(mRunOnDraw, new Runnable() {
+        GPUImageFilterPreparer preparer = mFilterPreparer;
+        if (preparer != null) {
+            //在共享上下文线程中编译,准备好后再替换,旧滤镜继续渲染
+            preparer.prepare(filtertype);
+            mFilterType = filtertype;
+            return;
+        }
+        runOnDraw(mRunOnDraw, CMD_SET_FILTER, new Runnable() {
             @Override
             public void run() {
                 if (mFilterArrays.get(RenderIndex.FilterIndex) != null) {
@@ -259,6 +321,33 @@ public class XMCameraRenderer extends XMBaseRenderer {
         }
     }
 
+    private void swapPreparedFilter() {
+        GPUImageFilterPreparer preparer = mFilterPreparer;
+        GPUImageFilterPreparer.PreparedFilter prepared = preparer != null ? preparer.poll() : null;
+        if (prepared == null) {
+            return;
+        }
+
+        prepared.filter.onOutputSizeChanged(mCameraOutputWidth, mCameraOutputHeight);
+        prepared.filter.onInputSizeChanged(mCameraOutputWidth, mCameraOutputHeight);
+        GPUImageFilter old = mFilterArrays.get(RenderIndex.FilterIndex);
+        mFilterArrays.put(RenderIndex.FilterIndex, prepared.filter);
+        if (old != null) {
+            old.destroy();
+        }
+        if (mFilterChangedListener != null) {
+            mFilterChangedListener.onFilterPrepared(prepared.type);
+        }
+    }
+
+    private void releaseFilterPreparer() {
+        GPUImageFilterPreparer preparer = mFilterPreparer;
+        mFilterPreparer = null;
+        if (preparer != null) {
+            preparer.release();
+        }
+    }
+
     public void cleanRunOnSetupCamera() {
         if(mCameraRunOnDraw != null)
             cleanAll(mCameraRunOnDraw);
@@ -266,6 +355,7 @@ public class XMCameraRenderer extends XMBaseRenderer {
 
     @Override
     public void release() {
+        releaseFilterPreparer();
         super.release();
     }
 }
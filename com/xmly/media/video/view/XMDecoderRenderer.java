@@ -7,15 +7,16 @@ import android.opengl.GLES20;
 import android.os.Build;
 import android.view.Surface;
 
+import com.xmly.media.gles.QuadVertexBuffer;
 import com.xmly.media.gles.filter.GPUImageFilter;
 import com.xmly.media.gles.filter.GPUImageFilterFactory;
 import com.xmly.media.gles.filter.GPUImageOESInputFilter;
 import com.xmly.media.gles.filter.GPUImagePIPFilter;
+import com.xmly.media.gles.filter.GPUImageUberFilter;
 import com.xmly.media.gles.filter.GPUImageYUY2PixelCopierFilter;
 import com.xmly.media.camera.view.recorder.XMMediaRecorder;
 import com.xmly.media.gles.utils.OpenGlUtils;
 import com.xmly.media.gles.utils.Rotation;
-import com.xmly.media.gles.utils.TextureRotationUtil;
 import com.xmly.media.gles.utils.XMFilterType;
 
 import javax.microedition.khronos.egl.EGLConfig;
@@ -33,6 +34,8 @@ public class XMDecoderRenderer extends XMBaseRenderer {
     private int mVideoWidth; //Faster encoding when it is even
     private int mVideoHeight;
     private volatile int mDrawFrameNums = 0;
+    private volatile boolean mUberShaderEnabled = false;
+    private volatile OfflineRenderPipeline mOfflinePipeline = null;
 
     public XMDecoderRenderer(final Context context, XMMediaRecorder recorder) {
         super(context, recorder);
@@ -68,7 +71,7 @@ public class XMDecoderRenderer extends XMBaseRenderer {
         super.onDrawFrame(gl);
 
         int texture = OpenGlUtils.NO_TEXTURE, templateTex = OpenGlUtils.NO_TEXTURE, pipTex = OpenGlUtils.NO_TEXTURE;
-        mDefaultGLTextureBuffer.put(TextureRotationUtil.getRotation(Rotation.NORMAL, false, true)).position(0);
+        mDefaultGLTextureBuffer = QuadVertexBuffer.getTextureBuffer(Rotation.NORMAL, false, true);
         if(mFilterArrays.get(RenderIndex.DecoderIndex) != null) {
             templateTex = mFilterArrays.get(RenderIndex.DecoderIndex).onDrawToTexture(mGLTextureId, mDefaultGLCubeBuffer, mDefaultGLTextureBuffer);
         }
@@ -76,13 +79,13 @@ public class XMDecoderRenderer extends XMBaseRenderer {
 
         if(pipTex != OpenGlUtils.NO_TEXTURE && templateTex != OpenGlUtils.NO_TEXTURE) {
             if(mFilterArrays.get(RenderIndex.PipIndex) != null) {
-                mDefaultGLTextureBuffer.put(TextureRotationUtil.getRotation(Rotation.NORMAL, false, false)).position(0);
+                mDefaultGLTextureBuffer = QuadVertexBuffer.getTextureBuffer(Rotation.NORMAL, false, false);
                 ((GPUImagePIPFilter) mFilterArrays.get(RenderIndex.PipIndex)).setSecondTexture(templateTex, false);
                 texture = mFilterArrays.get(RenderIndex.PipIndex).onDrawToTexture(pipTex, mDefaultGLCubeBuffer, mDefaultGLTextureBuffer);
             }
         } else {
             texture = templateTex;
-            mDefaultGLTextureBuffer.put(TextureRotationUtil.getRotation(Rotation.NORMAL, false, true)).position(0);
+            mDefaultGLTextureBuffer = QuadVertexBuffer.getTextureBuffer(Rotation.NORMAL, false, true);
         }
 
         if(mFilterArrays.get(RenderIndex.FilterIndex) != null) {
@@ -90,7 +93,7 @@ public class XMDecoderRenderer extends XMBaseRenderer {
         }
 
         if (mGPUCopierEnable) {
-            mDefaultGLTextureBuffer.put(TextureRotationUtil.getRotation(Rotation.NORMAL, false, true)).position(0);
+            mDefaultGLTextureBuffer = QuadVertexBuffer.getTextureBuffer(Rotation.NORMAL, false, true);
             if (mFilterArrays.get(RenderIndex.DownloadIndex) != null) {
                 mFilterArrays.get(RenderIndex.DownloadIndex).onDrawToTexture(texture, mDefaultGLCubeBuffer, mDefaultGLTextureBuffer);
             }
@@ -112,16 +115,31 @@ public class XMDecoderRenderer extends XMBaseRenderer {
         updateTexImage = true;
     }
 
+    /**
+     * Runs the single-pass filters with one {@link GPUImageUberFilter}, switching between them
+     * then only changes a uniform. Filters it does not cover still get their own program.
+     */
+    public void setUberShaderEnabled(boolean enabled) {
+        mUberShaderEnabled = enabled;
+    }
+
     @Override
     public void setFilter(final XMFilterType filtertype) {
-        runOnDraw(mRunOnDraw, new Runnable() {
+        final boolean uber = mUberShaderEnabled && GPUImageUberFilter.isSupported(filtertype);
+        runOnDraw(mRunOnDraw, CMD_SET_FILTER, new Runnable() {
             @Override
             public void run() {
-                if (mFilterArrays.get(RenderIndex.FilterIndex) != null) {
-                    mFilterArrays.get(RenderIndex.FilterIndex).destroy();
+                GPUImageFilter current = mFilterArrays.get(RenderIndex.FilterIndex);
+                if (uber && current instanceof GPUImageUberFilter) {
+                    ((GPUImageUberFilter) current).setFilterType(filtertype);
+                    return;
+                }
+                if (current != null) {
+                    current.destroy();
                     mFilterArrays.put(RenderIndex.FilterIndex, null);
                 }
-                GPUImageFilter filter = GPUImageFilterFactory.CreateFilter(filtertype);
+                GPUImageFilter filter = uber ? GPUImageFilterFactory.CreateUberFilter(filtertype)
+                        : GPUImageFilterFactory.CreateFilter(filtertype);
                 filter.init();
                 GLES20.glUseProgram(filter.getProgram());
                 filter.onInputSizeChanged(mVideoWidth, mVideoHeight);
@@ -148,9 +166,17 @@ public class XMDecoderRenderer extends XMBaseRenderer {
     }
 
     public void setPipRectCoordinate(float[] buffer) {
-        if(mFilterArrays.get(RenderIndex.PipIndex) != null) {
-            mFilterArrays.get(RenderIndex.PipIndex).setRectangleCoordinate(buffer);
-        }
+        //在渲染线程设置,拖动时只执行最后一次
+        final float[] rect = buffer.clone();
+        runOnDraw(mRunOnDraw, CMD_SET_PIP_RECT, new Runnable() {
+            @Override
+            public void run() {
+                if(mFilterArrays.get(RenderIndex.PipIndex) != null) {
+                    mFilterArrays.get(RenderIndex.PipIndex).setRectangleCoordinate(rect);
+                }
+            }
+        });
+        requestRender();
     }
 
     @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
@@ -180,8 +206,22 @@ public class XMDecoderRenderer extends XMBaseRenderer {
         mDrawFrameNums = num;
     }
 
-    private synchronized void addDrawFrameNums() {
-        mDrawFrameNums ++;
+    private void addDrawFrameNums() {
+        synchronized (this) {
+            mDrawFrameNums ++;
+        }
+        //唤醒等待这一帧画完的解码线程
+        OfflineRenderPipeline pipeline = mOfflinePipeline;
+        if (pipeline != null) {
+            pipeline.onFrameRendered();
+        }
+    }
+
+    /**
+     * Signals every drawn frame to pipeline, for offline export.
+     */
+    public void setOfflinePipeline(OfflineRenderPipeline pipeline) {
+        mOfflinePipeline = pipeline;
     }
 
     private void filtersSizeChanged() {
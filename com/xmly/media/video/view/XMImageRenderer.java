@@ -3,15 +3,19 @@ package com.xmly.media.video.view;
 import android.annotation.TargetApi;
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.opengl.EGL14;
 import android.opengl.GLES20;
 import android.os.Build;
 import android.util.Log;
 
 import com.xmly.media.camera.view.recorder.XMMediaRecorder;
+import com.xmly.media.gles.QuadVertexBuffer;
+import com.xmly.media.gles.SnapshotReader;
 import com.xmly.media.gles.filter.GPUImageFilter;
 import com.xmly.media.gles.filter.GPUImageFilterFactory;
 import com.xmly.media.gles.filter.GPUImageImageSwitchFilter;
 import com.xmly.media.gles.filter.GPUImageLogoFilter;
+import com.xmly.media.gles.filter.GPUImagePixelCopierFilter;
 import com.xmly.media.gles.filter.GPUImageYUY2PixelCopierFilter;
 import com.xmly.media.gles.utils.OpenGlUtils;
 import com.xmly.media.gles.utils.Rotation;
@@ -39,6 +43,8 @@ public class XMImageRenderer extends XMBaseRenderer {
     private int mImageWidth;
     private int mImageHeight;
     private String mImagePath = null;
+    private volatile long mPresentationTimeUs = -1L;
+    private volatile OfflineRenderPipeline mOfflinePipeline = null;
 
     private void initBuffer() {
         mGLVideoTextureBuffer = ByteBuffer.allocateDirect(TextureRotationUtil.TEXTURE_NO_ROTATION.length * 4)
@@ -80,28 +86,117 @@ public class XMImageRenderer extends XMBaseRenderer {
         super.onDrawFrame(gl);
 
         int texture = OpenGlUtils.NO_TEXTURE;
-        mDefaultGLTextureBuffer.put(TextureRotationUtil.getRotation(Rotation.NORMAL, false, false)).position(0);
+        mDefaultGLTextureBuffer = QuadVertexBuffer.getTextureBuffer(Rotation.NORMAL, false, false);
         if (mFilterArrays.get(RenderIndex.ImageIndex) != null) {
             texture = mFilterArrays.get(RenderIndex.ImageIndex).onDrawToTexture(mGLTextureId, mDefaultGLCubeBuffer, mDefaultGLTextureBuffer);
         }
+        mSnapshotReader.onStage(SnapshotReader.Stage.PRE_FILTER, texture, mImageWidth, mImageHeight,
+                mDefaultGLCubeBuffer, QuadVertexBuffer.getTextureBuffer(Rotation.NORMAL, false, true));
+        if (mFilterArrays.get(RenderIndex.FilterIndex) instanceof GPUImageImageSwitchFilter) {
+            ((GPUImageImageSwitchFilter) mFilterArrays.get(RenderIndex.FilterIndex)).setPresentationTime(mPresentationTimeUs);
+        }
         if (mFilterArrays.get(RenderIndex.FilterIndex) != null) {
             texture = mFilterArrays.get(RenderIndex.FilterIndex).onDrawToTexture(texture, mDefaultGLCubeBuffer, mDefaultGLTextureBuffer);
         }
+        mSnapshotReader.onStage(SnapshotReader.Stage.POST_FILTER, texture, mImageWidth, mImageHeight,
+                mDefaultGLCubeBuffer, QuadVertexBuffer.getTextureBuffer(Rotation.NORMAL, false, true));
         if (mFilterArrays.get(RenderIndex.LogoIndex) != null) {
             texture = mFilterArrays.get(RenderIndex.LogoIndex).onDrawToTexture(texture, mGLCubeBuffer, mGLVideoTextureBuffer);
         }
         if (mFilterArrays.get(RenderIndex.RotateIndex) != null) {
             texture = mFilterArrays.get(RenderIndex.RotateIndex).onDrawToTexture(texture, mDefaultGLCubeBuffer, mDefaultGLTextureBuffer);
         }
+        mSnapshotReader.onStage(SnapshotReader.Stage.FINAL, texture, mVideoWidth, mVideoHeight,
+                mDefaultGLCubeBuffer, QuadVertexBuffer.getTextureBuffer(Rotation.NORMAL, false, true));
         if (mFilterArrays.get(RenderIndex.DisplayIndex) != null) {
             mFilterArrays.get(RenderIndex.DisplayIndex).onDraw(texture, mGLCubeBuffer, mGLTextureBuffer);
         }
         if (mGPUCopierEnable) {
-            mDefaultGLTextureBuffer.put(TextureRotationUtil.getRotation(Rotation.NORMAL, false, true)).position(0);
+            mDefaultGLTextureBuffer = QuadVertexBuffer.getTextureBuffer(Rotation.NORMAL, false, true);
             if (mFilterArrays.get(RenderIndex.DownloadIndex) != null) {
                 mFilterArrays.get(RenderIndex.DownloadIndex).onDrawToTexture(texture, mDefaultGLCubeBuffer, mDefaultGLTextureBuffer);
             }
         }
+        pollSnapshots();
+
+        OfflineRenderPipeline pipeline = mOfflinePipeline;
+        if (pipeline != null) {
+            reportDeliveredFrames(pipeline);
+            pipeline.onFrameRendered();
+        }
+    }
+
+    private void reportDeliveredFrames(OfflineRenderPipeline pipeline) {
+        if (mFilterArrays.get(RenderIndex.DownloadIndex) instanceof GPUImagePixelCopierFilter) {
+            pipeline.onFramesDelivered(((GPUImagePixelCopierFilter) mFilterArrays.get(RenderIndex.DownloadIndex)).getMappedFrameCount());
+        }
+    }
+
+    /**
+     * In export mode the readback never skips a frame and the swap interval is 0.
+     */
+    public void setExportMode(final boolean export) {
+        runOnDraw(mRunOnDraw, new Runnable() {
+            @Override
+            public void run() {
+                if (mFilterArrays.get(RenderIndex.DownloadIndex) instanceof GPUImagePixelCopierFilter) {
+                    ((GPUImagePixelCopierFilter) mFilterArrays.get(RenderIndex.DownloadIndex)).setLossless(export);
+                }
+            }
+        });
+        setSwapInterval(export ? 0 : 1);
+    }
+
+    /**
+     * Hands the pending readbacks to the recorder and stops reading back, before the recorder
+     * is stopped. The delivered frames are reported to the offline pipeline.
+     */
+    public void flushRecorderFrames() {
+        runOnDraw(mRunOnDraw, new Runnable() {
+            @Override
+            public void run() {
+                if (mFilterArrays.get(RenderIndex.DownloadIndex) instanceof GPUImagePixelCopierFilter) {
+                    ((GPUImagePixelCopierFilter) mFilterArrays.get(RenderIndex.DownloadIndex)).flushPendingFrames();
+                }
+                //这一次绘制不再读取,避免多编码一帧
+                enableGPUCopier(false);
+                OfflineRenderPipeline pipeline = mOfflinePipeline;
+                if (pipeline != null) {
+                    reportDeliveredFrames(pipeline);
+                }
+            }
+        });
+        requestRender();
+    }
+
+    /**
+     * Signals every drawn frame to pipeline, for offline export.
+     */
+    public void setOfflinePipeline(OfflineRenderPipeline pipeline) {
+        mOfflinePipeline = pipeline;
+    }
+
+    /**
+     * Sets the EGL swap interval of the GL thread, 0 lets an export draw faster than the display
+     * refreshes. Some drivers ignore it.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+    public void setSwapInterval(final int interval) {
+        runOnDraw(mRunOnDraw, new Runnable() {
+            @Override
+            public void run() {
+                if (!EGL14.eglSwapInterval(EGL14.eglGetCurrentDisplay(), interval)) {
+                    Log.w(TAG, "eglSwapInterval " + interval + " failed");
+                }
+            }
+        });
+    }
+
+    /**
+     * Timestamp of the frame that will be drawn next, switch transitions are timed by it.
+     */
+    public void setPresentationTime(long ptsUs) {
+        mPresentationTimeUs = ptsUs;
     }
 
     public void setVideoSize(int w, int h) {
@@ -165,7 +260,7 @@ public class XMImageRenderer extends XMBaseRenderer {
     }
 
     public void setLogo(final Bitmap bmp, final float[] rect) {
-        runOnDraw(mRunOnDraw, new Runnable() {
+        runOnDraw(mRunOnDraw, CMD_SET_LOGO, new Runnable() {
             @Override
             public void run() {
                 if (mFilterArrays.get(RenderIndex.LogoIndex) != null) {
@@ -190,7 +285,7 @@ public class XMImageRenderer extends XMBaseRenderer {
         }
         mFilterType = filtertype;
 
-        runOnDraw(mRunOnDraw, new Runnable() {
+        runOnDraw(mRunOnDraw, CMD_SET_FILTER, new Runnable() {
             @Override
             public void run() {
                 if (mFilterArrays.get(RenderIndex.FilterIndex) != null) {
@@ -5,8 +5,10 @@ import android.graphics.Bitmap;
 import android.util.Log;
 
 import com.xmly.media.gles.filter.GPUImageFilterFactory;
+import com.xmly.media.gles.utils.FramePacer;
 import com.xmly.media.gles.utils.XMFilterType;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 
 /**
@@ -22,12 +24,33 @@ public class XMImageView extends XMBaseView {
     private long mRefreshTime = 0l;
     private Object mSynOperation = new Object();
     private boolean isRunning = false;
+    private final FramePacer mPacer = new FramePacer();
+    private static final int MAX_ENCODER_QUEUE = 3;
+    private static final long FLUSH_TIMEOUT_MS = 5000l;
+    private final OfflineRenderPipeline mExportPipeline = new OfflineRenderPipeline(MAX_ENCODER_QUEUE);
+    //按媒体时间排序的图片切换计划
+    private final ArrayList<ScheduledImage> mSchedule = new ArrayList<ScheduledImage>();
+    private int mScheduleIndex = 0;
+    private volatile boolean mExportRequested = false;
+    private volatile long mExportDurationUs = 0l;
+
+    private static class ScheduledImage {
+        final long ptsUs;
+        final String path;
+
+        ScheduledImage(long ptsUs, String path) {
+            this.ptsUs = ptsUs;
+            this.path = path;
+        }
+    }
 
     @Override
     public void onInitialized() {
         super.onInitialized();
         mRenderer = new XMImageRenderer(mContext, mRecorder);
         mRenderer.setListener(onXMPlayerRecorderListener);
+        ((XMImageRenderer) mRenderer).setOfflinePipeline(mExportPipeline);
+        mExportPipeline.setRecorder(mRecorder);
     }
 
     public XMImageView(Context context) {
@@ -84,6 +107,7 @@ public class XMImageView extends XMBaseView {
             }
 
             setRefreshThreadAbort(true);
+            mExportPipeline.requestStop();
             while (getRefreshStatus()) {
                 try {
                     mSynOperation.wait();
@@ -115,15 +139,102 @@ public class XMImageView extends XMBaseView {
                 ((XMImageRenderer) mRenderer).setVideoSize(mOutputWidth, mOutputHeight);
             }
 
-            startRecorder_l(outputPath, mOutputWidth, mOutputHeight);
+            if (startRecorder_l(outputPath, mOutputWidth, mOutputHeight, false)) {
+                setStatus(true);
+            }
+        }
+    }
+
+    /**
+     * export the slideshow faster than real time, the images are switched by the schedule of
+     * scheduleImage. Frames are rendered from a media clock as fast as the GPU and the encoder
+     * allow, the recorder stops by itself after durationUs and reports onRecorderStopped.
+     * The preview must be running.
+     * @param outputPath output video of path
+     * @param outputWidth output video of width
+     * @param outputHeight output video of height
+     * @param durationUs length of the exported video
+     */
+    public void startExport(String outputPath, int outputWidth, int outputHeight, long durationUs) {
+        synchronized (mSynOperation) {
+            if (!getRefreshStatus()) {
+                Log.e(TAG, "preview is not running, exit");
+                return;
+            }
+            if (getStatus()) {
+                Log.w(TAG, "Recorder is running, exit");
+                onXMPlayerRecorderListener.onRecorderStarted();
+                return;
+            }
+
+            mOutputWidth = align(outputWidth, 2);
+            mOutputHeight = align(outputHeight, 2);
+            if (mRenderer != null) {
+                ((XMImageRenderer) mRenderer).setVideoSize(mOutputWidth, mOutputHeight);
+                ((XMImageRenderer) mRenderer).setExportMode(true);
+            }
+
+            mExportDurationUs = durationUs;
+            mExportPipeline.reset();
+            mExportRequested = true;
+            //编码器按帧序号打时间戳,与墙钟无关
+            if (!startRecorder_l(outputPath, mOutputWidth, mOutputHeight, true)) {
+                cancelExport();
+                if (mListener != null) {mListener.onRecorderError();}
+                return;
+            }
             setStatus(true);
         }
     }
 
     public void stopRecorder() {
+        cancelExport();
         super.stop();
     }
 
+    @Override
+    protected void onRecorderFailed() {
+        //编码器启动前出错时导出还在等待,不清除的话预览会一直停住
+        cancelExport();
+    }
+
+    private void cancelExport() {
+        if (!mExportRequested)
+            return;
+
+        mExportRequested = false;
+        mExportPipeline.requestStop();
+        if (mRenderer != null) {
+            ((XMImageRenderer) mRenderer).setExportMode(false);
+        }
+    }
+
+    /**
+     * switch to imagePath once the media clock reaches ptsUs, in preview and in export
+     */
+    public void scheduleImage(String imagePath, long ptsUs) {
+        if (imagePath == null)
+            return;
+
+        synchronized (mSchedule) {
+            int i = mSchedule.size();
+            while (i > 0 && mSchedule.get(i - 1).ptsUs > ptsUs) {
+                i--;
+            }
+            mSchedule.add(i, new ScheduledImage(ptsUs, imagePath));
+            if (i < mScheduleIndex) {
+                mScheduleIndex++;
+            }
+        }
+    }
+
+    public void clearScheduledImages() {
+        synchronized (mSchedule) {
+            mSchedule.clear();
+            mScheduleIndex = 0;
+        }
+    }
+
     public void release() {
         super.release();
     }
@@ -158,7 +269,10 @@ public class XMImageView extends XMBaseView {
         }
     }
 
-    private void startRecorder_l(String outputPath, int outputWidth, int outputHeight) {
+    /**
+     * @return false when the recorder could not be configured
+     */
+    private boolean startRecorder_l(String outputPath, int outputWidth, int outputHeight, boolean cfr) {
         if (mRecorder != null) {
             Log.i(TAG, "startRecorder outputPath " + outputPath);
             mImageReaderPrepared = false;
@@ -174,7 +288,7 @@ public class XMImageView extends XMBaseView {
             config.put("crf", String.valueOf(params.crf));
             config.put("multiple", String.valueOf(params.multiple));
             config.put("max_b_frames", String.valueOf(params.max_b_frames));
-            config.put("CFR", String.valueOf(params.FALSE));
+            config.put("CFR", String.valueOf(cfr ? params.TRUE : params.FALSE));
             config.put("output_filename", outputPath);
             config.put("preset", params.preset);
             config.put("tune", params.tune);
@@ -182,12 +296,14 @@ public class XMImageView extends XMBaseView {
                 Log.e(TAG, "setConfigParams failed, exit");
                 enableGPUCopier(false);
                 config.clear();
-                return;
+                return false;
             }
 
             config.clear();
             mRecorder.prepareAsync();
+            return true;
         }
+        return false;
     }
 
     private boolean getRefreshStatus() {
@@ -212,6 +328,69 @@ public class XMImageView extends XMBaseView {
         mRefreshTime = 0l;
     }
 
+    private void rewindSchedule() {
+        synchronized (mSchedule) {
+            mScheduleIndex = 0;
+        }
+    }
+
+    private void applySchedule(long ptsUs) {
+        String path = null;
+        synchronized (mSchedule) {
+            //同一帧到期的多张只切换到最后一张
+            while (mScheduleIndex < mSchedule.size() && mSchedule.get(mScheduleIndex).ptsUs <= ptsUs) {
+                path = mSchedule.get(mScheduleIndex).path;
+                mScheduleIndex++;
+            }
+        }
+        if (path != null) {
+            setImage(path);
+        }
+    }
+
+    /**
+     * Renders the export frame by frame on the refresh thread. A frame is requested once the
+     * previous one was drawn and the encoder queue has room, no wall clock is involved. The
+     * recorder is only stopped once every frame was handed to it.
+     */
+    private void exportFrames() {
+        XMImageRenderer renderer = (XMImageRenderer) mRenderer;
+        long startNs = System.nanoTime();
+        long frames = 0l;
+        long deliveredBase = mExportPipeline.getDeliveredFrames();
+        rewindSchedule();
+        //编码器出错时拷贝被关闭,导出随之结束
+        while (!getRefreshThreadAbort() && mExportRequested && renderer.isGPUCopierEnabled()) {
+            long ptsUs = frames * 1000000L / mRefreshRate;
+            if (ptsUs >= mExportDurationUs)
+                break;
+            if (!mExportPipeline.awaitFrameSlot())
+                break;
+
+            applySchedule(ptsUs);
+            renderer.setPresentationTime(ptsUs);
+            requestRender();
+            frames ++;
+        }
+
+        boolean completed = mExportRequested && !getRefreshThreadAbort() && renderer.isGPUCopierEnabled();
+        mExportRequested = false;
+        if (completed) {
+            //最后一帧画完后取回还在pbo中的帧,全部送到编码器再停止
+            mExportPipeline.awaitFrameSlot();
+            renderer.flushRecorderFrames();
+            if (!mExportPipeline.awaitDelivered(deliveredBase + frames, FLUSH_TIMEOUT_MS)) {
+                Log.e(TAG, "export lost frames, " + (mExportPipeline.getDeliveredFrames() - deliveredBase)
+                        + " of " + frames + " reached the recorder");
+            }
+            super.stop();
+        }
+        renderer.setExportMode(false);
+        Log.i(TAG, "export " + (completed ? "finished, " : "stopped, ") + frames + " frames in "
+                + (System.nanoTime() - startNs) / 1000000L + " ms, waited "
+                + mExportPipeline.getWaitTimeNs() / 1000000L + " ms for render and encoder");
+    }
+
     private int align(int x, int align)
     {
         return ((( x ) + (align) - 1) / (align) * (align));
@@ -225,12 +404,30 @@ public class XMImageView extends XMBaseView {
                 mSynOperation.notify();
             }
 
+            //按绝对截止时间刷新,sleep(1000/fps)的误差不会累积
+            mPacer.reset();
+            mPacer.awaitPresentation(0l);
             while (!getRefreshThreadAbort()) {
-                try {
-                    Thread.sleep((int) (1000 / mRefreshRate), 0);
-                    mRefreshTime ++;
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+                if (mExportRequested && mRenderer != null && mRenderer.isGPUCopierEnabled()) {
+                    exportFrames();
+                    //导出结束后预览从头开始
+                    mRefreshTime = 0l;
+                    rewindSchedule();
+                    mPacer.reset();
+                    mPacer.awaitPresentation(0l);
+                    continue;
+                }
+
+                mRefreshTime ++;
+                long ptsUs = mRefreshTime * 1000000L / mRefreshRate;
+                mPacer.awaitPresentation(ptsUs);
+                //等待编码器启动时不画预览,避免多余的帧进入导出
+                if (mExportRequested)
+                    continue;
+
+                applySchedule(ptsUs);
+                if (mRenderer != null) {
+                    ((XMImageRenderer) mRenderer).setPresentationTime(ptsUs);
                 }
 
                 requestRender();
@@ -240,7 +437,8 @@ public class XMImageView extends XMBaseView {
                 setRefreshStatus(false);
                 mSynOperation.notify();
             }
-            Log.i(TAG, "RefreshThread exit");
+            Log.i(TAG, "RefreshThread exit, late frames " + mPacer.getLateFrameCount() + "/" + mPacer.getFrameCount()
+                    + ", mean jitter " + mPacer.getMeanJitterNs() / 1000 + " us");
         }
     }
 
@@ -23,13 +23,17 @@ public class XMPIPView extends XMDecoderView {
     public void onInit() {
         super.onInit();
         mPIPSpeedControlCallback = new XMDecoder.FrameCallback() {
-            private static final int POLLING_TIME = 10; //ms
+            //主解码位置前进时会被唤醒,超时只用于检查停止请求
+            private static final int WAIT_TIMEOUT = 100; //ms
             private volatile boolean mIsStopRequested = false;
             @Override
             public void stop(boolean stop) {
                 synchronized (this) {
                     mIsStopRequested = stop;
                 }
+                if (stop) {
+                    mSpeedControlCallback.getPipeline().wakeUp();
+                }
             }
 
             @Override
@@ -38,13 +42,8 @@ public class XMPIPView extends XMDecoderView {
 
             @Override
             public void offlineRender(long position) {
-                while (position > mSpeedControlCallback.getCurrentPosition()) {
-                    try {
-                        Thread.sleep(POLLING_TIME, 0);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-
+                OfflineRenderPipeline pipeline = mSpeedControlCallback.getPipeline();
+                while (!pipeline.awaitPosition(position, WAIT_TIMEOUT)) {
                     if (mIsStopRequested) {
                         stop(false);
                         Log.i(TAG, "stop is requested, break");
@@ -9,6 +9,8 @@ import android.opengl.GLES20;
 import android.os.Build;
 import android.view.Surface;
 
+import com.xmly.media.gles.QuadVertexBuffer;
+import com.xmly.media.gles.RenderCommandQueue;
 import com.xmly.media.gles.filter.GPUImageCameraInputFilter;
 import com.xmly.media.gles.filter.GPUImageFilter;
 import com.xmly.media.gles.filter.GPUImageFilterFactory;
@@ -27,8 +29,6 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-import java.util.LinkedList;
-import java.util.Queue;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -45,7 +45,7 @@ public class XMPlayerRenderer extends XMBaseRenderer {
     private int mCameraGLTextureId = OpenGlUtils.NO_TEXTURE;
     private XMFilterType mFilterType = XMFilterType.NONE;
     private ISurfacePreparedListener onSurfacePreparedListener;
-    private final Queue<Runnable> mCameraRunOnDraw;
+    private final RenderCommandQueue mCameraRunOnDraw;
     private int mVideoWidth;
     private int mVideoHeight;
     private int mCameraPreviewWidth = 960;
@@ -80,7 +80,7 @@ public class XMPlayerRenderer extends XMBaseRenderer {
         mFilterArrays.put(RenderIndex.DisplayIndex, GPUImageFilterFactory.CreateFilter(XMFilterType.NONE));
         mFilterArrays.put(RenderIndex.DownloadIndex, new GPUImageYUY2PixelCopierFilter(mRecorder));
 
-        mCameraRunOnDraw = new LinkedList<Runnable>();
+        mCameraRunOnDraw = new RenderCommandQueue();
         initBuffer();
     }
 
@@ -116,21 +116,21 @@ public class XMPlayerRenderer extends XMBaseRenderer {
                 cameraTex = mFilterArrays.get(RenderIndex.CameraIndex).onDrawToTexture(mCameraGLTextureId, mDefaultGLCubeBuffer, mCameraGLTextureBuffer);
             }
 
-            mDefaultGLTextureBuffer.put(TextureRotationUtil.getRotation(Rotation.ROTATION_180, false, false)).position(0);
+            mDefaultGLTextureBuffer = QuadVertexBuffer.getTextureBuffer(Rotation.ROTATION_180, false, false);
             if (mFilterArrays.get(RenderIndex.FilterIndex) != null) {
                 cameraTex = mFilterArrays.get(RenderIndex.FilterIndex).onDrawToTexture(cameraTex, mDefaultGLCubeBuffer, mDefaultGLTextureBuffer);
             }
         }
 
         if (mSurfaceTexture != null) {
-            mDefaultGLTextureBuffer.put(TextureRotationUtil.getRotation(Rotation.ROTATION_180, true, false)).position(0);
+            mDefaultGLTextureBuffer = QuadVertexBuffer.getTextureBuffer(Rotation.ROTATION_180, true, false);
             if (mFilterArrays.get(RenderIndex.DecoderIndex) != null) {
                 texture = mFilterArrays.get(RenderIndex.DecoderIndex).onDrawToTexture(mGLTextureId, mDefaultGLCubeBuffer, mDefaultGLTextureBuffer);
             }
 
             synchronized (this) {
                 if (mEnableSubtitle) {
-                    mDefaultGLTextureBuffer.put(TextureRotationUtil.getRotation(Rotation.NORMAL, false, false)).position(0);
+                    mDefaultGLTextureBuffer = QuadVertexBuffer.getTextureBuffer(Rotation.NORMAL, false, false);
                     if (mFilterArrays.get(RenderIndex.MixIndex) != null) {
                         texture = mFilterArrays.get(RenderIndex.MixIndex).onDrawToTexture(texture, mDefaultGLCubeBuffer, mDefaultGLTextureBuffer);
                     }
@@ -142,7 +142,7 @@ public class XMPlayerRenderer extends XMBaseRenderer {
         }
 
         if (mCameraSurfaceTexture != null && texture != OpenGlUtils.NO_TEXTURE) {
-            mDefaultGLTextureBuffer.put(TextureRotationUtil.getRotation(Rotation.NORMAL, false, false)).position(0);
+            mDefaultGLTextureBuffer = QuadVertexBuffer.getTextureBuffer(Rotation.NORMAL, false, false);
             if (mFilterArrays.get(RenderIndex.PipIndex) != null) {
                 ((GPUImageTwoInputFilter) mFilterArrays.get(RenderIndex.PipIndex)).setSecondTexture(texture, false);
                 texture = mFilterArrays.get(RenderIndex.PipIndex).onDrawToTexture(cameraTex, mDefaultGLCubeBuffer, mDefaultGLTextureBuffer);
@@ -153,7 +153,7 @@ public class XMPlayerRenderer extends XMBaseRenderer {
         }
 
         if (texture == OpenGlUtils.NO_TEXTURE) {
-            mDefaultGLTextureBuffer.put(TextureRotationUtil.getRotation(Rotation.NORMAL, false, false)).position(0);
+            mDefaultGLTextureBuffer = QuadVertexBuffer.getTextureBuffer(Rotation.NORMAL, false, false);
             if (mFilterArrays.get(RenderIndex.DisplayIndex) != null) {
                 mFilterArrays.get(RenderIndex.DisplayIndex).onDraw(cameraTex, mDefaultGLCubeBuffer, mDefaultGLTextureBuffer);
             }
@@ -164,7 +164,7 @@ public class XMPlayerRenderer extends XMBaseRenderer {
         }
 
         if (mGPUCopierEnable) {
-            mDefaultGLTextureBuffer.put(TextureRotationUtil.getRotation(Rotation.NORMAL, false, true)).position(0);
+            mDefaultGLTextureBuffer = QuadVertexBuffer.getTextureBuffer(Rotation.NORMAL, false, true);
             if (mFilterArrays.get(RenderIndex.DownloadIndex) != null) {
                 mFilterArrays.get(RenderIndex.DownloadIndex).onDrawToTexture(texture, mDefaultGLCubeBuffer, mDefaultGLTextureBuffer);
             }
@@ -253,14 +253,22 @@ public class XMPlayerRenderer extends XMBaseRenderer {
     }
 
     public void setPipRectCoordinate(float[] buffer) {
-        if(mFilterArrays.get(RenderIndex.PipIndex) != null) {
-            mFilterArrays.get(RenderIndex.PipIndex).setRectangleCoordinate(buffer);
-        }
+        //在渲染线程设置,拖动时只执行最后一次
+        final float[] rect = buffer.clone();
+        runOnDraw(mRunOnDraw, CMD_SET_PIP_RECT, new Runnable() {
+            @Override
+            public void run() {
+                if(mFilterArrays.get(RenderIndex.PipIndex) != null) {
+                    mFilterArrays.get(RenderIndex.PipIndex).setRectangleCoordinate(rect);
+                }
+            }
+        });
+        requestRender();
     }
 
     @Override
     public void setFilter(final XMFilterType filtertype) {
-        runOnDraw(mRunOnDraw, new Runnable() {
+        runOnDraw(mRunOnDraw, CMD_SET_FILTER, new Runnable() {
             @Override
             public void run() {
                 if (mFilterArrays.get(RenderIndex.FilterIndex) != null) {